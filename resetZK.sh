@@ -21,6 +21,7 @@ esac
 # Final prompt before starting
 echo "About to attempt to reset ZK ensemble:"
 echo "  environment = $(uname)"
+echo "  mode = ${1:-all}"
 read -r -n 1 -p $"Start with these parameters (y/n)? " userInput
 echo
 if [[ "$userInput" != "y" && "$userInput" != "Y" ]]; then
@@ -35,9 +36,9 @@ then
     # Windows paths and classpath format
     taskDependency=$( cygpath -wp "$taskDependency" )
     #echo java -cp "$CLASSPATH;$taskDependency;.;" DistProcess
-    java -cp "$CLASSPATH;$taskDependency;.;" ZKReset
+    java -cp "$CLASSPATH;$taskDependency;.;" ZKReset "$@"
 else
     # Linux paths and classpath format
     #echo java -cp "$CLASSPATH:$taskDependency:.:" DistProcess
-    java -cp "$CLASSPATH:$taskDependency:.:" ZKReset
+    java -cp "$CLASSPATH:$taskDependency:.:" ZKReset "$@"
 fi
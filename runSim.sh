@@ -0,0 +1,22 @@
+#!/bin/bash
+# Shortcut script to run the offline scheduler simulator. Doesn't need ZK, but the server must be
+# compiled. See SchedulerSim for the arguments.
+project_root=$( cd -- "$( dirname -- "${BASH_SOURCE[0]}" )" &> /dev/null && pwd )
+project_root=$(realpath "$project_root")
+
+# Detect shell type
+case "$(uname)" in
+    CYGWIN*|MINGW*) cygwin=true ;;
+    *) cygwin=false ;;
+esac
+
+taskDependency="$project_root"/zk/task
+cd "$project_root"/zk/dist || exit
+if $cygwin; then
+    # Windows paths and classpath format
+    taskDependency=$( cygpath -wp "$taskDependency" )
+    java -cp "$taskDependency;.;" SchedulerSim "$@"
+else
+    # Linux paths and classpath format
+    java -cp "$taskDependency:.:" SchedulerSim "$@"
+fi
@@ -0,0 +1,87 @@
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side of admission control: checks the {@link AdmissionState} the Master publishes in
+ * /dist50/admission before a task is submitted, and holds it back while we are not admitted.
+ * What to do then is up to the client (ADMIT_CLIENT_POLICY_50):
+ * <ul>
+ *     <li>block (default): wait, however long it takes, until admitted (watch on the state).</li>
+ *     <li>backoff: retry with exponential backoff and jitter, starting from the Master's hint,
+ *     and give up after ADMIT_MAX_WAIT_50 seconds.</li>
+ *     <li>fail: give up right away.</li>
+ * </ul>
+ * The tenant is TENANT_50 ({@link AdmissionState#DEFAULT_TENANT} if unset), sent in the
+ * {@link TaskEnvelope#TENANT} header. Don't call from the ZK event thread: it blocks.
+ */
+public class AdmissionGate {
+	static final String PATH = "/dist50/admission";
+	static final String TENANT = Objects.requireNonNullElse(System.getenv("TENANT_50"), AdmissionState.DEFAULT_TENANT);
+	static final String POLICY = Objects.requireNonNullElse(System.getenv("ADMIT_CLIENT_POLICY_50"), "block").toLowerCase();
+	static final long MAX_WAIT_MS = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("ADMIT_MAX_WAIT_50"), "300")) * 1000;
+
+	static final long MIN_DELAY_MS = 100;
+	static final long MAX_DELAY_MS = 30000;
+
+	/** The task was not admitted, and the client policy is not to wait (any longer). */
+	public static class RejectedException extends IOException {
+		public RejectedException(String message) {
+			super(message);
+		}
+	}
+
+	private AdmissionGate() {}
+
+	/** Return once a task of the tenant may be submitted, according to the client policy. */
+	public static void admit(ZooKeeper zk, String tenant)
+		throws RejectedException, KeeperException, InterruptedException {
+		long start = System.currentTimeMillis();
+		long delay = 0;
+		while (true) {
+			CountDownLatch changed = new CountDownLatch(1);
+			AdmissionState state = read(zk, "block".equals(POLICY) ? (event) -> changed.countDown() : null);
+			if (state.admits(tenant)) {
+				if (delay > 0) System.out.println("DISTAPP : Admitted after " + (System.currentTimeMillis() - start) + " ms");
+				return;
+			}
+
+			String why = state.isOpen() ? "too many tasks pending for tenant " + tenant : state.getReason();
+			switch (POLICY) {
+				case "fail":
+					throw new RejectedException("Not admitted: " + why);
+				case "backoff":
+					// Full jitter, so that the clients held back don't all come back at once.
+					delay = Math.min(MAX_DELAY_MS, delay == 0 ? Math.max(MIN_DELAY_MS, state.getRetryAfterMs()) : delay * 2);
+					long sleep = ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+					if (System.currentTimeMillis() + sleep - start > MAX_WAIT_MS)
+						throw new RejectedException("Not admitted after " + (System.currentTimeMillis() - start) + " ms: " + why);
+					System.out.println("DISTAPP : Not admitted (" + why + "), retrying in " + sleep + " ms");
+					Thread.sleep(sleep);
+					break;
+				default:
+					if (delay == 0) System.out.println("DISTAPP : Not admitted (" + why + "), waiting");
+					delay = Math.max(MIN_DELAY_MS, state.getRetryAfterMs());
+					// The watch wakes us when the state changes, the timeout when a rate limit would let us in.
+					changed.await(Math.min(MAX_DELAY_MS, delay), TimeUnit.MILLISECONDS);
+					break;
+			}
+		}
+	}
+
+	private static AdmissionState read(ZooKeeper zk, Watcher watcher) throws KeeperException, InterruptedException {
+		try {
+			return AdmissionState.decode(zk.getData(PATH, watcher, null));
+		} catch (KeeperException.NoNodeException e) {
+			return AdmissionState.OPEN; // No master ever published anything
+		}
+	}
+
+}
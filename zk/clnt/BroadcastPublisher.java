@@ -0,0 +1,72 @@
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Publishes {@link Broadcast} objects: large read-only inputs shared by many tasks, uploaded once
+ * instead of being serialized into every task. Give the returned reference to the tasks, and
+ * {@link DistClient} tags them so that the Master prefers workers that already have it cached.
+ * <p>
+ * Ids are immutable: publishing an id that already exists only returns a reference to it (several
+ * clients can share a broadcast), so publish a new version under a new id.
+ */
+public class BroadcastPublisher {
+
+	private BroadcastPublisher() {}
+
+	public static <T extends Serializable> Broadcast<T> publish(ZooKeeper zk, String id, T value)
+		throws IOException, KeeperException, InterruptedException {
+		if (!id.matches("[A-Za-z0-9._-]+"))
+			throw new IllegalArgumentException("Invalid broadcast id \"" + id + "\"");
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+			oos.writeObject(value);
+		}
+		byte[] data = bos.toByteArray();
+
+		try {
+			zk.create(Broadcast.ROOT, "Contains broadcast objects shared by tasks".getBytes(),
+				Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		} catch (KeeperException.NodeExistsException ignored) {} // ZKReset or another client created it.
+		try {
+			// No manifest yet: workers wait until every chunk is there.
+			zk.create(Broadcast.ROOT + "/" + id, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		} catch (KeeperException.NodeExistsException e) {
+			System.out.println("DISTAPP : Broadcast " + id + " is already published");
+			return new Broadcast<>(id, value);
+		}
+
+		// Chunks one by one: a multi() is limited to 1 MB as a whole.
+		int chunks = 0;
+		for (int offset = 0; offset < data.length; offset += Broadcast.CHUNK_BYTES, chunks++) {
+			zk.create(Broadcast.chunkPath(id, chunks),
+				Arrays.copyOfRange(data, offset, Math.min(data.length, offset + Broadcast.CHUNK_BYTES)),
+				Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		}
+		zk.setData(Broadcast.ROOT + "/" + id, Broadcast.manifest(data.length, chunks), -1);
+		System.out.println("DISTAPP : Published broadcast " + id + " (" + data.length + " bytes, " + chunks + " chunks)");
+		return new Broadcast<>(id, value);
+	}
+
+	/** Delete a broadcast, once no task needs it anymore. Workers keep their cached copy. */
+	public static void unpublish(ZooKeeper zk, String id) throws KeeperException, InterruptedException {
+		List<Op> ops = new ArrayList<>();
+		for (String chunk : zk.getChildren(Broadcast.ROOT + "/" + id, false)) {
+			ops.add(Op.delete(Broadcast.ROOT + "/" + id + "/" + chunk, -1));
+		}
+		ops.add(Op.delete(Broadcast.ROOT + "/" + id, -1));
+		zk.multi(ops);
+	}
+
+}
@@ -0,0 +1,145 @@
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Submits a graph of tasks at once. Each stage only runs once the stages it depends on are done,
+ * and gets their results as inputs (see {@link DependentTask}). The Master releases the stages
+ * itself as soon as their parents have a result, so there is no round trip through the client
+ * between stages, and independent stages run in parallel on different workers.
+ * <p>
+ * Stages must be added after their parents, so the graph can't have cycles. Only the results of
+ * the sinks (stages nobody depends on) come back; all the stages are deleted afterwards.
+ * Results of a graph always go through ZK (no streaming), since workers need the parents'.
+ * <p>
+ * Demo launcher: {@code runClient.sh <samples> DagClient} averages 4 MCPi estimates computed in
+ * parallel in a {@link PiAverage} stage.
+ */
+public class DagClient {
+	private final Map<String, DistTask> stages = new LinkedHashMap<>();
+	private final Map<String, List<String>> parents = new HashMap<>();
+	/** Stages nobody depends on (yet). */
+	private final Set<String> sinks = new LinkedHashSet<>();
+
+	/**
+	 * Add a stage.
+	 * @param name Unique name of the stage, the key of its result in its dependents' inputs.
+	 * @param task The task, must be a {@link DependentTask} if it has parents.
+	 * @param dependsOn Names of the (already added) stages whose results this one needs.
+	 */
+	public DagClient stage(String name, DistTask task, String... dependsOn) {
+		if (stages.containsKey(name) || name.contains("\t") || name.contains("\n"))
+			throw new IllegalArgumentException("Duplicate or invalid stage name \"" + name + "\"");
+		if (dependsOn.length > 0 && !(task instanceof DependentTask))
+			throw new IllegalArgumentException("Stage \"" + name + "\" has parents but is not a DependentTask");
+		for (String parent : dependsOn) {
+			if (!stages.containsKey(parent))
+				throw new IllegalArgumentException("Unknown parent \"" + parent + "\" of \"" + name + "\", add it first");
+		}
+
+		stages.put(name, task);
+		parents.put(name, Arrays.asList(dependsOn));
+		sinks.removeAll(parents.get(name));
+		sinks.add(name);
+		return this;
+	}
+
+	/**
+	 * Submit the graph and block until every sink is done.
+	 * @return Result of each sink, by stage name.
+	 */
+	public Map<String, DistTask> run(String zkServer)
+		throws IOException, KeeperException, InterruptedException, ClassNotFoundException {
+		ZooKeeper zk = connect(zkServer);
+		try {
+			// Parents come first, so we always know the task names to put in the DEPS header.
+			// The graph is admitted as a whole, a half submitted graph would only hold workers up.
+			AdmissionGate.admit(zk, AdmissionGate.TENANT);
+			Map<String, String> taskNames = new HashMap<>();
+			for (Map.Entry<String, DistTask> stage : stages.entrySet()) {
+				Map<String, String> deps = new LinkedHashMap<>();
+				for (String dep : parents.get(stage.getKey())) deps.put(dep, taskNames.get(dep));
+
+				Map<String, String> headers = new LinkedHashMap<>();
+				headers.put(TaskEnvelope.TASK_CLASS, stage.getValue().getClass().getName());
+				headers.put(TaskEnvelope.TENANT, AdmissionGate.TENANT);
+				if (!deps.isEmpty()) headers.put(TaskEnvelope.DEPS, TaskEnvelope.formatDeps(deps));
+				String path = zk.create(DistClient.taskParent(zk) + "/" + TaskEnvelope.STAGE_PREFIX,
+					TaskEnvelope.encodeTask(headers, stage.getValue()),
+					Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+				taskNames.put(stage.getKey(), path.substring("/dist50/tasks/".length()));
+				System.out.println("DISTAPP : DagClient : Stage [" + stage.getKey() + "] : " + path + " " + deps.keySet());
+			}
+
+			Map<String, DistTask> results = new LinkedHashMap<>();
+			// Sinks the platform gave up on (a stage failed on too many workers), with why.
+			Map<String, String> failed = new LinkedHashMap<>();
+			for (String sink : sinks) {
+				byte[] result = awaitResult(zk, "/dist50/tasks/" + taskNames.get(sink) + "/result");
+				String error = TaskEnvelope.errorOf(result);
+				if (error != null) {
+					failed.put(sink, error);
+					System.out.println("DISTAPP : DagClient : Sink [" + sink + "] failed : " + error);
+					continue;
+				}
+				results.put(sink, TaskEnvelope.decode(result).getTask());
+				System.out.println("DISTAPP : DagClient : Sink [" + sink + "] done");
+			}
+
+			// Every stage is a sink or an ancestor of one, so they all have a result by now.
+			List<Op> cleanup = new ArrayList<>();
+			for (String task : taskNames.values()) {
+				cleanup.add(Op.delete("/dist50/tasks/" + task + "/result", -1));
+				cleanup.add(Op.delete("/dist50/tasks/" + task, -1));
+			}
+			if (failed.isEmpty()) {
+				zk.multi(cleanup);
+				return results;
+			}
+			// Unless a stage failed: its dependents failed right away, other parents of theirs may
+			// still be running. The janitor reaps the graph then.
+			try {
+				zk.multi(cleanup);
+			} catch (KeeperException.NoNodeException ignored) {}
+			throw new IOException("Stages failed: " + failed);
+		} finally {
+			zk.close();
+		}
+	}
+
+	private static ZooKeeper connect(String zkServer) throws IOException, InterruptedException {
+		CountDownLatch connected = new CountDownLatch(1);
+		ZooKeeper zk = new ZooKeeper(zkServer, 10000, (event) -> {
+			if (event.getState() == Watcher.Event.KeeperState.SyncConnected) connected.countDown();
+		});
+		connected.await();
+		return zk;
+	}
+
+	/** Block until the node exists, then read it. */
+	private static byte[] awaitResult(ZooKeeper zk, String path) throws KeeperException, InterruptedException {
+		while (true) {
+			CountDownLatch created = new CountDownLatch(1);
+			if (zk.exists(path, (event) -> created.countDown()) != null) return zk.getData(path, false, null);
+			created.await();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long n = Long.parseLong(args[0]);
+		DagClient dag = new DagClient();
+		for (int i = 0; i < 4; i++) dag.stage("pi-" + i, new MCPi(n));
+		dag.stage("average", new PiAverage(), "pi-0", "pi-1", "pi-2", "pi-3");
+
+		Map<String, DistTask> results = dag.run(System.getenv("ZKSERVER"));
+		System.out.println(((PiAverage) results.get("average")).getPi());
+	}
+
+}
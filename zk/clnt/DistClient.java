@@ -4,6 +4,10 @@ All materials provided to the students as part of this course is the property of
 ©2022, Joseph D’Silva
 */
 import java.io.*;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.ZooDefs.Ids;
@@ -16,9 +20,17 @@ public class DistClient implements Watcher
 												, AsyncCallback.StatCallback
 												, AsyncCallback.DataCallback
 {
+	// Number of buckets the tasks are spread over (/dist50/tasks/b-x/task-y). 1 = flat /dist50/tasks/task-y.
+	static final int TASK_BUCKETS = System.getenv("TASK_BUCKETS_50") == null ? 32 : Integer.parseInt(System.getenv("TASK_BUCKETS_50"));
+
+	// Have workers stream results straight to us instead of storing them in ZK (for large results).
+	static final boolean STREAM_RESULTS = System.getenv("STREAM_RESULTS_50") != null;
+
 	ZooKeeper zk;
 	String zkServer, taskNodeName;
 	DistTask dTask;
+	ResultReceiver receiver; // Only when streaming results.
+	boolean submitting = false; // The task is (being) submitted, don't submit again on reconnection. Guarded by this.
 
 	DistClient(String zkhost, DistTask dt)
 	{
@@ -31,6 +43,13 @@ public class DistClient implements Watcher
 														//, UnknownHostException
 														, KeeperException, InterruptedException
 	{
+		if(STREAM_RESULTS)
+		{
+			// Listen before submitting, the address goes in the task header.
+			String host = System.getenv("STREAM_HOST_50") != null ? System.getenv("STREAM_HOST_50") : InetAddress.getLocalHost().getHostAddress();
+			receiver = new ResultReceiver(host);
+			System.out.println("DISTAPP : Results will be streamed to " + receiver.getAddress());
+		}
 		zk = new ZooKeeper(zkServer, 10000, this); //connect to ZK.
 	}
 
@@ -51,30 +70,9 @@ public class DistClient implements Watcher
 		if(e.getType() == Watcher.Event.EventType.None) // This seems to be the event type associated with connections.
 		{
 			// Once we are connected, send our task if we have not done so.
-			if(e.getPath() == null && e.getState() ==  Watcher.Event.KeeperState.SyncConnected && taskNodeName == null) 
-			{
-				try
-				{
-					// Serialize our Task object to a byte array!
-					ByteArrayOutputStream bos = new ByteArrayOutputStream();
-					ObjectOutputStream oos = new ObjectOutputStream(bos);
-					oos.writeObject(dTask); oos.flush();
-					byte [] dTaskSerial = bos.toByteArray();
-			
-					// Create a sequential znode with the Task object as its data.
-					taskNodeName = zk.create("/dist50/tasks/task-", dTaskSerial, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
-					System.out.println("DISTAPP : TaskNode : " + taskNodeName);
-			
-					//Place watch for the result znode which will be created under our task znode.
-					zk.exists(taskNodeName+"/result", this, this, null);
-				}
-				catch(IOException ioe)
-				{ System.out.println(ioe); }
-				catch(KeeperException ke)
-				{ System.out.println(ke); }
-				catch(InterruptedException ie)
-				{ System.out.println(ie); }
-			}
+			// On another thread, as we may have to wait to be admitted.
+			if(e.getPath() == null && e.getState() ==  Watcher.Event.KeeperState.SyncConnected)
+				startSubmitting();
 		}
 		// The result znode was created.
 		else if(e.getType() == Watcher.Event.EventType.NodeCreated && e.getPath().equals(taskNodeName+"/result"))
@@ -85,6 +83,83 @@ public class DistClient implements Watcher
 		}
 	}
 
+	// Submit our task on its own thread, unless it is already (being) submitted.
+	synchronized void startSubmitting()
+	{
+		if(submitting)
+			return;
+		submitting = true;
+		new Thread(this::submitTask, "submit").start();
+	}
+
+	void submitTask()
+	{
+		try
+		{
+			// Wait until the master lets us in (or give up, depending on our admission policy).
+			AdmissionGate.admit(zk, AdmissionGate.TENANT);
+
+			// Serialize our Task object to a byte array, with the header in front!
+			Map<String, String> headers = new LinkedHashMap<>();
+			headers.put(TaskEnvelope.TASK_CLASS, dTask.getClass().getName());
+			headers.put(TaskEnvelope.TENANT, AdmissionGate.TENANT);
+			if(receiver != null)
+				headers.put(TaskEnvelope.REPLY_TO, receiver.getAddress());
+			byte [] dTaskSerial = TaskEnvelope.encodeTask(headers, dTask);
+
+			// Create a sequential znode with the Task object as its data.
+			taskNodeName = zk.create(taskParent(zk) + "/task-", dTaskSerial, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+			System.out.println("DISTAPP : TaskNode : " + taskNodeName);
+
+			//Place watch for the result znode which will be created under our task znode.
+			zk.exists(taskNodeName+"/result", this, this, null);
+			return;
+		}
+		catch(ConnectionLossException cle)
+		{
+			// Our task may or may not have been created, submit it again once we are reconnected
+			//  (a task created twice only costs a computation, its result is reaped by the janitor).
+			System.out.println("DISTAPP : " + cle + " : submitting again once reconnected");
+			synchronized(this) { submitting = false; }
+			// We may have missed the reconnection already.
+			if(zk.getState().isConnected())
+				startSubmitting();
+			return;
+		}
+		catch(IOException ioe)
+		{ System.out.println("DISTAPP : " + ioe); }
+		catch(KeeperException ke)
+		{ System.out.println(ke); }
+		catch(InterruptedException ie)
+		{ System.out.println(ie); }
+
+		// We will never get a result, free the main thread.
+		dTask = null;
+		synchronized(this) { this.notify(); }
+	}
+
+	// Tasks submitted by this process, to pick their buckets.
+	private static final AtomicLong submitted = new AtomicLong();
+
+	// Pick the parent znode of a new task. Tasks are spread over buckets so that the master only has
+	//  to fetch one bucket when a task is added, instead of the entire backlog.
+	//  Each task goes to the next bucket (starting from one picked by our session, so that clients
+	//  don't all start with the same), so even a single client filling the backlog spreads it
+	//  evenly: a listing holds about 1/TASK_BUCKETS of the backlog.
+	static String taskParent(ZooKeeper zk) throws KeeperException, InterruptedException
+	{
+		if(TASK_BUCKETS <= 1)
+			return "/dist50/tasks";
+
+		long next = Long.hashCode(zk.getSessionId()) + submitted.getAndIncrement();
+		String bucket = "/dist50/tasks/b-" + Math.floorMod(next, TASK_BUCKETS);
+		try
+		{ zk.create(bucket, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT); }
+		catch(NodeExistsException nee)
+		{ } // Another client created it first.
+		return bucket;
+	}
+
 	// Implementing the AsyncCallback.StatCallback interface. This will be invoked by the zk.exists
 	public void processResult(int rc, String path, Object ctx, Stat stat)
 	{
@@ -136,10 +211,20 @@ public class DistClient implements Watcher
 		System.out.println("DISTAPP : processResult : DataCallback : " + rc + ":" + path + ":" + ctx + ":" + stat);
 		try
 		{
+			// The worker streamed the actual result to our receiver, the znode only has a marker.
+			if(TaskEnvelope.isStreamedMarker(data))
+			{
+				data = receiver.take(taskNodeName);
+				if(data == null)
+					throw new IOException("Result of " + taskNodeName + " was streamed but never received");
+			}
 			//Deserialize the "data" back into a task object (which will now also contain the results) and update our task object reference.
-			ByteArrayInputStream bis = new ByteArrayInputStream(data);
-			ObjectInput in = new ObjectInputStream(bis);
-			dTask = (DistTask) in.readObject();
+			TaskEnvelope result = TaskEnvelope.decode(data);
+			dTask = result.getTask();
+			// What our task used on its worker (not known for streamed results).
+			TaskUsage usage = TaskUsage.parseHeader(result.header(TaskEnvelope.USAGE));
+			if(usage != null)
+				System.out.println("DISTAPP : Usage : " + usage);
 		}
 		catch(Exception e)
 		{
@@ -170,6 +255,14 @@ public class DistClient implements Watcher
 		// Create a distributed task object for Monte Carlo computation of pi.
 		MCPi mcpi = new MCPi(n);
 
+		// Too small to be worth the cluster's coordination (see HybridExecutor): compute it right here.
+		if(mcpi.estimatedCost() <= HybridExecutor.LOCAL_COST)
+		{
+			mcpi.compute();
+			System.out.println(mcpi.getPi());
+			return;
+		}
+
 		//Read the ZooKeeper ensemble information from the environment variable.
 		// Also pass the task object to be send to the distributed platform.
 		DistClient dt = new DistClient(System.getenv("ZKSERVER"), mcpi);
@@ -190,6 +283,11 @@ public class DistClient implements Watcher
 
 		// get back our task object
 		mcpi = (MCPi)dt.getDistTask();
+		if(mcpi == null)
+		{
+			System.out.println("DISTAPP : No result.");
+			return;
+		}
 		// And display the results.
 		System.out.println(mcpi.getPi());
 
@@ -0,0 +1,205 @@
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs each task submitted either right here, on a bounded pool, or on the cluster (through a
+ * {@link TaskBatcher}), whichever is quicker: a task computing in microseconds shouldn't pay tens
+ * of ms of coordination. Both give the computed task through a future, which fails with
+ * {@link TaskBatcher.TaskFailedException} if the task threw (or the platform gave up on it).
+ * <p>
+ * A task runs locally if it's expected to be done here (after the tasks already waiting for the
+ * local pool) in less time than the cluster adds to it: the overhead. Compute times and overhead
+ * are learned as tasks complete, much like the Master's sjf policy:
+ * <ul>
+ *     <li>Each task class has the moving average of its compute time here, and of its compute
+ *     time per unit of cost for {@link CostedTask}s.</li>
+ *     <li>Until one ran here, runs on the cluster stand in: their latency minus the overhead. The
+ *     lowest is kept, as latencies also count the time spent queued on the cluster.</li>
+ *     <li>The overhead is the moving average of the latency of tasks run on the cluster minus
+ *     their expected compute time here, starting at HYBRID_OVERHEAD_MS_50 (30).</li>
+ *     <li>Only tasks sent alone in their batch are learned from: the latency of a batch is that
+ *     of all its entries, computed one after the other or in parallel.</li>
+ * </ul>
+ * Until anything is learned about their class, {@link CostedTask}s go by their cost hint: one of
+ * cost HYBRID_LOCAL_COST_50 (100000, MCPi samples computing in a few ms) is taken to compute in
+ * about the overhead, so cheaper ones run here. Other tasks of a class never seen go to the
+ * cluster. The local pool has HYBRID_LOCAL_THREADS_50 threads (default: the cores of the machine).
+ * <p>
+ * Demo launcher: {@code runClient.sh <samples> HybridExecutor} computes {@link #DEMO_TASKS} MCPi
+ * estimates, every {@link #DEMO_LARGE_EVERY}th with 1000 times the samples, and averages them.
+ */
+public class HybridExecutor implements AutoCloseable {
+	static final int LOCAL_THREADS = Integer.parseInt(Objects.requireNonNullElse(System.getenv("HYBRID_LOCAL_THREADS_50"),
+		Integer.toString(Runtime.getRuntime().availableProcessors())));
+	static final double INITIAL_OVERHEAD_MS = Double.parseDouble(Objects.requireNonNullElse(System.getenv("HYBRID_OVERHEAD_MS_50"), "30"));
+	/** Cost hint up to which a task is worth running here before its class is learned. */
+	static final double LOCAL_COST = Double.parseDouble(Objects.requireNonNullElse(System.getenv("HYBRID_LOCAL_COST_50"), "100000"));
+	/** Weight of the newest sample in the moving averages. */
+	static final double ALPHA = 0.2;
+
+	static final int DEMO_TASKS = 1000;
+	static final int DEMO_LARGE_EVERY = 100;
+	/** The demo waits for each of the first tasks, to learn from them before the rest. */
+	static final int DEMO_WARMUP = 10;
+
+	private static class ClassStats {
+		/** EWMA of the compute time here, in ms, -1 until a task ran here. */
+		double duration = -1;
+		/** EWMA of the compute time here per unit of cost, in ms, -1 until a task with a cost ran here. */
+		double perCost = -1;
+		/** Lowest latency minus overhead on the cluster, in ms, total and per unit of cost (-1 if none). */
+		double remoteDuration = -1;
+		double remotePerCost = -1;
+	}
+
+	private final TaskBatcher remote;
+	private final ExecutorService local = Executors.newFixedThreadPool(LOCAL_THREADS, (r) -> new Thread(r, "local"));
+	/** Expected compute time of the tasks running or waiting on the local pool, in ms. */
+	private double localBacklog = 0;
+
+	private final Map<String, ClassStats> classes = new HashMap<>();
+	/** EWMA of what the cluster adds to the compute time, in ms. */
+	private double overhead = INITIAL_OVERHEAD_MS;
+
+	private final AtomicLong ranLocally = new AtomicLong();
+	private final AtomicLong ranRemotely = new AtomicLong();
+
+	public HybridExecutor(TaskBatcher remote) {
+		this.remote = remote;
+	}
+
+	/** Run a task here or on the cluster. The future gets the computed task. */
+	public <T extends DistTask> CompletableFuture<T> submit(T task) throws IOException {
+		double expected = expected(task);
+		if (expected >= 0 && takeLocally(expected)) return runLocally(task, expected);
+
+		long start = System.nanoTime();
+		ranRemotely.incrementAndGet();
+		TaskBatcher.BatchedFuture<T> sent = remote.submit(task);
+		return sent.thenApply((done) -> {
+			if (sent.getBatchSize() == 1) learnRemote(task, expected, (System.nanoTime() - start) / 1e6);
+			return done;
+		});
+	}
+
+	/** Whether a task expected to compute in that many ms is done sooner here, if so count it in. */
+	private synchronized boolean takeLocally(double expected) {
+		if (expected + localBacklog / LOCAL_THREADS > overhead) return false;
+		localBacklog += expected;
+		return true;
+	}
+
+	private <T extends DistTask> CompletableFuture<T> runLocally(T task, double expected) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		ranLocally.incrementAndGet();
+		local.execute(() -> {
+			try {
+				long start = System.nanoTime();
+				task.compute();
+				learn(task, (System.nanoTime() - start) / 1e6);
+				future.complete(task);
+			} catch (Exception e) {
+				future.completeExceptionally(new TaskBatcher.TaskFailedException(e.toString()));
+			} finally {
+				synchronized (this) {
+					localBacklog -= expected;
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Expected compute time of a task here in ms, guessed from its cost hint if nothing is learned
+	 * about its class yet, -1 if it has none either.
+	 */
+	synchronized double expected(DistTask task) {
+		ClassStats stats = classes.get(task.getClass().getName());
+		double cost = task instanceof CostedTask ? ((CostedTask) task).estimatedCost() : -1;
+		if (stats != null && stats.duration >= 0) return cost >= 0 && stats.perCost >= 0 ? cost * stats.perCost : stats.duration;
+		if (stats != null && (cost < 0 || stats.remotePerCost >= 0)) return cost >= 0 ? cost * stats.remotePerCost : stats.remoteDuration;
+		return cost >= 0 ? cost / LOCAL_COST * overhead : -1;
+	}
+
+	/** A task ran on the cluster, alone in its batch, in {@code latency} ms. */
+	private synchronized void learnRemote(DistTask task, double expected, double latency) {
+		ClassStats stats = classes.computeIfAbsent(task.getClass().getName(), (c) -> new ClassStats());
+		if (stats.duration >= 0) {
+			overhead = ewma(overhead, Math.max(0, latency - expected));
+			return;
+		}
+		double duration = Math.max(0, latency - overhead);
+		stats.remoteDuration = stats.remoteDuration < 0 ? duration : Math.min(stats.remoteDuration, duration);
+		double cost = task instanceof CostedTask ? ((CostedTask) task).estimatedCost() : 0;
+		if (cost > 0) stats.remotePerCost = stats.remotePerCost < 0 ? duration / cost : Math.min(stats.remotePerCost, duration / cost);
+	}
+
+	/** A task computed here in {@code duration} ms. */
+	private synchronized void learn(DistTask task, double duration) {
+		ClassStats stats = classes.computeIfAbsent(task.getClass().getName(), (c) -> new ClassStats());
+		stats.duration = stats.duration < 0 ? duration : ewma(stats.duration, duration);
+		double cost = task instanceof CostedTask ? ((CostedTask) task).estimatedCost() : 0;
+		if (cost > 0) stats.perCost = stats.perCost < 0 ? duration / cost : ewma(stats.perCost, duration / cost);
+	}
+
+	private static double ewma(double average, double sample) {
+		return ALPHA * sample + (1 - ALPHA) * average;
+	}
+
+	/** What the cluster adds to the compute time of a task, in ms: the learned threshold. */
+	public synchronized double getOverhead() {
+		return overhead;
+	}
+
+	public long getRanLocally() {
+		return ranLocally.get();
+	}
+
+	public long getRanRemotely() {
+		return ranRemotely.get();
+	}
+
+	/** Send what's left to the cluster, and let the local tasks finish. */
+	@Override
+	public void close() {
+		remote.close();
+		local.shutdown();
+	}
+
+	public static void main(String[] args) throws Exception {
+		long n = Long.parseLong(args[0]);
+		CountDownLatch connected = new CountDownLatch(1);
+		ZooKeeper zk = new ZooKeeper(System.getenv("ZKSERVER"), 10000, (event) -> {
+			if (event.getState() == Watcher.Event.KeeperState.SyncConnected) connected.countDown();
+		});
+		connected.await();
+
+		long start = System.nanoTime();
+		List<CompletableFuture<MCPi>> results = new ArrayList<>();
+		HybridExecutor executor = new HybridExecutor(new TaskBatcher(zk));
+		for (int i = 0; i < DEMO_TASKS; i++) {
+			results.add(executor.submit(new MCPi(i % DEMO_LARGE_EVERY == DEMO_LARGE_EVERY - 1 ? n * 1000 : n)));
+			if (i < DEMO_WARMUP) results.get(i).join();
+		}
+		executor.close();
+
+		double sum = 0;
+		int failed = 0;
+		for (CompletableFuture<MCPi> result : results) {
+			try {
+				sum += result.get().getPi();
+			} catch (ExecutionException e) {
+				failed++;
+			}
+		}
+		System.out.printf("DISTAPP : HybridExecutor : %d tasks locally, %d on the cluster (overhead %.1f ms), %.1f ms (%d failed)\n",
+			executor.getRanLocally(), executor.getRanRemotely(), executor.getOverhead(), (System.nanoTime() - start) / 1e6, failed);
+		System.out.println(sum / Math.max(1, DEMO_TASKS - failed));
+		zk.close();
+	}
+
+}
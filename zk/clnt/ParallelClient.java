@@ -0,0 +1,34 @@
+import java.util.Objects;
+
+/**
+ * Custom launcher for the DistClient that submits a {@link ParallelMCPi}, which uses several cores
+ * of its worker: TASK_CORES_50 of them (default 0, all of the worker's). Basically copy-pasted
+ * main().
+ */
+public class ParallelClient {
+
+	public static void main(String[] args) throws Exception {
+		long n = Long.parseLong(args[0]);
+		int cores = Integer.parseInt(Objects.requireNonNullElse(System.getenv("TASK_CORES_50"), "0"));
+		ParallelMCPi task = new ParallelMCPi(n, cores);
+
+		DistClient dt = new DistClient(System.getenv("ZKSERVER"), task);
+
+		long start = System.nanoTime();
+		dt.startClient();
+		synchronized(dt) {
+			try {
+				dt.wait();
+			} catch (InterruptedException ignored) {}
+		}
+
+		task = (ParallelMCPi) dt.getDistTask();
+		if (task == null) {
+			System.out.println("DISTAPP : No result.");
+			return;
+		}
+		System.out.printf("DISTAPP : ParallelClient : %d samples in %.1f ms\n", task.getDrawn(), (System.nanoTime() - start) / 1e6);
+		System.out.println(task.getPi());
+	}
+
+}
@@ -0,0 +1,91 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local listener workers stream results to, so that large results don't go through ZK. The
+ * address is published in the task header ({@link TaskEnvelope#REPLY_TO}), and the worker only
+ * writes a small marker in the result ZNode once we have acknowledged the whole result.
+ * See ResultStreamer (server side) for the protocol.
+ */
+public class ResultReceiver {
+	private final ServerSocketChannel server;
+	private final String address;
+	/** Results received so far, by full task path. */
+	private final Map<String, byte[]> results = new ConcurrentHashMap<>();
+	private final ExecutorService connections = Executors.newCachedThreadPool((r) -> {
+		Thread t = new Thread(r, "result-receiver");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Opens the listener on an ephemeral port.
+	 * @param host Host (address) workers should connect to.
+	 */
+	public ResultReceiver(String host) throws IOException {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(host, 0));
+		address = host + ":" + ((InetSocketAddress) server.getLocalAddress()).getPort();
+		connections.execute(this::acceptLoop);
+	}
+
+	/** "host:port" to publish in the task header. */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * Take the result of the given task, null if it was not received. Non-blocking: workers
+	 * only publish the marker once we acknowledged the result.
+	 */
+	public byte[] take(String taskPath) {
+		return results.remove(taskPath);
+	}
+
+	public void close() throws IOException {
+		server.close();
+		connections.shutdownNow();
+	}
+
+	private void acceptLoop() {
+		while (server.isOpen()) {
+			try {
+				SocketChannel socket = server.accept();
+				connections.execute(() -> receive(socket));
+			} catch (IOException e) {
+				if (server.isOpen()) System.out.println("DISTAPP : ResultReceiver : accept failed : " + e);
+			}
+		}
+	}
+
+	private void receive(SocketChannel socket) {
+		try (socket) {
+			DataInputStream header = new DataInputStream(Channels.newInputStream(socket));
+			String taskPath = header.readUTF();
+			long length = header.readLong();
+
+			ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(length));
+			while (buffer.hasRemaining()) {
+				if (socket.read(buffer) < 0) throw new EOFException("Worker closed the connection early");
+			}
+			results.put(taskPath, buffer.array());
+
+			ByteBuffer ack = ByteBuffer.wrap(new byte[] {1});
+			while (ack.hasRemaining()) socket.write(ack);
+			System.out.println("DISTAPP : ResultReceiver : received " + length + " bytes for " + taskPath);
+		} catch (IOException | ArithmeticException e) {
+			System.out.println("DISTAPP : ResultReceiver : receive failed : " + e);
+		}
+	}
+
+}
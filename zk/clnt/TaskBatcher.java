@@ -0,0 +1,204 @@
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.ZooDefs.Ids;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packs small tasks into {@link BatchTask}s, so that tasks computing in microseconds don't pay a
+ * task ZNode, an assignment, a result and their watches each. Tasks submitted are held until the
+ * batch has BATCH_MAX_TASKS_50 tasks (100), reaches BATCH_MAX_BYTES_50 bytes serialized (256 KB,
+ * results must fit in a ZNode too), or the first one has waited BATCH_LINGER_MS_50 ms (5). The
+ * batch is then submitted like any task and each task gets its result through its future.
+ * With BATCH_PARALLEL_50 set, workers compute the entries of a batch in parallel.
+ * <p>
+ * Futures are completed on the ZK event thread: chain with the *Async methods to do anything long.
+ * Results always go through ZK (no streaming). Admission is checked once per batch.
+ * <p>
+ * Demo launcher: {@code runClient.sh <samples> TaskBatcher} computes {@link #DEMO_TASKS} MCPi
+ * estimates in batches and averages them.
+ */
+public class TaskBatcher implements AutoCloseable {
+	static final int MAX_TASKS = Integer.parseInt(Objects.requireNonNullElse(System.getenv("BATCH_MAX_TASKS_50"), "100"));
+	static final int MAX_BYTES = Integer.parseInt(Objects.requireNonNullElse(System.getenv("BATCH_MAX_BYTES_50"), "262144"));
+	static final long LINGER_MS = Long.parseLong(Objects.requireNonNullElse(System.getenv("BATCH_LINGER_MS_50"), "5"));
+	static final boolean PARALLEL = System.getenv("BATCH_PARALLEL_50") != null;
+
+	static final int DEMO_TASKS = 1000;
+
+	/**
+	 * The task threw on the worker, or the platform gave up on its batch (its future completes
+	 * exceptionally with this).
+	 */
+	public static class TaskFailedException extends Exception {
+		public TaskFailedException(String message) {
+			super(message);
+		}
+	}
+
+	/** Future of a task, which also tells how many tasks were sent in its batch. */
+	public static class BatchedFuture<T> extends CompletableFuture<T> {
+		private volatile int batchSize;
+
+		/** Number of tasks in the batch this one was sent in, 0 until it is sent. */
+		public int getBatchSize() {
+			return batchSize;
+		}
+	}
+
+	private final ZooKeeper zk;
+	/** Sends the batches, in order (admission may block it). */
+	private final ScheduledExecutorService sender =
+		Executors.newSingleThreadScheduledExecutor((r) -> new Thread(r, "batcher"));
+
+	// Batch being filled
+	private List<DistTask> tasks = new ArrayList<>();
+	private List<BatchedFuture<DistTask>> futures = new ArrayList<>();
+	private int bytes = 0;
+	private ScheduledFuture<?> linger;
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong submitted = new AtomicLong();
+
+	public TaskBatcher(ZooKeeper zk) {
+		this.zk = zk;
+	}
+
+	/** Add a task to the current batch. The future gets the computed task. */
+	@SuppressWarnings("unchecked")
+	public synchronized <T extends DistTask> BatchedFuture<T> submit(T task) throws IOException {
+		int size = TaskEnvelope.serialize(task).length;
+		if (!tasks.isEmpty() && bytes + size > MAX_BYTES) flush();
+
+		BatchedFuture<DistTask> future = new BatchedFuture<>();
+		tasks.add(task);
+		futures.add(future);
+		bytes += size;
+		submitted.incrementAndGet();
+		if (tasks.size() >= MAX_TASKS || bytes >= MAX_BYTES) flush();
+		else if (linger == null) linger = sender.schedule(this::flush, LINGER_MS, TimeUnit.MILLISECONDS);
+		return (BatchedFuture<T>) future;
+	}
+
+	/** Send the current batch now, if there is one. */
+	public synchronized void flush() {
+		if (linger != null) {
+			linger.cancel(false);
+			linger = null;
+		}
+		if (tasks.isEmpty()) return;
+		List<DistTask> batch = tasks;
+		List<BatchedFuture<DistTask>> waiting = futures;
+		for (BatchedFuture<DistTask> future : waiting) future.batchSize = batch.size();
+		tasks = new ArrayList<>();
+		futures = new ArrayList<>();
+		bytes = 0;
+		sender.execute(() -> send(batch, waiting));
+	}
+
+	private void send(List<DistTask> batch, List<BatchedFuture<DistTask>> waiting) {
+		try {
+			AdmissionGate.admit(zk, AdmissionGate.TENANT);
+			Map<String, String> headers = new LinkedHashMap<>();
+			headers.put(TaskEnvelope.TASK_CLASS, BatchTask.class.getName());
+			headers.put(TaskEnvelope.TENANT, AdmissionGate.TENANT);
+			String task = zk.create(DistClient.taskParent(zk) + "/task-", TaskEnvelope.encodeTask(headers, new BatchTask(batch, PARALLEL)),
+				Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+			batches.incrementAndGet();
+			awaitResult(task, waiting);
+		} catch (IOException | KeeperException e) {
+			fail(waiting, e);
+		} catch (InterruptedException e) {
+			fail(waiting, e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Watch for the result of the batch, unpack it into the futures and delete the batch. */
+	private void awaitResult(String task, List<BatchedFuture<DistTask>> waiting) {
+		String result = task + "/result";
+		AsyncCallback.DataCallback resultCB = (rc, path, ctx, data, stat) -> {
+			if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
+				fail(waiting, KeeperException.create(KeeperException.Code.get(rc), path));
+				return;
+			}
+			zk.delete(result, -1, null, null);
+			zk.delete(task, -1, null, null);
+			String error = TaskEnvelope.errorOf(data);
+			if (error != null) {
+				System.out.println("DISTAPP : TaskBatcher : Batch of " + waiting.size() + " failed: " + error);
+				for (CompletableFuture<DistTask> future : waiting) future.completeExceptionally(new TaskFailedException(error));
+				return;
+			}
+			BatchTask done;
+			try {
+				done = (BatchTask) TaskEnvelope.decode(data).getTask();
+			} catch (IOException | ClassNotFoundException e) {
+				fail(waiting, e);
+				return;
+			}
+			for (int i = 0; i < done.size(); i++) {
+				if (done.getError(i) == null) waiting.get(i).complete(done.get(i));
+				else waiting.get(i).completeExceptionally(new TaskFailedException(done.getError(i)));
+			}
+		};
+		// Read the result once created, or right away if it was before the watch was set.
+		zk.exists(result, (event) -> {
+			if (event.getType() == Watcher.Event.EventType.NodeCreated) zk.getData(result, false, resultCB, null);
+		}, (rc, path, ctx, stat) -> {
+			if (stat != null) zk.getData(result, false, resultCB, null);
+		}, null);
+	}
+
+	private static void fail(List<BatchedFuture<DistTask>> waiting, Exception e) {
+		System.out.println("DISTAPP : TaskBatcher : Batch of " + waiting.size() + " failed: " + e);
+		for (CompletableFuture<DistTask> future : waiting) future.completeExceptionally(e);
+	}
+
+	/** Send what's left. Results of the batches sent still come back (don't close ZK before). */
+	@Override
+	public void close() {
+		flush();
+		sender.shutdown();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public static void main(String[] args) throws Exception {
+		long n = Long.parseLong(args[0]);
+		CountDownLatch connected = new CountDownLatch(1);
+		ZooKeeper zk = new ZooKeeper(System.getenv("ZKSERVER"), 10000, (event) -> {
+			if (event.getState() == Watcher.Event.KeeperState.SyncConnected) connected.countDown();
+		});
+		connected.await();
+
+		long start = System.nanoTime();
+		List<CompletableFuture<MCPi>> results = new ArrayList<>();
+		TaskBatcher batcher = new TaskBatcher(zk);
+		for (int i = 0; i < DEMO_TASKS; i++) results.add(batcher.submit(new MCPi(n)));
+		batcher.close();
+
+		double sum = 0;
+		int failed = 0;
+		for (CompletableFuture<MCPi> result : results) {
+			try {
+				sum += result.get().getPi();
+			} catch (ExecutionException e) {
+				failed++;
+			}
+		}
+		System.out.printf("DISTAPP : TaskBatcher : %d tasks in %d batches, %.1f ms (%d failed)\n",
+			batcher.getSubmitted(), batcher.getBatches(), (System.nanoTime() - start) / 1e6, failed);
+		System.out.println(sum / Math.max(1, DEMO_TASKS - failed));
+		zk.close();
+	}
+
+}
@@ -0,0 +1,178 @@
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control: under overload, tell clients to hold back their tasks instead of letting the
+ * backlog (and ZK's memory, and everybody's latency) grow without bound. Every
+ * {@link #PERIOD_MS}, we publish an {@link AdmissionState} in /dist50/admission, which clients
+ * read before submitting (see AdmissionGate), and only write it when it changes.
+ * <ul>
+ *     <li>ADMIT_MAX_PENDING_50: closed to everybody while this many tasks are pending.</li>
+ *     <li>ADMIT_MAX_TENANT_50: closed to a tenant ({@link TaskEnvelope#TENANT} header) while it
+ *     has this many tasks pending, so that one tenant's surge doesn't lock the others out.</li>
+ *     <li>ADMIT_RATE_50 (tasks/s) and ADMIT_BURST_50: token bucket on arrivals. Closed while
+ *     the bucket is empty.</li>
+ * </ul>
+ * Limits on pending tasks reopen below 90% of the limit (hysteresis), so that waiting clients
+ * don't all rush in and close it again right away. A limit of 0 is no limit. Since pending tasks
+ * are bounded, so is the wait of admitted tasks (about pending x mean task time / workers).
+ * <p>
+ * Clients that don't check (or check before we close) still get their tasks queued: this is
+ * backpressure, not enforcement. Not supported with scheduler shards (each shard only sees part
+ * of the backlog).
+ */
+public class AdmissionController {
+	static final String PATH = "/dist50/admission";
+	static final int MAX_PENDING = Integer.parseInt(
+		Objects.requireNonNullElse(System.getenv("ADMIT_MAX_PENDING_50"), "0"));
+	static final int MAX_TENANT_PENDING = Integer.parseInt(
+		Objects.requireNonNullElse(System.getenv("ADMIT_MAX_TENANT_50"), "0"));
+	/** Tasks per second (0 = no rate limit). */
+	static final double RATE = Double.parseDouble(
+		Objects.requireNonNullElse(System.getenv("ADMIT_RATE_50"), "0"));
+	/** Size of the token bucket, defaults to one second worth of tasks. */
+	static final double BURST = Double.parseDouble(
+		Objects.requireNonNullElse(System.getenv("ADMIT_BURST_50"), Double.toString(Math.max(1, RATE))));
+
+	static final long PERIOD_MS = 250;
+	/** Fraction of a limit under which we reopen. */
+	static final double REOPEN_AT = 0.9;
+
+	private final Coordination zk;
+	private final Master master;
+	private final ShardMap shards;
+	private final ScheduledExecutorService scheduler =
+		Executors.newSingleThreadScheduledExecutor((r) -> new Thread(r, "admission"));
+	private boolean enabled = false;
+
+	private final AtomicLong arrivals = new AtomicLong();
+	private double tokens = BURST;
+	private long lastTick = System.currentTimeMillis();
+
+	/** What we last published. Only used on the admission thread. */
+	private byte[] published = null;
+	private boolean globalClosed = false;
+	private final Set<String> closedTenants = new TreeSet<>();
+	private volatile AdmissionState state = AdmissionState.OPEN;
+	private final AtomicLong closings = new AtomicLong();
+
+	public AdmissionController(Coordination zk, Master master, ShardMap shards) {
+		this.zk = zk;
+		this.master = master;
+		this.shards = shards;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Start publishing on our own thread. If disabled, only make sure nobody is held back. */
+	public void start() {
+		String sig = Col.B_GREEN.fg("AdmissionController/start") + " : ";
+		if (shards.isSharded() || (MAX_PENDING <= 0 && MAX_TENANT_PENDING <= 0 && RATE <= 0)) {
+			if (shards.isSharded() && (MAX_PENDING > 0 || MAX_TENANT_PENDING > 0 || RATE > 0))
+				System.out.println(sig + Col.YELLOW.fg("Admission control is not supported with shards, disabled."));
+			scheduler.execute(() -> publish(AdmissionState.OPEN)); // Reopen if a previous master closed it
+			return;
+		}
+		enabled = true;
+		scheduler.scheduleWithFixedDelay(this::tick, 0, PERIOD_MS, TimeUnit.MILLISECONDS);
+		System.out.printf(sig + "Admitting up to %s pending tasks, %s per tenant, %s tasks/s (burst %.0f).\n",
+			MAX_PENDING > 0 ? MAX_PENDING : "unlimited", MAX_TENANT_PENDING > 0 ? MAX_TENANT_PENDING : "unlimited",
+			RATE > 0 ? RATE : "unlimited", BURST);
+	}
+
+	/** A task was queued. */
+	public void taskArrived() {
+		arrivals.incrementAndGet();
+	}
+
+	public void printStats() {
+		if (!enabled) {
+			System.out.println("Admission control is disabled");
+			return;
+		}
+		System.out.println("Admission is " + state);
+		System.out.println("Closed " + closings.get() + " times so far");
+	}
+
+	/** Recompute the state, publish it if it changed. */
+	private void tick() {
+		String sig = Col.B_GREEN.fg("AdmissionController/tick") + " : ";
+		try {
+			long now = System.currentTimeMillis();
+			Map<String, Integer> pending = master.pendingByTenant();
+			int total = pending.values().stream().mapToInt(Integer::intValue).sum();
+
+			String reason = "";
+			long retryAfterMs = 0;
+			if (MAX_PENDING > 0) {
+				globalClosed = globalClosed ? total >= MAX_PENDING * REOPEN_AT : total >= MAX_PENDING;
+				if (globalClosed) reason = total + " tasks pending (max " + MAX_PENDING + ")";
+			}
+			if (RATE > 0) {
+				// Tasks admitted before clients saw us close are a debt, but no more than a burst.
+				tokens = Math.max(-BURST, Math.min(BURST, tokens + RATE * (now - lastTick) / 1000D) - arrivals.getAndSet(0));
+				if (tokens < 1) {
+					retryAfterMs = (long) Math.ceil((1 - tokens) / RATE * 1000);
+					if (reason.isEmpty()) reason = String.format("over %.1f tasks/s", RATE);
+				}
+			}
+			lastTick = now;
+
+			if (MAX_TENANT_PENDING > 0) {
+				closedTenants.removeIf((tenant) -> pending.getOrDefault(tenant, 0) < MAX_TENANT_PENDING * REOPEN_AT);
+				for (Map.Entry<String, Integer> tenant : pending.entrySet()) {
+					if (tenant.getValue() >= MAX_TENANT_PENDING) closedTenants.add(tenant.getKey());
+				}
+			}
+
+			AdmissionState next = new AdmissionState(reason.isEmpty(), reason,
+				Math.max(retryAfterMs, reason.isEmpty() ? 0 : PERIOD_MS), new TreeSet<>(closedTenants));
+			if (state.isOpen() && !next.isOpen()) {
+				closings.incrementAndGet();
+				System.out.println(sig + Col.YELLOW.fg("Admission closed : " + reason));
+			}
+			else if (!state.isOpen() && next.isOpen()) {
+				System.out.println(sig + Col.GREEN.fg("Admission reopened"));
+			}
+			state = next;
+			publish(next);
+		} catch (RuntimeException e) {
+			// Never let an exception cancel the periodic task.
+			System.err.println(sig + Col.RED.fg("Admission update failed: " + e));
+			e.printStackTrace();
+		}
+	}
+
+	private void publish(AdmissionState next) {
+		String sig = Col.B_GREEN.fg("AdmissionController/publish") + " : ";
+		byte[] data = next.encode();
+		if (Arrays.equals(data, published)) return;
+		try {
+			try {
+				zk.setData(PATH, data, -1);
+			} catch (KeeperException.NoNodeException e) {
+				zk.create(PATH, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			}
+			published = data;
+			if (DistProcess.LOOP_PRINT) System.out.println(sig + "Admission is " + next);
+		} catch (KeeperException e) {
+			System.err.println(sig + Col.RED.fg("Could not publish the admission state : " + e));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Data of an assignment ZNode (/dist50/assignments/worker-x): the name of the task, and for small
+ * tasks, the data of the task ZNode itself (inlined by the Master), so that the worker can start
+ * computing after a single read instead of two. Also how long the task waited on the Master, for
+ * its {@link TaskUsage}. The Master takes a task back (it timed out) by rewriting the assignment
+ * as {@link #takeBack(String)}: the worker deletes it once its computation has actually stopped.
+ * <p>
+ * Format: MAGIC (int), task name (UTF), payload length (int, -1 = not inlined), payload, wait in
+ * ms (long, absent before it was added), taken back (boolean, absent before it was added). Data
+ * without the magic is just the task name, as written before payloads were inlined.
+ */
+public final class Assignment {
+	/** "D50A" */
+	static final int MAGIC = 0x44353041;
+	/** Largest task payload inlined in an assignment, in bytes (0 = never inline). */
+	static final int INLINE_MAX_BYTES = Integer.parseInt(
+		Objects.requireNonNullElse(System.getenv("INLINE_TASK_BYTES_50"), "4096"));
+
+	private final String task;
+	private final byte[] payload;
+	private final long waitMillis;
+	private final boolean takenBack;
+
+	private Assignment(String task, byte[] payload, long waitMillis, boolean takenBack) {
+		this.task = task;
+		this.payload = payload;
+		this.waitMillis = waitMillis;
+		this.takenBack = takenBack;
+	}
+
+	/** Name of the task (relative to /dist50/tasks). */
+	public String getTask() {
+		return task;
+	}
+
+	public boolean isInline() {
+		return payload != null;
+	}
+
+	/** Data of the task ZNode, null if not inlined. */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/** Time the task spent queued on the Master before this assignment, in ms (0 if unknown). */
+	public long getWaitMillis() {
+		return waitMillis;
+	}
+
+	/** Whether the Master took the task back: the worker is to stop computing it. */
+	public boolean isTakenBack() {
+		return takenBack;
+	}
+
+	/**
+	 * @param payload Data of the task ZNode, or null to only send the name.
+	 * @param waitMillis Time the task spent queued.
+	 */
+	public static byte[] encode(String task, byte[] payload, long waitMillis) {
+		return encode(task, payload, waitMillis, false);
+	}
+
+	/** The assignment of a task taken back from its worker. */
+	public static byte[] takeBack(String task) {
+		return encode(task, null, 0, true);
+	}
+
+	private static byte[] encode(String task, byte[] payload, long waitMillis, boolean takenBack) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream((payload == null ? 0 : payload.length) + task.length() + 25);
+			DataOutputStream out = new DataOutputStream(bos);
+			out.writeInt(MAGIC);
+			out.writeUTF(task);
+			out.writeInt(payload == null ? -1 : payload.length);
+			if (payload != null) out.write(payload);
+			out.writeLong(waitMillis);
+			out.writeBoolean(takenBack);
+			out.flush();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Can't happen in memory
+		}
+	}
+
+	public static Assignment decode(byte[] data) {
+		boolean hasMagic = data.length >= 4
+			&& ((data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16 | (data[2] & 0xFF) << 8 | (data[3] & 0xFF)) == MAGIC;
+		if (!hasMagic) return new Assignment(new String(data, StandardCharsets.UTF_8), null, 0, false);
+
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			in.readInt();
+			String task = in.readUTF();
+			int length = in.readInt();
+			byte[] payload = null;
+			if (length >= 0) {
+				payload = new byte[length];
+				in.readFully(payload);
+			}
+			long waitMillis = in.available() >= 8 ? in.readLong() : 0;
+			boolean takenBack = in.available() >= 1 && in.readBoolean();
+			return new Assignment(task, payload, waitMillis, takenBack);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Corrupted assignment", e);
+		}
+	}
+
+}
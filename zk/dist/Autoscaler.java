@@ -0,0 +1,226 @@
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scales the number of workers with the backlog, so that we don't have to keep enough workers up
+ * all day for the peaks. Enabled by setting AUTOSCALE_50 to a {@link WorkerLauncher} ("local").
+ * <p>
+ * Every {@link #PERIOD_SECONDS}, we estimate the arrival rate and the mean task duration
+ * (exponentially weighted), and from them the number of workers needed to keep up with arrivals
+ * AND drain the current backlog within AUTOSCALE_TARGET_50 seconds. Bounded by AUTOSCALE_MIN_50
+ * and AUTOSCALE_MAX_50.
+ * <ul>
+ *     <li>Scaling up is immediate. Workers we launched but that have not joined yet count as
+ *     workers (for up to {@link #START_TIMEOUT_MS}), so we don't launch them twice.</li>
+ *     <li>Scaling down only happens once we have wanted fewer workers for AUTOSCALE_COOLDOWN_50
+ *     seconds in a row (hysteresis), and only idle workers are retired. They are drained
+ *     through ZK: no new assignments, and the worker exits by itself.</li>
+ * </ul>
+ * Not supported with scheduler shards (every shard master sees every worker, they would all
+ * scale the same pool).
+ */
+public class Autoscaler {
+	/** Name of the launcher to use, null if autoscaling is disabled. */
+	static final String LAUNCHER = System.getenv("AUTOSCALE_50");
+	static final int MIN_WORKERS = Integer.parseInt(
+		Objects.requireNonNullElse(System.getenv("AUTOSCALE_MIN_50"), "1"));
+	static final int MAX_WORKERS = Integer.parseInt(
+		Objects.requireNonNullElse(System.getenv("AUTOSCALE_MAX_50"), "8"));
+	/** How fast the backlog should drain, in seconds. */
+	static final long TARGET_DRAIN_SECONDS = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("AUTOSCALE_TARGET_50"), "60"));
+	/** How long we must want fewer workers before retiring any, in seconds. */
+	static final long COOLDOWN_SECONDS = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("AUTOSCALE_COOLDOWN_50"), "60"));
+
+	static final long PERIOD_SECONDS = 5;
+	/** A launched worker that hasn't joined after this long is considered failed. */
+	static final long START_TIMEOUT_MS = 60000;
+	/** Weight of the newest sample in the moving averages. */
+	private static final double ALPHA = 0.3;
+
+	/** What the autoscaler needs to know of the Master's state. Draining workers are left out. */
+	static class Load {
+		final int pending;
+		final int workers;
+		final List<String> idle;
+
+		Load(int pending, int workers, List<String> idle) {
+			this.pending = pending;
+			this.workers = workers;
+			this.idle = idle;
+		}
+	}
+
+	private final Coordination zk;
+	private final Master master;
+	private final ShardMap shards;
+	private WorkerLauncher launcher;
+	private final ScheduledExecutorService scheduler =
+		Executors.newSingleThreadScheduledExecutor((r) -> new Thread(r, "autoscaler"));
+
+	private final AtomicLong arrivals = new AtomicLong();
+	/** Launch times of the workers that have not joined yet. Only used on the autoscaler thread. */
+	private final Deque<Long> starting = new ArrayDeque<>();
+	private final AtomicLong joined = new AtomicLong();
+	private long lastTick = System.currentTimeMillis();
+	/** Since when we want fewer workers than we have (0 = we don't). */
+	private long surplusSince = 0;
+
+	/** Moving averages, NaN until we have a sample. */
+	private volatile double arrivalRate = Double.NaN;
+	private volatile double meanTaskMs = Double.NaN;
+	/** Last estimate, for the master's "autoscale" command. */
+	private volatile String lastEstimate = "No estimate yet";
+	private final AtomicLong launched = new AtomicLong();
+	private final AtomicLong retired = new AtomicLong();
+
+	public Autoscaler(Coordination zk, Master master, ShardMap shards) {
+		this.zk = zk;
+		this.master = master;
+		this.shards = shards;
+	}
+
+	public boolean isEnabled() {
+		return launcher != null;
+	}
+
+	/** Start scaling on our own thread, if enabled. */
+	public void start() {
+		String sig = Col.B_GREEN.fg("Autoscaler/start") + " : ";
+		if (LAUNCHER == null) return;
+		if (shards.isSharded()) {
+			System.out.println(sig + Col.YELLOW.fg("Autoscaling is not supported with shards, disabled."));
+			return;
+		}
+		launcher = WorkerLauncher.named(LAUNCHER);
+		scheduler.execute(this::createDrainRoot); // We're on the event thread, can't block here
+		scheduler.scheduleWithFixedDelay(this::tick, PERIOD_SECONDS, PERIOD_SECONDS, TimeUnit.SECONDS);
+		System.out.printf(sig + "Scaling between %d and %d workers with the %s launcher, target drain time %ds.\n",
+			MIN_WORKERS, MAX_WORKERS, LAUNCHER, TARGET_DRAIN_SECONDS);
+	}
+
+	/** A task was queued. */
+	public void taskArrived() {
+		arrivals.incrementAndGet();
+	}
+
+	/** A task finished after running for the given time. */
+	public synchronized void taskCompleted(long durationMs) {
+		meanTaskMs = Double.isNaN(meanTaskMs) ? durationMs : ALPHA * durationMs + (1 - ALPHA) * meanTaskMs;
+	}
+
+	/** A worker joined, possibly one we launched. */
+	public void workerJoined() {
+		joined.incrementAndGet();
+	}
+
+	public void printStats() {
+		if (!isEnabled()) {
+			System.out.println("Autoscaling is disabled");
+			return;
+		}
+		System.out.println(lastEstimate);
+		System.out.printf("Launched %d workers, retired %d in total (%d of ours still running)\n",
+			launched.get(), retired.get(), launcher.running());
+	}
+
+	private void createDrainRoot() {
+		try {
+			zk.create("/dist50/drain", "Contains drain requests (exists -> worker must exit once idle)".getBytes(),
+				ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		} catch (KeeperException.NodeExistsException ignored) {
+			// Created by ZKReset or a previous master
+		} catch (KeeperException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** One scaling decision. */
+	private void tick() {
+		String sig = Col.B_GREEN.fg("Autoscaler/tick") + " : ";
+		try {
+			long now = System.currentTimeMillis();
+			double rate = arrivals.getAndSet(0) * 1000D / Math.max(1, now - lastTick);
+			lastTick = now;
+			arrivalRate = Double.isNaN(arrivalRate) ? rate : ALPHA * rate + (1 - ALPHA) * arrivalRate;
+
+			// Launched workers that joined (or never will) are no longer starting.
+			for (long n = joined.getAndSet(0); n > 0 && !starting.isEmpty(); n--) starting.poll();
+			starting.removeIf((launchedAt) -> now - launchedAt > START_TIMEOUT_MS);
+
+			Load load = master.load();
+			int workers = load.workers + starting.size();
+			int desired = desiredWorkers(load, workers);
+
+			double drainSeconds = Double.isNaN(meanTaskMs) || workers == 0
+				? (load.pending == 0 ? 0 : Double.POSITIVE_INFINITY)
+				: load.pending * meanTaskMs / 1000D / workers;
+			lastEstimate = String.format("Backlog %d, workers %d (%d idle, %d starting), arrivals %.2f/s, "
+					+ "mean task %.1fs, drain time %.1fs => want %d workers",
+				load.pending, load.workers, load.idle.size(), starting.size(), arrivalRate, meanTaskMs / 1000D,
+				drainSeconds, desired);
+			if (DistProcess.LOOP_PRINT) System.out.println(sig + lastEstimate);
+
+			if (desired > workers) {
+				surplusSince = 0;
+				System.out.println(sig + Col.GREEN.fg(lastEstimate + ", launching " + (desired - workers)));
+				for (int i = workers; i < desired; i++) {
+					launcher.launch();
+					starting.add(now);
+					launched.incrementAndGet();
+				}
+			}
+			else if (desired < workers && starting.isEmpty() && !load.idle.isEmpty()) {
+				if (surplusSince == 0) surplusSince = now;
+				if (now - surplusSince >= COOLDOWN_SECONDS * 1000) {
+					surplusSince = 0; // Wait for another full cooldown before retiring more
+					int surplus = Math.min(workers - desired, load.idle.size());
+					System.out.println(sig + Col.YELLOW.fg(lastEstimate + ", retiring " + surplus));
+					// Most recently joined first: manually started workers tend to be the oldest.
+					for (int i = load.idle.size() - 1; i >= load.idle.size() - surplus; i--) {
+						if (master.drain(load.idle.get(i))) retired.incrementAndGet();
+					}
+				}
+			}
+			else {
+				surplusSince = 0;
+			}
+		} catch (IOException | RuntimeException e) {
+			// Never let an exception cancel the periodic task.
+			System.err.println(sig + Col.RED.fg("Scaling failed: " + e));
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Workers needed to keep up with arrivals (arrival rate x mean task time, Little's law) plus
+	 * those needed to drain the backlog in time. Without any completed task yet, we can't estimate
+	 * anything: add a worker as long as tasks are waiting and nobody is idle.
+	 */
+	private int desiredWorkers(Load load, int workers) {
+		int desired;
+		if (Double.isNaN(meanTaskMs)) {
+			desired = workers + (load.pending > 0 && load.idle.isEmpty() ? 1 : 0);
+		}
+		else {
+			double meanTaskSeconds = meanTaskMs / 1000D;
+			desired = (int) Math.ceil(arrivalRate * meanTaskSeconds
+				+ load.pending * meanTaskSeconds / Math.max(1, TARGET_DRAIN_SECONDS));
+			if (load.pending > 0) desired = Math.max(desired, 1);
+		}
+		return Math.max(MIN_WORKERS, Math.min(MAX_WORKERS, desired));
+	}
+
+}
@@ -0,0 +1,105 @@
+import java.util.*;
+
+/**
+ * Wraps the policy if BROADCAST_AFFINITY_50 is set (see {@link SchedulingPolicy#fromEnv}) to send
+ * tasks referencing broadcasts ({@link TaskEnvelope#BROADCASTS} header) to idle workers that likely
+ * have them cached already: those which were recently assigned tasks using the same broadcasts.
+ * Among these, the wrapped policy makes the choice; if there is none, it chooses among all idle
+ * workers. Only idle workers are considered, so affinity never leaves a task waiting.
+ * <p>
+ * What workers have cached is a guess, we don't know their cache sizes: we remember the last
+ * {@link #REMEMBERED} broadcasts of each.
+ */
+public class BroadcastAffinityPolicy implements SchedulingPolicy {
+	static final int REMEMBERED = 16;
+
+	private final SchedulingPolicy policy;
+	/** Broadcasts of each queued or running task that has any. */
+	private final Map<String, List<String>> taskBroadcasts = new HashMap<>();
+	/** Broadcasts each worker used recently, least recent first. */
+	private final Map<String, LinkedHashSet<String>> workerBroadcasts = new HashMap<>();
+
+	public BroadcastAffinityPolicy(SchedulingPolicy policy) {
+		this.policy = policy;
+	}
+
+	@Override
+	public String nextTask(Collection<String> pending, long now) {
+		return policy.nextTask(pending, now);
+	}
+
+	@Override
+	public String pickWorker(String task, List<String> idle, long now) {
+		List<String> broadcasts = taskBroadcasts.get(task);
+		if (broadcasts == null) return policy.pickWorker(task, idle, now);
+
+		// Workers which have the most of the task's broadcasts.
+		List<String> warm = new ArrayList<>();
+		int best = 1;
+		for (String worker : idle) {
+			Set<String> cached = workerBroadcasts.getOrDefault(worker, new LinkedHashSet<>());
+			int n = 0;
+			for (String broadcast : broadcasts) if (cached.contains(broadcast)) n++;
+			if (n > best) {
+				warm.clear();
+				best = n;
+			}
+			if (n == best) warm.add(worker);
+		}
+		return policy.pickWorker(task, warm.isEmpty() ? idle : warm, now);
+	}
+
+	@Override
+	public void taskQueued(String task, long now) {
+		policy.taskQueued(task, now);
+	}
+
+	@Override
+	public boolean wantsHeaders() {
+		return true;
+	}
+
+	@Override
+	public void taskHeaders(String task, Map<String, String> headers) {
+		String broadcasts = headers.get(TaskEnvelope.BROADCASTS);
+		if (broadcasts != null) taskBroadcasts.put(task, Arrays.asList(broadcasts.split(",")));
+		policy.taskHeaders(task, headers);
+	}
+
+	@Override
+	public void taskAssigned(String task, String worker, long now) {
+		List<String> broadcasts = taskBroadcasts.get(task);
+		if (broadcasts != null) {
+			LinkedHashSet<String> cached = workerBroadcasts.computeIfAbsent(worker, (w) -> new LinkedHashSet<>());
+			for (String broadcast : broadcasts) {
+				cached.remove(broadcast); // Re-insert as most recent
+				cached.add(broadcast);
+			}
+			Iterator<String> lru = cached.iterator();
+			while (cached.size() > REMEMBERED) {
+				lru.next();
+				lru.remove();
+			}
+		}
+		policy.taskAssigned(task, worker, now);
+	}
+
+	@Override
+	public void taskCompleted(String task, String worker, long assignedAt, long now) {
+		taskBroadcasts.remove(task);
+		policy.taskCompleted(task, worker, assignedAt, now);
+	}
+
+	@Override
+	public void taskDropped(String task) {
+		taskBroadcasts.remove(task);
+		policy.taskDropped(task);
+	}
+
+	@Override
+	public void workerLeft(String worker, long now) {
+		workerBroadcasts.remove(worker);
+		policy.workerLeft(worker, now);
+	}
+
+}
@@ -0,0 +1,229 @@
+import org.apache.zookeeper.KeeperException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The worker's cache of {@link Broadcast} objects, so that a broadcast is fetched from ZK and
+ * deserialized once, not for every task that uses it. Least recently used entries are evicted
+ * once the cache holds more than BROADCAST_CACHE_MB_50 (sizes are serialized sizes).
+ * <p>
+ * By default the decoded objects are kept on the heap. With BROADCAST_CACHE_50=mapped, only the
+ * serialized bytes are kept, in memory-mapped temporary files (off the heap, and the OS can page
+ * them out): every use deserializes again, but nothing is fetched twice.
+ */
+public class BroadcastCache implements Broadcast.Resolver {
+	static final long CAPACITY_BYTES = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("BROADCAST_CACHE_MB_50"), "256")) * 1024 * 1024;
+	static final boolean MAPPED = "mapped".equalsIgnoreCase(System.getenv("BROADCAST_CACHE_50"));
+	/** How long to wait for a broadcast that is still being published, in ms. */
+	static final long PUBLISH_WAIT_MS = 30000;
+
+	private static class Entry {
+		final long size;
+		/** Decoded object (heap mode) or serialized bytes (mapped mode). */
+		final Object value;
+		final MappedByteBuffer mapped;
+
+		Entry(long size, Object value, MappedByteBuffer mapped) {
+			this.size = size;
+			this.value = value;
+			this.mapped = mapped;
+		}
+	}
+
+	private final Coordination zk;
+	/** In access order, eldest = least recently used. */
+	private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	/** Broadcasts being fetched, completed with their serialized bytes. */
+	private final Map<String, CompletableFuture<byte[]>> fetching = new HashMap<>();
+	private long usedBytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long fetchedBytes = 0;
+	/** Bytes we didn't have to fetch thanks to the cache. */
+	private long savedBytes = 0;
+
+	public BroadcastCache(Coordination zk) {
+		this.zk = zk;
+	}
+
+	/**
+	 * Called by the compute threads. A broadcast is fetched outside the lock, so that cache hits
+	 * don't wait for it, and only once: other tasks needing it meanwhile wait for that fetch.
+	 */
+	@Override
+	public Object resolve(String id) throws IOException {
+		CompletableFuture<byte[]> fetch = null;
+		ByteBuffer mapped = null;
+		synchronized (this) {
+			Entry entry = entries.get(id);
+			if (entry != null) {
+				hits++;
+				savedBytes += entry.size;
+				if (!MAPPED) return entry.value;
+				mapped = entry.mapped.duplicate();
+			}
+			else {
+				fetch = fetching.get(id);
+				if (fetch == null) {
+					misses++;
+					fetching.put(id, new CompletableFuture<>());
+				}
+			}
+		}
+		if (mapped != null) return deserialize(new ByteBufferInputStream(mapped));
+		return fetch == null ? fetchAndCache(id) : awaitFetch(id, fetch);
+	}
+
+	/** Fetch a broadcast nobody else is fetching, cache it, and hand it to those waiting for it. */
+	private Object fetchAndCache(String id) throws IOException {
+		byte[] data;
+		Object value;
+		MappedByteBuffer mapped;
+		try {
+			data = fetch(id);
+			value = deserialize(new ByteArrayInputStream(data));
+			mapped = MAPPED && data.length <= CAPACITY_BYTES ? map(data) : null;
+		} catch (Throwable e) {
+			// Whatever went wrong, those waiting must not wait forever.
+			synchronized (this) {
+				fetching.remove(id).completeExceptionally(e);
+			}
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while fetching broadcast " + id);
+			}
+			if (e instanceof KeeperException) throw new IOException(e);
+			if (e instanceof IOException) throw (IOException) e;
+			if (e instanceof RuntimeException) throw (RuntimeException) e;
+			throw (Error) e;
+		}
+
+		synchronized (this) {
+			fetchedBytes += data.length;
+			if (data.length <= CAPACITY_BYTES) {
+				entries.put(id, MAPPED ? new Entry(data.length, null, mapped) : new Entry(data.length, value, null));
+				usedBytes += data.length;
+				Iterator<Entry> lru = entries.values().iterator();
+				while (usedBytes > CAPACITY_BYTES) {
+					usedBytes -= lru.next().size;
+					lru.remove();
+					evictions++;
+				}
+			}
+			fetching.remove(id).complete(data);
+		}
+		return value;
+	}
+
+	/** Wait for another task's fetch of a broadcast: a hit, as it isn't fetched twice. */
+	private Object awaitFetch(String id, CompletableFuture<byte[]> fetch) throws IOException {
+		byte[] data;
+		try {
+			data = fetch.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Fetching broadcast " + id + " failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for broadcast " + id);
+		}
+		synchronized (this) {
+			hits++;
+			savedBytes += data.length;
+			// Same object as the other tasks, unless it was evicted already or is too big to cache.
+			Entry entry = entries.get(id);
+			if (!MAPPED && entry != null) return entry.value;
+		}
+		return deserialize(new ByteArrayInputStream(data));
+	}
+
+	public synchronized void printStats(String sig) {
+		if (hits + misses == 0) return;
+		System.out.printf(sig + "Broadcast cache: %d hits / %d lookups (%.1f%%), %d bytes fetched, %d bytes saved\n",
+			hits, hits + misses, 100D * hits / (hits + misses), fetchedBytes, savedBytes);
+		System.out.printf(sig + "  %d broadcasts cached (%s), %d of %d MB used, %d evictions\n",
+			entries.size(), MAPPED ? "mapped" : "heap", usedBytes >> 20, CAPACITY_BYTES >> 20, evictions);
+	}
+
+	/** Read the chunks of a broadcast, waiting a bit if its publication isn't complete. */
+	private byte[] fetch(String id) throws KeeperException, InterruptedException, IOException {
+		long[] manifest;
+		long deadline = System.currentTimeMillis() + PUBLISH_WAIT_MS;
+		while ((manifest = Broadcast.readManifest(zk.getData(Broadcast.ROOT + "/" + id, false, null))) == null) {
+			if (System.currentTimeMillis() > deadline)
+				throw new IOException("Broadcast " + id + " is still not completely published");
+			Thread.sleep(100);
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream((int) manifest[0]);
+		for (int chunk = 0; chunk < manifest[1]; chunk++) {
+			bos.write(zk.getData(Broadcast.chunkPath(id, chunk), false, null));
+		}
+		if (bos.size() != manifest[0])
+			throw new IOException("Broadcast " + id + " has " + bos.size() + " bytes instead of " + manifest[0]);
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Copy the bytes to a memory-mapped temporary file. The mapping outlives the file where files
+	 * can be deleted while mapped; elsewhere (Windows) the file is deleted when the worker exits.
+	 */
+	private static MappedByteBuffer map(byte[] data) throws IOException {
+		Path file = Files.createTempFile("dist50-broadcast", ".bin");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(data));
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, data.length);
+		} finally {
+			try {
+				Files.delete(file);
+			} catch (IOException e) {
+				file.toFile().deleteOnExit(); // Still mapped
+			}
+		}
+	}
+
+	private static Object deserialize(InputStream in) throws IOException {
+		try (ObjectInputStream ois = new ObjectInputStream(in)) {
+			return ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+
+import java.io.*;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically saves the progress of the {@link CheckpointableTask} a worker is running in the
+ * /checkpoint child of its task ZNode, so that whoever gets the task next (after a crash or a
+ * restart of the worker) resumes from there instead of starting over.
+ * <p>
+ * The checkpoint is a {@link TaskEnvelope} whose header holds the compute time the task had
+ * accumulated (over all its runs) when the snapshot was made: that's the work saved by resuming.
+ * The checkpoint is deleted in the transaction that stores the result (see
+ * {@link Worker#commitResult}), since clients delete their task once they got the result (and a
+ * task with children can't be deleted). Until then it stays, even if the task failed: the
+ * worker it is tried on next resumes from it.
+ */
+public class Checkpointer {
+	/** Seconds between checkpoints of a running task (0 = never checkpoint). */
+	static final long INTERVAL_SECONDS = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("CHECKPOINT_INTERVAL_50"), "60"));
+	/** Checkpoints larger than this are skipped (ZK's default max ZNode size is 1 MB). */
+	static final int MAX_BYTES = 1000000;
+	/** Header: compute time accumulated by the task when the checkpoint was made, in ms. */
+	static final String WORK_MS = "work-ms";
+
+	private final Coordination zk;
+	private final ScheduledExecutorService scheduler =
+		Executors.newSingleThreadScheduledExecutor((r) -> new Thread(r, "checkpoint"));
+	private ScheduledFuture<?> periodic;
+	/** Task whose checkpoint we resumed from or wrote last, null if none. */
+	private volatile String checkpointed;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong writtenBytes = new AtomicLong();
+	private final AtomicLong overheadNanos = new AtomicLong();
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong savedMs = new AtomicLong();
+
+	public Checkpointer(Coordination zk) {
+		this.zk = zk;
+	}
+
+	/**
+	 * Restore the task from its latest checkpoint, if it has one.
+	 * @return Compute time the task had accumulated (0 if it starts from scratch), in ms.
+	 */
+	public long resume(String sig, String taskPath, CheckpointableTask task)
+		throws KeeperException, InterruptedException, IOException, ClassNotFoundException {
+		byte[] data;
+		checkpointed = null;
+		try {
+			data = zk.getData(taskPath + "/checkpoint", false, null);
+		} catch (KeeperException.NoNodeException e) {
+			return 0;
+		}
+		checkpointed = taskPath;
+		TaskEnvelope checkpoint = TaskEnvelope.decode(data);
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(checkpoint.getTaskBytes()))) {
+			task.restore((Serializable) in.readObject());
+		}
+		long workMs = Long.parseLong(checkpoint.header(WORK_MS));
+		resumed.incrementAndGet();
+		savedMs.addAndGet(workMs);
+		System.out.println(sig + Col.GREEN.fg(String.format("Resumed from checkpoint, %.1f s of work saved", workMs / 1000D)));
+		return workMs;
+	}
+
+	/**
+	 * Start checkpointing the task every {@link #INTERVAL_SECONDS} while it runs.
+	 * @param priorWorkMs What {@link #resume} returned.
+	 */
+	public synchronized void start(String taskPath, CheckpointableTask task, long priorWorkMs) {
+		if (INTERVAL_SECONDS <= 0) return;
+		long startedAt = System.currentTimeMillis();
+		periodic = scheduler.scheduleAtFixedRate(
+			() -> save(taskPath, task, priorWorkMs + System.currentTimeMillis() - startedAt),
+			INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Whether the task has a checkpoint in ZK (we resumed from one or wrote one), for its result
+	 * to delete it. Call after {@link #stop()}.
+	 */
+	public boolean hasCheckpoint(String taskPath) {
+		return taskPath.equals(checkpointed);
+	}
+
+	/**
+	 * Stop checkpointing, keeping the checkpoint: the result deletes it, or the task was taken back
+	 * (or failed) and another worker resumes from it. Waits for a checkpoint in progress, so that
+	 * it can't re-create the node afterwards.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (periodic != null) {
+			periodic.cancel(false);
+			periodic = null;
+			try {
+				scheduler.submit(() -> {}).get(); // Single thread: runs after any checkpoint in progress
+			} catch (ExecutionException ignored) {}
+		}
+	}
+
+	public void printStats(String sig) {
+		long n = written.get();
+		if (n > 0) {
+			System.out.printf(sig + "%d checkpoints written, %.3f ms and %d bytes on average\n",
+				n, overheadNanos.get() / 1e6 / n, writtenBytes.get() / n);
+		}
+		if (resumed.get() > 0) {
+			System.out.printf(sig + "Resumed %d tasks from checkpoints, saving %.1f s of work\n",
+				resumed.get(), savedMs.get() / 1000D);
+		}
+	}
+
+	/** Make and store one checkpoint, on the checkpoint thread. Failures only skip a checkpoint. */
+	private void save(String taskPath, CheckpointableTask task, long workMs) {
+		String sig = Col.BLUE.fg("Checkpointer/save") + " : ";
+		long start = System.nanoTime();
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+				oos.writeObject(task.checkpoint());
+			}
+			byte[] data = TaskEnvelope.encode(Map.of(WORK_MS, Long.toString(workMs)), bos.toByteArray());
+			if (data.length > MAX_BYTES) {
+				System.err.println(sig + Col.RED.fg("Checkpoint of " + data.length + " bytes is too large, skipped."));
+				return;
+			}
+
+			try {
+				zk.setData(taskPath + "/checkpoint", data, -1);
+			} catch (KeeperException.NoNodeException e) {
+				zk.create(taskPath + "/checkpoint", data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			}
+			checkpointed = taskPath;
+
+			long overhead = System.nanoTime() - start;
+			written.incrementAndGet();
+			writtenBytes.addAndGet(data.length);
+			overheadNanos.addAndGet(overhead);
+			if (DistProcess.LOOP_PRINT) {
+				System.out.printf(sig + "Checkpointed %s (%d bytes, %.1f s of work) in %.3f ms\n",
+					taskPath, data.length, workMs / 1000D, overhead / 1e6);
+			}
+		} catch (IOException | KeeperException | RuntimeException e) {
+			System.err.println(sig + Col.RED.fg("Checkpoint of " + taskPath + " failed : " + e));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The coordination service the platform runs on: the subset of the {@link ZooKeeper} client API
+ * that the Master, the Workers and their helpers use, with the same semantics (ZNodes, versions,
+ * ephemeral and sequential nodes, one-shot watches, multi(), async callbacks delivered in order
+ * on one event thread per session). Two implementations:
+ * <ul>
+ *     <li>{@link ZkCoordination}: a ZooKeeper ensemble, the normal case.</li>
+ *     <li>{@link InMemoryCoordination}: a tree in the memory of this JVM, for running the master,
+ *     workers and clients in a single process (see {@link EmbeddedCluster}), e.g. on one big
+ *     machine or for scheduler benchmarks without an ensemble.</li>
+ * </ul>
+ * Since the semantics are ZooKeeper's, so are the types (exceptions, callbacks, Op, Stat...).
+ */
+public interface Coordination {
+	/** Prefix of the connection strings of in-memory trees: "mem:name". */
+	String IN_MEMORY = "mem:";
+
+	/** Connect to the ZK ensemble, or to the in-memory tree if the string starts with {@link #IN_MEMORY}. */
+	static Coordination connect(String connectString, int sessionTimeout, Watcher watcher) throws IOException {
+		if (connectString != null && connectString.startsWith(IN_MEMORY))
+			return InMemoryCoordination.connect(connectString.substring(IN_MEMORY.length()), watcher);
+		return new ZkCoordination(new ZooKeeper(connectString, sessionTimeout, watcher));
+	}
+
+	long getSessionId();
+
+	void close() throws InterruptedException;
+
+	String create(String path, byte[] data, List<ACL> acl, CreateMode createMode)
+		throws KeeperException, InterruptedException;
+
+	void create(String path, byte[] data, List<ACL> acl, CreateMode createMode,
+	            AsyncCallback.StringCallback cb, Object ctx);
+
+	void delete(String path, int version) throws KeeperException, InterruptedException;
+
+	void delete(String path, int version, AsyncCallback.VoidCallback cb, Object ctx);
+
+	Stat exists(String path, boolean watch) throws KeeperException, InterruptedException;
+
+	Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException;
+
+	void exists(String path, Watcher watcher, AsyncCallback.StatCallback cb, Object ctx);
+
+	byte[] getData(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException;
+
+	byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException;
+
+	void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx);
+
+	Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException;
+
+	void setData(String path, byte[] data, int version, AsyncCallback.StatCallback cb, Object ctx);
+
+	List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException;
+
+	List<String> getChildren(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException;
+
+	void getChildren(String path, Watcher watcher, AsyncCallback.ChildrenCallback cb, Object ctx);
+
+	void getChildren(String path, boolean watch, AsyncCallback.ChildrenCallback cb, Object ctx);
+
+	/** All or nothing. */
+	List<OpResult> multi(Iterable<Op> ops) throws KeeperException, InterruptedException;
+
+}
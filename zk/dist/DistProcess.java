@@ -27,16 +27,21 @@ import org.apache.zookeeper.KeeperException.*;
 public class DistProcess {
 	static final boolean LOOP_PRINT = System.getenv("LOOP_PRINT_50") != null;
 
-	ZooKeeper zk;
+	Coordination zk;
 	String zkServer;
 	String processInfo;
 	boolean isMaster = false;
 	boolean initialized = false;
+	// Our role, kept to take it back with a new session
+	Master master;
+	Worker worker;
+	String shard;
 
 	/**
 	 * Creates an instance of the distributed process with information regarding itself and
 	 * the rest of the ZK ensemble.
-	 * @param zkHosts Comma separated list of ZK servers.
+	 * @param zkHosts Comma separated list of ZK servers, or "mem:name" for an in-memory tree
+	 *                shared with the rest of this JVM (see {@link Coordination#connect}).
 	 */
 	DistProcess(String zkHosts) {
 		String sig = "Bootstrap/constructor : ";
@@ -47,35 +52,37 @@ public class DistProcess {
 	}
 
 	/**
-	 * Connects the DistProcess to the zookeeper ensemble and sets a watch that will be invoked
-	 * during any state change (aka connected).
+	 * Connects the DistProcess to the zookeeper ensemble and registers a listener that will be
+	 * invoked once connected, and again whenever the session had to be renewed.
 	 */
 	void startProcess() throws IOException {
 		String sig = "Bootstrap/startProcess : ";
 		System.out.println(sig + "Attempt to connect and set watcher");
-		zk = new ZooKeeper(zkServer, 100000, connectionWatcher); // Connect to ZK & goto connectedWatcher
+		// Locked until zk is set: the connection may be up (sessionListener called) before connect() returns.
+		synchronized (this) {
+			zk = ReconnectingCoordination.connect(zkServer, 100000, sessionListener); // Connect to ZK & goto sessionListener
+		}
 	}
 
 	/**
-	 * Watcher that will be invoked when a connection is established to the ZK ensemble.
+	 * Listener of our session: do our initialization once connected, and take our role back when
+	 * the session expired (see {@link ReconnectingCoordination}).
 	 * @see #startProcess() Coming from there.
 	 */
-	private final Watcher connectionWatcher = (event) -> {
-		String sig = "Bootstrap/connectionWatcher : ";
-
-		System.out.println(sig + "Tripped with : " + event);
-
-		// Connection successful, do our initialization stuff.
-		if (event.getType() == Watcher.Event.EventType.None) {
-			if (event.getPath() == null && event.getState() == Watcher.Event.KeeperState.SyncConnected && !initialized) {
-				System.out.println(sig + "Connection successful. Attempt to get role.");
-				decideRole();
-				initialized = true;
-			}
+	private final ReconnectingCoordination.Listener sessionListener = new ReconnectingCoordination.Listener() {
+		@Override
+		public void connected() {
+			String sig = "Bootstrap/sessionListener : ";
+			if (initialized) return;
+			System.out.println(sig + "Connection successful. Attempt to get role.");
+			synchronized (DistProcess.this) {} // Wait for startProcess to set zk
+			decideRole();
+			initialized = true;
 		}
-		// Connection FAILED
-		else {
-			System.err.println(sig + "Did not successfully connect.");
+
+		@Override
+		public void renewed(long expiredAt) {
+			recoverRole(expiredAt);
 		}
 	};
 
@@ -87,7 +94,7 @@ public class DistProcess {
 		String sig = "Bootstrap/decideRole : ";
 		try {
 			System.out.println(sig + "Running for master...");
-			runForMaster(); // Raises NodeExistsException if master node already exists.
+			shard = runForMaster(); // Raises NodeExistsException if master node already exists.
 			isMaster = true;
 		}
 		catch (NodeExistsException nee) {
@@ -98,7 +105,8 @@ public class DistProcess {
 			throw new RuntimeException(e);
 		}
 
-		System.out.println(sig + Col.GREEN.fg("I will be functioning as " + (isMaster ? "master" : "worker")));
+		System.out.println(sig + Col.GREEN.fg("I will be functioning as " + (isMaster ? "master" : "worker")
+			+ (shard != null ? " of " + shard : "")));
 
 		/*
 		* ASSIGNED MASTER
@@ -107,37 +115,84 @@ public class DistProcess {
 		* the ZK (any pre-existing tasks / workers).
 		*/
 		if (isMaster) {
-			Master m = new Master(zk);
-			m.init();
+			master = new Master(zk, shard == null ? ShardMap.single() : ShardMap.forShard(shard));
+			master.init();
 		}
 		/*
 		* ASSIGNED WORKER:
 		* Initialise all "watcher loops".
 		*/
 		else {
-			try {
-				Worker w = new Worker(zk, processInfo);
-				w.init();
-			} catch (InterruptedException | KeeperException e) {
-				e.printStackTrace();
-			}
+			worker = new Worker(zk, processInfo);
+			worker.init(); // Asynchronous
+		}
+	}
 
+	/**
+	 * Our session expired and we are on a new one: everything ephemeral of the old one is gone (our
+	 * master ZNode or our worker ZNode, our watches). Take the same role back: a master takes its
+	 * ZNode back, unless somebody took over meanwhile (then we quit, the new master has our
+	 * workers already), and reconciles its state with the tree; a worker joins again under the
+	 * same name and resumes.
+	 * @param expiredAt When the expiry was noticed, to time the recovery.
+	 */
+	private void recoverRole(long expiredAt) {
+		String sig = "Bootstrap/recoverRole : ";
+		System.out.println(sig + Col.YELLOW.fg("Session renewed, recovering as " + (isMaster ? "master" : "worker")));
+		try {
+			if (isMaster) {
+				zk.create(shard == null ? "/dist50/master" : "/dist50/shards/" + shard, processInfo.getBytes(),
+					Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+				master.recover();
+			}
+			else worker.recover();
+		}
+		catch (NodeExistsException nee) {
+			System.err.println(sig + Col.RED.fg("Another master took over while we were away, exiting."));
+			System.exit(1);
 		}
+		catch (KeeperException | InterruptedException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+		System.out.printf(sig + Col.GREEN.fg("Recovered %.1f ms after the session expired\n"),
+			(System.nanoTime() - expiredAt) / 1e6);
 	}
 
 	/**
 	 * Try to run for master by creating a "master" ephemeral node. If this method returns without
 	 * throwing anything, then this DistProcess instance has been reserved the role of Master. This
 	 * method is synchronous.
+	 * With {@link ShardMap#SHARDS} > 1, we instead try to become the master of any of the shards
+	 * by creating "/dist50/shards/shard-k" for k = 0, 1, ...
+	 * @return The shard we are the master of, null if not sharded.
 	 * @throws KeeperException If we fail to become master (we become a worker).
 	 */
-	private void runForMaster() throws UnknownHostException, KeeperException, InterruptedException {
+	private String runForMaster() throws UnknownHostException, KeeperException, InterruptedException {
 		/*
 		* Try to create an ephemeral node to be the master, put the hostname and pid of this process
 		* as the data. This is an example of Synchronous API invocation as the function waits for
 		* the execution and no callback is involved.
 		*/
-		zk.create("/dist50/master", processInfo.getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+		if (ShardMap.SHARDS <= 1) {
+			zk.create("/dist50/master", processInfo.getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+			return null;
+		}
+
+		try {
+			zk.create("/dist50/shards", "Contains ephemeral shard master ZNodes".getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		} catch (NodeExistsException ignored) {} // Created by ZKReset or another shard master
+
+		NodeExistsException taken = null;
+		for (int k = 0; k < ShardMap.SHARDS; k++) {
+			try {
+				zk.create("/dist50/shards/shard-" + k, processInfo.getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+				return "shard-" + k;
+			} catch (NodeExistsException nee) {
+				taken = nee; // Shard already has a master, try the next one.
+			}
+		}
+		throw taken; // Every shard has a master.
 	}
 
 	/**
@@ -0,0 +1,164 @@
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * A whole platform in one JVM: a Master and N Workers (each a {@link DistProcess} with its own
+ * session) on an {@link InMemoryCoordination} tree, and clients submitting tasks from this JVM
+ * too. No ensemble to set up, and no network round trips: useful on one big machine, and to
+ * measure what the coordination costs us (compare with the same run against ZK).
+ * <p>
+ * {@link #main} is a benchmark: submit MCPi tasks, wait for all the results, report the
+ * throughput and the latencies, exit. The Master and the Workers print as usual, and all share
+ * stdin for their commands (a command line goes to one of them), so don't rely on those.
+ * With an expiry interval, the session of a random process (Master included) is expired that
+ * often during the run, to see the platform recover (see {@link ReconnectingCoordination}).
+ * <p>
+ * Usage: {@code runEmbedded.sh <workers> <tasks> [samples per task] [expiry interval ms]}
+ */
+public class EmbeddedCluster {
+	static final String TREE = "embedded";
+
+	private final String connectString;
+	private final Coordination zk;
+	private final List<DistProcess> processes = new ArrayList<>();
+
+	/** Create the tree (like ZKReset) and connect to it as a client. */
+	public EmbeddedCluster(String name) throws IOException, KeeperException, InterruptedException {
+		this.connectString = Coordination.IN_MEMORY + name;
+		this.zk = Coordination.connect(connectString, 0, (event) -> {});
+		for (String path : List.of("/dist50", "/dist50/workers", "/dist50/tasks", "/dist50/assignments",
+			"/dist50/trash", "/dist50/shards", "/dist50/drain", "/dist50/broadcast", "/dist50/admission", "/dist50/usage")) {
+			try {
+				zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			} catch (KeeperException.NodeExistsException ignored) {} // Another cluster on the same tree
+		}
+	}
+
+	/** Start the Master, then the Workers, and return once all of them joined. */
+	public void start(int workers) throws IOException, KeeperException, InterruptedException {
+		String sig = Col.BLUE.fg("EmbeddedCluster/start") + " : ";
+		launch();
+		while (zk.exists("/dist50/master", false) == null && zk.getChildren("/dist50/shards", false).isEmpty())
+			Thread.sleep(10);
+		for (int i = 0; i < workers; i++) launch();
+		awaitWorkers(workers);
+		System.out.println(sig + Col.GREEN.fg("Master and " + workers + " workers up"));
+	}
+
+	private void launch() throws IOException {
+		DistProcess process = new DistProcess(connectString);
+		processes.add(process);
+		process.startProcess();
+	}
+
+	private void awaitWorkers(int workers) throws KeeperException, InterruptedException {
+		while (zk.getChildren("/dist50/workers", false).size() < workers) Thread.sleep(10);
+	}
+
+	/**
+	 * Submit a task like DistClient does. onResult gets the computed task (null if it failed, or if
+	 * the Master gave up on it) on the event thread of our session, once the task ZNodes are
+	 * deleted: don't block in there.
+	 */
+	public void submit(DistTask task, Consumer<DistTask> onResult) throws IOException, KeeperException, InterruptedException {
+		String taskNode = zk.create("/dist50/tasks/task-", TaskEnvelope.encodeTask(new LinkedHashMap<>(), task),
+			ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+		String resultNode = taskNode + "/result";
+		AsyncCallback.DataCallback resultCB = (rc, path, ctx, data, stat) -> {
+			DistTask computed = null;
+			try {
+				String error = rc == KeeperException.Code.OK.intValue() ? TaskEnvelope.errorOf(data) : null;
+				if (error != null) System.out.println(Col.RED.fg("Task [" + taskNode + "] failed : " + error));
+				else if (rc == KeeperException.Code.OK.intValue()) computed = TaskEnvelope.decode(data).getTask();
+			} catch (IOException | ClassNotFoundException e) {
+				e.printStackTrace();
+			}
+			zk.delete(resultNode, -1, null, null);
+			zk.delete(taskNode, -1, null, null);
+			onResult.accept(computed);
+		};
+		Watcher resultWatcher = (event) -> {
+			if (event.getType() == Watcher.Event.EventType.NodeCreated) zk.getData(resultNode, false, resultCB, null);
+		};
+		zk.exists(resultNode, resultWatcher, (rc, path, ctx, stat) -> {
+			if (stat != null) zk.getData(resultNode, false, resultCB, null); // Done before the watch was set
+		}, null);
+	}
+
+	/** Expire the session of a process (0 is the Master), like a long enough partition would. */
+	public void expire(int process) throws InterruptedException {
+		((InMemoryCoordination) ((ReconnectingCoordination) processes.get(process).zk).current()).expire();
+	}
+
+	/** Close every session: the Master and the Workers leave, the tree stays. */
+	public void shutdown() throws InterruptedException {
+		for (DistProcess process : processes) process.disconnect();
+		zk.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		String sig = Col.BLUE.fg("EmbeddedCluster") + " : ";
+		int workers = Integer.parseInt(args[0]);
+		int tasks = Integer.parseInt(args[1]);
+		long samples = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+		long expiryInterval = args.length > 3 ? Long.parseLong(args[3]) : 0;
+
+		EmbeddedCluster cluster = new EmbeddedCluster(TREE);
+		cluster.start(workers);
+
+		System.out.println(sig + "Submitting " + tasks + " MCPi tasks of " + samples + " samples...");
+		DistTask[] results = new DistTask[tasks];
+		long[] latencies = new long[tasks];
+		CountDownLatch all = new CountDownLatch(tasks);
+		long start = System.nanoTime();
+		int[] expired = new int[1];
+		if (expiryInterval > 0) {
+			Thread chaos = new Thread(() -> {
+				Random random = new Random();
+				try {
+					while (all.getCount() > 0) {
+						Thread.sleep(expiryInterval);
+						int process = random.nextInt(workers + 1);
+						System.out.println(sig + Col.RED.fg("Expiring the session of " + (process == 0 ? "the master" : "worker " + process)));
+						cluster.expire(process);
+						expired[0]++;
+					}
+				} catch (InterruptedException ignored) {}
+			}, "expiries");
+			chaos.setDaemon(true);
+			chaos.start();
+		}
+		for (int i = 0; i < tasks; i++) {
+			int task = i;
+			long submitted = System.nanoTime();
+			cluster.submit(new MCPi(samples), (computed) -> {
+				latencies[task] = System.nanoTime() - submitted;
+				results[task] = computed;
+				all.countDown();
+			});
+		}
+		all.await();
+		long elapsed = System.nanoTime() - start;
+
+		int failed = 0;
+		double pi = 0;
+		for (DistTask result : results) {
+			if (result == null) failed++;
+			else pi += ((MCPi) result).getPi();
+		}
+		Arrays.sort(latencies);
+		System.out.printf(sig + "%d tasks on %d workers in %.1f ms, %.0f tasks/s (%d failed, pi ~ %.5f)\n",
+			tasks, workers, elapsed / 1e6, tasks / (elapsed / 1e9), failed, pi / Math.max(1, tasks - failed));
+		System.out.printf(sig + "  latency: median %.2f ms, p99 %.2f ms\n",
+			latencies[tasks / 2] / 1e6, latencies[Math.min(tasks - 1, (int) (tasks * 0.99))] / 1e6);
+		if (expiryInterval > 0) System.out.println(sig + "  " + expired[0] + " sessions expired during the run");
+
+		cluster.shutdown();
+		System.exit(0); // The command handlers are still reading stdin
+	}
+
+}
@@ -0,0 +1,76 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * What a worker leaves behind when it could not compute its task: which task, whose fault it
+ * was, and the error. The worker replaces its assignment with the report in one transaction,
+ * under /dist50/assignments/worker-x{@link #MARK}n (sequential), so that any listing of the
+ * assignments that shows the worker free also shows the report: the Master can never take a
+ * failure for a completion. The Master deletes the report once read.
+ * <p>
+ * Format: three lines of text (readable with zkCli), "task=", "fault=worker|task" and "error=".
+ */
+public final class FailureReport {
+	/** Between the worker name and the sequence number in the name of a report. */
+	static final String MARK = "~failed-";
+
+	private final String task;
+	private final boolean workerFault;
+	private final String error;
+
+	public FailureReport(String task, boolean workerFault, String error) {
+		this.task = task;
+		this.workerFault = workerFault;
+		this.error = error;
+	}
+
+	/** Name of the task (relative to /dist50/tasks). */
+	public String getTask() {
+		return task;
+	}
+
+	/** Whether the worker is to blame rather than the task, see {@link #isWorkerFault(Throwable)}. */
+	public boolean isWorkerFault() {
+		return workerFault;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Whether a failure is the worker's fault. A task throwing from its computation is its own
+	 * fault, unless what it threw says the worker is broken (a class missing, the JVM out of
+	 * memory). Anything else failing, reading or deserializing the task for instance, is the
+	 * worker's: a class missing, a bad disk.
+	 */
+	static boolean isWorkerFault(Throwable e) {
+		if (!(e instanceof ExecutionException)) return true;
+		return e.getCause() instanceof LinkageError || e.getCause() instanceof VirtualMachineError;
+	}
+
+	/** Worker that wrote a child of /dist50/assignments if it is a report, null otherwise. */
+	static String workerOf(String child) {
+		int mark = child.indexOf(MARK);
+		return mark < 0 ? null : child.substring(0, mark);
+	}
+
+	public byte[] encode() {
+		return ("task=" + task + "\nfault=" + (workerFault ? "worker" : "task") + "\nerror=" + error.replace('\n', ' '))
+			.getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static FailureReport decode(byte[] data) {
+		String task = null;
+		boolean workerFault = true;
+		String error = "";
+		for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+			if (line.startsWith("task=")) task = line.substring(5);
+			else if (line.startsWith("fault=")) workerFault = !"task".equals(line.substring(6));
+			else if (line.startsWith("error=")) error = line.substring(6);
+		}
+		if (task == null) throw new IllegalArgumentException("Corrupted failure report");
+		return new FailureReport(task, workerFault, error);
+	}
+
+}
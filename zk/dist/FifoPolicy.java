@@ -0,0 +1,17 @@
+import java.util.Collection;
+import java.util.List;
+
+/** The original policy: oldest task first, to the first idle worker. */
+public class FifoPolicy implements SchedulingPolicy {
+
+	@Override
+	public String nextTask(Collection<String> pending, long now) {
+		return pending.iterator().next();
+	}
+
+	@Override
+	public String pickWorker(String task, List<String> idle, long now) {
+		return idle.get(0);
+	}
+
+}
@@ -0,0 +1,621 @@
+import org.apache.jute.Record;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link Coordination} on a ZNode tree in the memory of this JVM: every "process" (master,
+ * workers, clients) connecting to the same name shares the tree, each with its own session. An
+ * operation is a few map lookups under a lock instead of a network round trip through a quorum.
+ * <p>
+ * Same semantics as ZooKeeper, as far as the platform is concerned: versions, ephemeral nodes
+ * (deleted when their session closes), sequential nodes (suffixed with the parent's child version),
+ * one-shot watches, all-or-nothing multi(), and async callbacks and watch events delivered in
+ * order on one event thread per session. Sessions end when closed, or when {@link #expire()}d to
+ * exercise recovery: there is no timeout, a session never expires by itself. Not modeled: ACLs
+ * and TTLs (TTL nodes are persistent, the Janitor still reaps them).
+ * <p>
+ * Locking is striped by path: a ZNode's existence, data and data watches are guarded by the
+ * stripe of its parent path, its children and child watches by its own stripe. A delete holds
+ * both, the others one. multi() takes the tree exclusively, everything else shares it.
+ */
+public class InMemoryCoordination implements Coordination {
+	static final int STRIPES = 64;
+
+	/** Trees by name, so that everybody in the JVM connecting to "mem:name" shares it. */
+	private static final Map<String, Tree> trees = new ConcurrentHashMap<>();
+	private static final AtomicLong sessionIds = new AtomicLong(0x5e55_0000_0000L);
+
+	private static class Node {
+		byte[] data;
+		int version = 0;
+		/** Child version, incremented when a child is created or deleted. Suffix of sequential children. */
+		int cversion = 0;
+		final long ephemeralOwner;
+		final long ctime;
+		long mtime;
+		final long czxid;
+		long mzxid;
+		long pzxid;
+		final Set<String> children = new HashSet<>();
+
+		Node(byte[] data, long ephemeralOwner, long zxid) {
+			this.data = data;
+			this.ephemeralOwner = ephemeralOwner;
+			this.ctime = this.mtime = System.currentTimeMillis();
+			this.czxid = this.mzxid = this.pzxid = zxid;
+		}
+
+		void fill(Stat stat) {
+			if (stat == null) return;
+			stat.setCzxid(czxid);
+			stat.setMzxid(mzxid);
+			stat.setCtime(ctime);
+			stat.setMtime(mtime);
+			stat.setVersion(version);
+			stat.setCversion(cversion);
+			stat.setAversion(0);
+			stat.setEphemeralOwner(ephemeralOwner);
+			stat.setDataLength(data == null ? 0 : data.length);
+			stat.setNumChildren(children.size());
+			stat.setPzxid(pzxid);
+		}
+	}
+
+	/** A watch: one-shot, delivered on the event thread of the session that set it. */
+	private static class Watch {
+		final InMemoryCoordination session;
+		final Watcher watcher;
+
+		Watch(InMemoryCoordination session, Watcher watcher) {
+			this.session = session;
+			this.watcher = watcher;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Watch && ((Watch) o).session == session && ((Watch) o).watcher == watcher;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(session) * 31 + System.identityHashCode(watcher);
+		}
+	}
+
+	/** Something that happened to a path in a multi(), the watches to trip once it's complete. */
+	private static class Trigger {
+		final Watcher.Event.EventType type;
+		final String path;
+
+		Trigger(Watcher.Event.EventType type, String path) {
+			this.type = type;
+			this.path = path;
+		}
+	}
+
+	private static class Tree {
+		final Map<String, Node> nodes = new ConcurrentHashMap<>();
+		final Map<String, Set<Watch>> dataWatches = new ConcurrentHashMap<>();
+		final Map<String, Set<Watch>> childWatches = new ConcurrentHashMap<>();
+		final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+		final ReentrantReadWriteLock multiLock = new ReentrantReadWriteLock();
+		final AtomicLong zxid = new AtomicLong();
+
+		Tree() {
+			for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+			nodes.put("/", new Node(new byte[0], 0, 0));
+		}
+
+		ReentrantLock stripe(String path) {
+			return stripes[stripeOf(path)];
+		}
+
+		static int stripeOf(String path) {
+			return Math.floorMod(path.hashCode(), STRIPES);
+		}
+	}
+
+	private final Tree tree;
+	private final long sessionId = sessionIds.incrementAndGet();
+	private final Watcher defaultWatcher;
+	private final ExecutorService eventThread;
+	private volatile Thread eventLoop;
+	/** Watches set by this session, to tell them about the close. */
+	private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed = false;
+	/**
+	 * Held by async operations until their callback is queued, so that callbacks come in the order
+	 * of the requests even when several threads of the session send some (ZK's ordering guarantee).
+	 */
+	private final Object requests = new Object();
+
+	private InMemoryCoordination(Tree tree, Watcher defaultWatcher) {
+		this.tree = tree;
+		this.defaultWatcher = defaultWatcher;
+		this.eventThread = Executors.newSingleThreadExecutor(
+			(r) -> eventLoop = new Thread(r, String.format("mem-event-%x", sessionId)));
+	}
+
+	/** Open a session on the named tree (created on first use). Connected right away. */
+	public static InMemoryCoordination connect(String name, Watcher watcher) {
+		InMemoryCoordination session = new InMemoryCoordination(trees.computeIfAbsent(name, (n) -> new Tree()), watcher);
+		session.deliver(watcher, new WatchedEvent(Watcher.Event.EventType.None, Watcher.Event.KeeperState.SyncConnected, null));
+		return session;
+	}
+
+	@Override
+	public long getSessionId() {
+		return sessionId;
+	}
+
+	/** Delete our ephemeral nodes, tell our watchers, and stop the event thread once it's done. */
+	@Override
+	public void close() throws InterruptedException {
+		end(Watcher.Event.KeeperState.Closed);
+	}
+
+	/**
+	 * Expire the session, as the ensemble does with a client cut off for longer than the session
+	 * timeout: same as {@link #close()}, but the watchers are told Expired. To exercise recovery.
+	 */
+	public void expire() throws InterruptedException {
+		end(Watcher.Event.KeeperState.Expired);
+	}
+
+	private void end(Watcher.Event.KeeperState state) throws InterruptedException {
+		if (closed) return;
+		for (Map.Entry<String, Node> node : tree.nodes.entrySet()) {
+			if (node.getValue().ephemeralOwner == sessionId) {
+				try {
+					delete(node.getKey(), -1);
+				} catch (KeeperException ignored) {} // Already gone
+			}
+		}
+		closed = true;
+		WatchedEvent ending = new WatchedEvent(Watcher.Event.EventType.None, state, null);
+		for (Watch watch : watches) deliver(watch.watcher, ending);
+		for (Set<Watch> set : tree.dataWatches.values()) set.removeIf((w) -> w.session == this);
+		for (Set<Watch> set : tree.childWatches.values()) set.removeIf((w) -> w.session == this);
+		watches.clear();
+		deliver(defaultWatcher, ending);
+		eventThread.shutdown();
+		if (Thread.currentThread() == eventLoop) return; // Ended from one of our callbacks, can't wait for ourselves
+		eventThread.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	/* ===================================== OPERATIONS ===================================== */
+
+	@Override
+	public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode) throws KeeperException {
+		checkOpen();
+		tree.multiLock.readLock().lock();
+		try {
+			return doCreate(path, data, createMode, null, null);
+		} finally {
+			tree.multiLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode,
+	                   AsyncCallback.StringCallback cb, Object ctx) {
+		synchronized (requests) {
+			try {
+				String created = create(path, data, acl, createMode);
+				if (cb != null) callback(() -> cb.processResult(KeeperException.Code.OK.intValue(), path, ctx, created));
+			} catch (KeeperException e) {
+				if (cb != null) callback(() -> cb.processResult(e.code().intValue(), path, ctx, null));
+			}
+		}
+	}
+
+	@Override
+	public void delete(String path, int version) throws KeeperException {
+		checkOpen();
+		tree.multiLock.readLock().lock();
+		try {
+			doDelete(path, version, null, null);
+		} finally {
+			tree.multiLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void delete(String path, int version, AsyncCallback.VoidCallback cb, Object ctx) {
+		synchronized (requests) {
+			try {
+				delete(path, version);
+				if (cb != null) callback(() -> cb.processResult(KeeperException.Code.OK.intValue(), path, ctx));
+			} catch (KeeperException e) {
+				if (cb != null) callback(() -> cb.processResult(e.code().intValue(), path, ctx));
+			}
+		}
+	}
+
+	@Override
+	public Stat exists(String path, boolean watch) throws KeeperException {
+		return exists(path, watch ? defaultWatcher : null);
+	}
+
+	@Override
+	public Stat exists(String path, Watcher watcher) throws KeeperException {
+		checkOpen();
+		ReentrantLock lock = tree.stripe(parentOf(path));
+		tree.multiLock.readLock().lock();
+		lock.lock();
+		try {
+			// Like ZK, a watch is set whether the node exists or not (its creation trips it).
+			if (watcher != null) watch(tree.dataWatches, path, watcher);
+			Node node = tree.nodes.get(path);
+			if (node == null) return null;
+			Stat stat = new Stat();
+			node.fill(stat);
+			return stat;
+		} finally {
+			lock.unlock();
+			tree.multiLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void exists(String path, Watcher watcher, AsyncCallback.StatCallback cb, Object ctx) {
+		synchronized (requests) {
+			try {
+				Stat stat = exists(path, watcher);
+				KeeperException.Code code = stat == null ? KeeperException.Code.NONODE : KeeperException.Code.OK;
+				if (cb != null) callback(() -> cb.processResult(code.intValue(), path, ctx, stat));
+			} catch (KeeperException e) {
+				if (cb != null) callback(() -> cb.processResult(e.code().intValue(), path, ctx, null));
+			}
+		}
+	}
+
+	@Override
+	public byte[] getData(String path, boolean watch, Stat stat) throws KeeperException {
+		return getData(path, watch ? defaultWatcher : null, stat);
+	}
+
+	@Override
+	public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException {
+		checkOpen();
+		ReentrantLock lock = tree.stripe(parentOf(path));
+		tree.multiLock.readLock().lock();
+		lock.lock();
+		try {
+			Node node = existing(path);
+			if (watcher != null) watch(tree.dataWatches, path, watcher);
+			node.fill(stat);
+			return node.data;
+		} finally {
+			lock.unlock();
+			tree.multiLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) {
+		synchronized (requests) {
+			try {
+				Stat stat = new Stat();
+				byte[] data = getData(path, watch, stat);
+				if (cb != null) callback(() -> cb.processResult(KeeperException.Code.OK.intValue(), path, ctx, data, stat));
+			} catch (KeeperException e) {
+				if (cb != null) callback(() -> cb.processResult(e.code().intValue(), path, ctx, null, null));
+			}
+		}
+	}
+
+	@Override
+	public Stat setData(String path, byte[] data, int version) throws KeeperException {
+		checkOpen();
+		Stat stat = new Stat();
+		tree.multiLock.readLock().lock();
+		try {
+			doSetData(path, data, version, null, null).fill(stat);
+		} finally {
+			tree.multiLock.readLock().unlock();
+		}
+		return stat;
+	}
+
+	@Override
+	public void setData(String path, byte[] data, int version, AsyncCallback.StatCallback cb, Object ctx) {
+		synchronized (requests) {
+			try {
+				Stat stat = setData(path, data, version);
+				if (cb != null) callback(() -> cb.processResult(KeeperException.Code.OK.intValue(), path, ctx, stat));
+			} catch (KeeperException e) {
+				if (cb != null) callback(() -> cb.processResult(e.code().intValue(), path, ctx, null));
+			}
+		}
+	}
+
+	@Override
+	public List<String> getChildren(String path, boolean watch) throws KeeperException {
+		return getChildren(path, watch ? defaultWatcher : null, (Stat) null);
+	}
+
+	@Override
+	public List<String> getChildren(String path, boolean watch, Stat stat) throws KeeperException {
+		return getChildren(path, watch ? defaultWatcher : null, stat);
+	}
+
+	private List<String> getChildren(String path, Watcher watcher, Stat stat) throws KeeperException {
+		checkOpen();
+		ReentrantLock lock = tree.stripe(path);
+		tree.multiLock.readLock().lock();
+		lock.lock();
+		try {
+			Node node = existing(path);
+			if (watcher != null) watch(tree.childWatches, path, watcher);
+			node.fill(stat);
+			return new ArrayList<>(node.children);
+		} finally {
+			lock.unlock();
+			tree.multiLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void getChildren(String path, Watcher watcher, AsyncCallback.ChildrenCallback cb, Object ctx) {
+		synchronized (requests) {
+			try {
+				List<String> children = getChildren(path, watcher, (Stat) null);
+				if (cb != null) callback(() -> cb.processResult(KeeperException.Code.OK.intValue(), path, ctx, children));
+			} catch (KeeperException e) {
+				if (cb != null) callback(() -> cb.processResult(e.code().intValue(), path, ctx, null));
+			}
+		}
+	}
+
+	@Override
+	public void getChildren(String path, boolean watch, AsyncCallback.ChildrenCallback cb, Object ctx) {
+		getChildren(path, watch ? defaultWatcher : null, cb, ctx);
+	}
+
+	/**
+	 * Apply the operations in order with the tree to ourselves, undoing those already applied if one
+	 * fails. Watches only trip once all of them succeeded (before anybody can see the tree).
+	 */
+	@Override
+	public List<OpResult> multi(Iterable<Op> ops) throws KeeperException {
+		checkOpen();
+		List<Trigger> triggers = new ArrayList<>();
+		Deque<Runnable> undo = new ArrayDeque<>();
+		List<OpResult> results = new ArrayList<>();
+		tree.multiLock.writeLock().lock();
+		try {
+			for (Op op : ops) {
+				Record request = op.toRequestRecord();
+				if (request instanceof CreateTTLRequest) {
+					CreateTTLRequest create = (CreateTTLRequest) request;
+					results.add(new OpResult.CreateResult(doCreate(create.getPath(), create.getData(),
+						CreateMode.fromFlag(create.getFlags()), triggers, undo)));
+				}
+				else if (request instanceof CreateRequest) {
+					CreateRequest create = (CreateRequest) request;
+					results.add(new OpResult.CreateResult(doCreate(create.getPath(), create.getData(),
+						CreateMode.fromFlag(create.getFlags()), triggers, undo)));
+				}
+				else if (request instanceof DeleteRequest) {
+					DeleteRequest delete = (DeleteRequest) request;
+					doDelete(delete.getPath(), delete.getVersion(), triggers, undo);
+					results.add(new OpResult.DeleteResult());
+				}
+				else if (request instanceof SetDataRequest) {
+					SetDataRequest set = (SetDataRequest) request;
+					Stat stat = new Stat();
+					doSetData(set.getPath(), set.getData(), set.getVersion(), triggers, undo).fill(stat);
+					results.add(new OpResult.SetDataResult(stat));
+				}
+				else if (request instanceof CheckVersionRequest) {
+					CheckVersionRequest check = (CheckVersionRequest) request;
+					Node node = existing(check.getPath());
+					if (check.getVersion() != -1 && check.getVersion() != node.version)
+						throw KeeperException.create(KeeperException.Code.BADVERSION, check.getPath());
+					results.add(new OpResult.CheckResult());
+				}
+				else {
+					throw KeeperException.create(KeeperException.Code.UNIMPLEMENTED, op.getPath());
+				}
+			}
+			fire(triggers);
+		} catch (KeeperException e) {
+			while (!undo.isEmpty()) undo.pop().run();
+			throw e;
+		} finally {
+			tree.multiLock.writeLock().unlock();
+		}
+		return results;
+	}
+
+	/* ===================================== TREE ===================================== */
+
+	private String doCreate(String path, byte[] data, CreateMode mode, List<Trigger> triggers, Deque<Runnable> undo)
+		throws KeeperException {
+		String parentPath = parentOf(path);
+		ReentrantLock lock = tree.stripe(parentPath);
+		lock.lock();
+		try {
+			Node parent = tree.nodes.get(parentPath);
+			if (parent == null) throw KeeperException.create(KeeperException.Code.NONODE, path);
+			if (parent.ephemeralOwner != 0)
+				throw KeeperException.create(KeeperException.Code.NOCHILDRENFOREPHEMERALS, path);
+			String created = mode.isSequential() ? path + String.format("%010d", parent.cversion) : path;
+			if (tree.nodes.containsKey(created)) throw KeeperException.create(KeeperException.Code.NODEEXISTS, created);
+
+			long zxid = tree.zxid.incrementAndGet();
+			tree.nodes.put(created, new Node(data, mode.isEphemeral() ? sessionId : 0, zxid));
+			String name = nameOf(created);
+			parent.children.add(name);
+			parent.cversion++;
+			parent.pzxid = zxid;
+			if (undo != null) {
+				undo.push(() -> {
+					tree.nodes.remove(created);
+					parent.children.remove(name);
+					parent.cversion--;
+				});
+			}
+			trigger(triggers, Watcher.Event.EventType.NodeCreated, created);
+			trigger(triggers, Watcher.Event.EventType.NodeChildrenChanged, parentPath);
+			return created;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void doDelete(String path, int version, List<Trigger> triggers, Deque<Runnable> undo) throws KeeperException {
+		String parentPath = parentOf(path);
+		// Always in stripe order, so that two deletes can't deadlock.
+		int a = Tree.stripeOf(parentPath);
+		int b = Tree.stripeOf(path);
+		ReentrantLock first = tree.stripes[Math.min(a, b)];
+		ReentrantLock second = tree.stripes[Math.max(a, b)];
+		first.lock();
+		second.lock();
+		try {
+			Node node = existing(path);
+			if (version != -1 && version != node.version) throw KeeperException.create(KeeperException.Code.BADVERSION, path);
+			if (!node.children.isEmpty()) throw KeeperException.create(KeeperException.Code.NOTEMPTY, path);
+
+			Node parent = tree.nodes.get(parentPath);
+			tree.nodes.remove(path);
+			String name = nameOf(path);
+			parent.children.remove(name);
+			parent.cversion++;
+			parent.pzxid = tree.zxid.incrementAndGet();
+			if (undo != null) {
+				undo.push(() -> {
+					tree.nodes.put(path, node);
+					parent.children.add(name);
+					parent.cversion--;
+				});
+			}
+			trigger(triggers, Watcher.Event.EventType.NodeDeleted, path);
+			trigger(triggers, Watcher.Event.EventType.NodeChildrenChanged, parentPath);
+		} finally {
+			second.unlock();
+			first.unlock();
+		}
+	}
+
+	private Node doSetData(String path, byte[] data, int version, List<Trigger> triggers, Deque<Runnable> undo)
+		throws KeeperException {
+		ReentrantLock lock = tree.stripe(parentOf(path));
+		lock.lock();
+		try {
+			Node node = existing(path);
+			if (version != -1 && version != node.version) throw KeeperException.create(KeeperException.Code.BADVERSION, path);
+			byte[] previous = node.data;
+			long previousMzxid = node.mzxid;
+			long previousMtime = node.mtime;
+			node.data = data;
+			node.version++;
+			node.mzxid = tree.zxid.incrementAndGet();
+			node.mtime = System.currentTimeMillis();
+			if (undo != null) {
+				undo.push(() -> {
+					node.data = previous;
+					node.version--;
+					node.mzxid = previousMzxid;
+					node.mtime = previousMtime;
+				});
+			}
+			trigger(triggers, Watcher.Event.EventType.NodeDataChanged, path);
+			return node;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Node existing(String path) throws KeeperException {
+		Node node = tree.nodes.get(path);
+		if (node == null) throw KeeperException.create(KeeperException.Code.NONODE, path);
+		return node;
+	}
+
+	/* ===================================== WATCHES ===================================== */
+
+	/**
+	 * Trip the watches now, or once the multi() is complete if we are in one (triggers not null).
+	 * Called with the locks guarding these watches, so that a watch set right after the change
+	 * can't be tripped by it.
+	 */
+	private void trigger(List<Trigger> triggers, Watcher.Event.EventType type, String path) {
+		if (triggers != null) triggers.add(new Trigger(type, path));
+		else fire(List.of(new Trigger(type, path)));
+	}
+
+	private void watch(Map<String, Set<Watch>> watchesByPath, String path, Watcher watcher) {
+		Watch watch = new Watch(this, watcher);
+		watchesByPath.computeIfAbsent(path, (p) -> ConcurrentHashMap.newKeySet()).add(watch);
+		watches.add(watch);
+	}
+
+	/** Trip the watches concerned by what happened: data watches by creations, deletions and data changes, child watches by deletions and child changes. */
+	private void fire(List<Trigger> triggers) {
+		for (Trigger trigger : triggers) {
+			Set<Watch> tripped = new HashSet<>();
+			if (trigger.type != Watcher.Event.EventType.NodeChildrenChanged) take(tree.dataWatches, trigger.path, tripped);
+			if (trigger.type != Watcher.Event.EventType.NodeCreated && trigger.type != Watcher.Event.EventType.NodeDataChanged)
+				take(tree.childWatches, trigger.path, tripped);
+			WatchedEvent event = new WatchedEvent(trigger.type, Watcher.Event.KeeperState.SyncConnected, trigger.path);
+			for (Watch watch : tripped) {
+				watch.session.watches.remove(watch);
+				watch.session.deliver(watch.watcher, event);
+			}
+		}
+	}
+
+	private void take(Map<String, Set<Watch>> watchesByPath, String path, Set<Watch> into) {
+		Set<Watch> set = watchesByPath.remove(path);
+		if (set != null) into.addAll(set);
+	}
+
+	/* ===================================== SESSION ===================================== */
+
+	private void checkOpen() throws KeeperException {
+		if (closed) throw KeeperException.create(KeeperException.Code.SESSIONEXPIRED);
+	}
+
+	private void deliver(Watcher watcher, WatchedEvent event) {
+		if (watcher == null) return;
+		callback(() -> watcher.process(event));
+	}
+
+	/** Run on our event thread, after everything queued before (ZK's ordering guarantee). */
+	private void callback(Runnable callback) {
+		if (eventThread.isShutdown()) return;
+		eventThread.execute(() -> {
+			try {
+				callback.run();
+			} catch (RuntimeException e) {
+				// Like ZK's event thread: report and go on with the next event.
+				System.err.println("Error in event thread of session " + Long.toHexString(sessionId) + " : " + e);
+				e.printStackTrace();
+			}
+		});
+	}
+
+	private static String parentOf(String path) {
+		int slash = path.lastIndexOf('/');
+		return slash <= 0 ? "/" : path.substring(0, slash);
+	}
+
+	private static String nameOf(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+}
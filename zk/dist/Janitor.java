@@ -0,0 +1,142 @@
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically reaps abandoned tasks. A task is considered abandoned once its result has been
+ * sitting in ZK for longer than the retention period: the client normally deletes both the task
+ * and its result as soon as the result shows up, so a result that old means the client is gone.
+ * A task without a result is only reaped once it is older than the retention period and the
+ * Master is done with it (see {@link Master#isSettled(String)}): its result had a TTL and expired.
+ * Pending and running tasks are never touched.
+ * <p>
+ * Trash ZNodes are ephemeral and go away with the worker's session, so they never need reaping.
+ */
+public class Janitor {
+	/** How long a result may live before its task is considered abandoned (seconds, 0 = off). */
+	static final long RETENTION_SECONDS = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("JANITOR_RETENTION_50"), "3600"));
+
+	private final Coordination zk;
+	/** Tells which tasks without a result are done. */
+	private final Master master;
+	/** Only the tasks of our own shard are collected. */
+	private final ShardMap shards;
+	private final ScheduledExecutorService scheduler =
+		Executors.newSingleThreadScheduledExecutor((r) -> new Thread(r, "janitor"));
+
+	/** Total number of tasks reclaimed since the janitor started. */
+	private final AtomicLong reclaimedTasks = new AtomicLong();
+	/** Total number of bytes (task + children data) reclaimed since the janitor started. */
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+
+	public Janitor(Coordination zk, Master master, ShardMap shards) {
+		this.zk = zk;
+		this.master = master;
+		this.shards = shards;
+	}
+
+	/** Start periodic collection, running a pass every quarter of the retention period. */
+	public void start() {
+		String sig = Col.B_MAGENTA.fg("Janitor/start") + " : ";
+		if (RETENTION_SECONDS <= 0) {
+			System.out.println(sig + Col.YELLOW.fg("Retention is 0, janitor disabled."));
+			return;
+		}
+		long period = Math.max(10, RETENTION_SECONDS / 4);
+		scheduler.scheduleWithFixedDelay(this::collect, period, period, TimeUnit.SECONDS);
+		System.out.println(sig + "Reaping results older than " + RETENTION_SECONDS + "s every " + period + "s.");
+	}
+
+	/** Run a pass now on the janitor thread (used by the master's "gc" command). */
+	public void collectNow() {
+		scheduler.execute(this::collect);
+	}
+
+	/** Prints the cumulative reclaimed counts. */
+	public void printStats() {
+		System.out.printf("Janitor reclaimed %d tasks (%d bytes) in total\n", reclaimedTasks.get(), reclaimedBytes.get());
+	}
+
+	/**
+	 * One collection pass over /dist50/tasks and its buckets. Everything is synchronous, we're on
+	 * our own thread.
+	 */
+	private void collect() {
+		String sig = Col.B_MAGENTA.fg("Janitor/collect") + " : ";
+		long cutoff = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(RETENTION_SECONDS);
+		int tasks = 0;
+		long bytes = 0;
+		try {
+			List<String> taskPaths = new ArrayList<>();
+			for (String child : zk.getChildren("/dist50/tasks", false)) {
+				if (!shards.owns(child)) continue; // Another shard's bucket or task
+				if (!child.startsWith(Master.BUCKET_PREFIX)) {
+					taskPaths.add("/dist50/tasks/" + child);
+					continue;
+				}
+				try {
+					for (String task : zk.getChildren("/dist50/tasks/" + child, false))
+						taskPaths.add("/dist50/tasks/" + child + "/" + task);
+				} catch (KeeperException.NoNodeException ignored) {} // Bucket removed meanwhile
+			}
+
+			for (String taskPath : taskPaths) {
+				long reclaimed = reap(taskPath, cutoff);
+				if (reclaimed >= 0) {
+					tasks++;
+					bytes += reclaimed;
+				}
+			}
+		} catch (KeeperException | InterruptedException e) {
+			System.err.println(sig + Col.RED.bg("Error while listing tasks, pass aborted."));
+			e.printStackTrace();
+		}
+
+		reclaimedTasks.addAndGet(tasks);
+		reclaimedBytes.addAndGet(bytes);
+		System.out.println(sig + (tasks == 0
+			? Col.YELLOW.fg("Nothing to reclaim")
+			: Col.GREEN.fg("Reclaimed " + tasks + " abandoned tasks (" + bytes + " bytes)")));
+	}
+
+	/**
+	 * Delete a task and all of its children in one transaction if its result is older than the
+	 * cutoff, or if it has no result, is older than the cutoff and the Master is done with it.
+	 * @return Number of bytes reclaimed, or -1 if the task was left alone.
+	 */
+	private long reap(String taskPath, long cutoff) throws InterruptedException {
+		try {
+			Stat resultStat = zk.exists(taskPath + "/result", false);
+			if (resultStat != null && resultStat.getMtime() > cutoff) return -1;
+			// Asked before listing the children: a result stored since shows up in the listing.
+			if (resultStat == null && !master.isSettled(taskPath.substring("/dist50/tasks/".length()))) return -1;
+
+			Stat taskStat = new Stat();
+			List<String> children = zk.getChildren(taskPath, false, taskStat);
+			if (resultStat == null && (taskStat.getCtime() > cutoff || children.contains("result"))) return -1;
+			List<Op> ops = new ArrayList<>();
+			long bytes = taskStat.getDataLength();
+			for (String child : children) {
+				Stat childStat = zk.exists(taskPath + "/" + child, false);
+				if (childStat != null) bytes += childStat.getDataLength();
+				ops.add(Op.delete(taskPath + "/" + child, -1));
+			}
+			ops.add(Op.delete(taskPath, taskStat.getVersion()));
+			zk.multi(ops);
+			return bytes;
+		} catch (KeeperException e) {
+			// Most likely the client woke up and cleaned up after itself in the meantime.
+			return -1;
+		}
+	}
+
+}
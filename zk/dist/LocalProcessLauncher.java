@@ -0,0 +1,40 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Launches workers as new DistProcess JVMs on the local host, with the same JVM, classpath and
+ * environment (ZKSERVER, *_50) as the master. The output of each worker goes to its own log file
+ * in the temporary directory.
+ * <p>
+ * The worker's stdin stays connected to us so that its command listener blocks instead of
+ * reading EOF; if we die, it simply stops listening for commands.
+ */
+public class LocalProcessLauncher implements WorkerLauncher {
+	private final List<Process> processes = new ArrayList<>();
+	private int launched = 0;
+
+	@Override
+	public synchronized void launch() throws IOException {
+		String sig = Col.B_GREEN.fg("LocalProcessLauncher/launch") + " : ";
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		File log = new File(System.getProperty("java.io.tmpdir"),
+			"dist50-worker-" + ProcessHandle.current().pid() + "-" + launched++ + ".log");
+
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "DistProcess")
+			.redirectErrorStream(true)
+			.redirectOutput(log)
+			.start();
+		processes.add(process);
+		System.out.println(sig + "Started worker process " + process.pid() + ", logging to " + log);
+	}
+
+	@Override
+	public synchronized int running() {
+		processes.removeIf((process) -> !process.isAlive());
+		return processes.size();
+	}
+
+}
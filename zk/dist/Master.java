@@ -1,24 +1,123 @@
 import org.apache.zookeeper.*;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class representing a Master. See master.md for more details.
  */
 public class Master {
-	private final ZooKeeper zk;
+	/** Placeholder task of a worker we know is busy, but not yet with what. */
+	static final String UNKNOWN_TASK = "?";
+	/**
+	 * Placeholder task of a worker we took a task back from (it timed out): busy until its
+	 * computation has stopped and it deleted the assignment, see {@link #timeOutTasks()}.
+	 */
+	static final String TAKEN_BACK = "!";
+
+	/** A task graph stage that is not queued yet. */
+	private static class BlockedStage {
+		/** Data of the stage ZNode, so we don't have to read it again. */
+		final byte[] data;
+		/** Parent tasks that don't have a result yet. */
+		final Set<String> waitingOn;
+
+		BlockedStage(byte[] data, Set<String> waitingOn) {
+			this.data = data;
+			this.waitingOn = waitingOn;
+		}
+	}
+
+	private final Coordination zk;
+	/** Which tasks and workers this Master is responsible for (everything unless sharded). */
+	private ShardMap shards;
 	/** Set of ALL tasks that have been "processed" (queued and are either waiting or finished). */
 	private final Set<String> processedTasks = new HashSet<>();
 	/** Queue of all tasks that are currently WAITING but have NOT been assigned to a worker yet. */
 	private final Deque<String> pendingTasks = new ConcurrentLinkedDeque<>();
+	/** Prefix of the task buckets under /dist50/tasks. */
+	static final String BUCKET_PREFIX = "b-";
+	/** Task graph stages waiting on their parents, with what they still wait on. */
+	private final Map<String, BlockedStage> blockedStages = new HashMap<>();
+	/** Parent task to the blocked stages waiting on its result. */
+	private final Map<String, Set<String>> dependents = new HashMap<>();
+	/** Tenant of each queued or running task whose headers we read (for admission control). */
+	private final Map<String, String> tenants = new HashMap<>();
+	/** Cores asked for by each queued or running {@link ParallelTask} whose headers we read. */
+	private final Map<String, Integer> taskCores = new HashMap<>();
+	/** When each queued or running task was first queued (epoch ms), to tell workers how long it waited. */
+	private final Map<String, Long> queuedAt = new HashMap<>();
+	/** Cores each worker offers, once we read its ZNode. */
+	private final Map<String, Integer> workerCores = new HashMap<>();
+	/** Data of pending tasks small enough to be inlined in their assignment. */
+	private final Map<String, byte[]> payloads = new HashMap<>();
+	/**
+	 * Most bytes kept in {@link #payloads} (INLINE_CACHE_MB_50): past it, further tasks are
+	 * assigned by name only, so that a large backlog doesn't fill the heap.
+	 */
+	static final long INLINE_CACHE_BYTES = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("INLINE_CACHE_MB_50"), "64")) << 20;
+	/** Bytes kept in {@link #payloads}. */
+	private long payloadBytes = 0;
+	/** Buckets for which a watcher loop is running. */
+	private final Set<String> watchedBuckets = ConcurrentHashMap.newKeySet();
 	/** Keeps track of all workers and their assigned tasks (local). */
 	private final Map<String, String> workerMap = new HashMap<>();
+	/** When each busy worker was assigned its task (epoch ms), for tasks we assigned ourselves. */
+	private final Map<String, Long> assignedAt = new HashMap<>();
+	/** Workers whose assignment we are creating (no reply yet): listings may not show it. */
+	private final Set<String> creatingAssignments = new HashSet<>();
+	/** Decides which task goes to which worker (SCHED_POLICY_50). */
+	private final SchedulingPolicy policy = SchedulingPolicy.fromEnv();
+	/** Records scheduler events for the simulator (SCHED_TRACE_50), no-op if disabled. */
+	private final SchedulerTrace trace = SchedulerTrace.fromEnv();
+	/** Reaps tasks whose results were never picked up by their client. */
+	private Janitor janitor;
 
-	public Master(ZooKeeper zk) {
+	/** Launches and retires workers with the backlog (AUTOSCALE_50). */
+	private Autoscaler autoscaler;
+	/**
+	 * Workers watcher trips closer than this (ms) are a join storm: we wait this long before
+	 * listing the workers again, so that one listing picks up many joins.
+	 */
+	static final long JOIN_BATCH_MS = 100;
+	/** When the workers watcher last tripped. Only used on the event thread. */
+	private long lastWorkersTrip = 0;
+	/** Runs the delayed worker listings of join storms. */
+	private final ScheduledExecutorService joinBatcher =
+		Executors.newSingleThreadScheduledExecutor((r) -> new Thread(r, "join-batch"));
+	/** Tells clients to hold back their tasks when overloaded (ADMIT_*_50). */
+	private AdmissionController admission;
+	/** Workers asked to exit: never assigned anything again. */
+	private final Set<String> draining = new HashSet<>();
+	/** Failures and timeouts of each worker, and which ones are quarantined. */
+	private WorkerHealth health;
+	/** Workers each task failed or timed out on, so that it goes to another one. */
+	private final Map<String, Set<String>> failedOn = new HashMap<>();
+	/** Tasks that timed out on a worker already: timing out again is their fault, not the worker's. */
+	private final Set<String> timedOutTasks = new HashSet<>();
+	/**
+	 * Tasks we gave up on (they failed on too many workers, or a parent stage did), with their last
+	 * error, until their ZNode is gone (see {@link #forgetGoneFailures}).
+	 */
+	private final Map<String, String> failedTasks = new LinkedHashMap<>();
+	/** Failure reports (children of /dist50/assignments) we read: they stay listed until deleted. */
+	private final Set<String> failureReports = new HashSet<>();
+
+	public Master(Coordination zk, ShardMap shards) {
 		String sig = Col.B_CYAN.fg("Master/constructor") + " : ";
 		this.zk = zk;
+		this.shards = shards;
+		this.janitor = new Janitor(zk, this, shards);
+		this.autoscaler = new Autoscaler(zk, this, shards);
+		this.admission = new AdmissionController(zk, this, shards);
+		this.health = new WorkerHealth(this);
 		System.out.println(sig + "Constructed and ready for init.");
 	}
 
@@ -30,13 +129,52 @@ public class Master {
 		String sig = Col.B_CYAN.fg("Master/init : ");
 		System.out.println(sig + "Initializing...");
 		new Thread(commandHandler).start();
+		// Know the other shards before deciding which tasks are ours
+		if (shards.isSharded()) getShards(); // Async to not block
 		// Initialise list of workers (they WON'T fail and won't shut down unless ordered to)
 		getWorkers(); // Async to not block
 		getTasks(); // Async to not block
 		getAssignments(); // Async to not block
+		janitor.start(); // Runs on its own thread
+		autoscaler.start(); // Runs on its own thread, if enabled
+		admission.start(); // Runs on its own thread, if enabled
+		health.start(); // Runs on its own thread, if task timeouts are enabled
 		System.out.println(sig + "Initialization done.");
 	}
 
+	/**
+	 * Our session expired and DistProcess got us a new one (and our master ZNode back): the
+	 * watches of our loops went with the old one. Start every loop again. Their callbacks compare
+	 * the tree with what we know, like they always do, so whatever changed while we were away is
+	 * caught up on: workers that left (their tasks recovered) or joined, tasks submitted,
+	 * assignments finished. Our threads (janitor, autoscaler...) kept running on this Coordination.
+	 */
+	public void recover() {
+		String sig = Col.B_CYAN.fg("Master/recover : ");
+		System.out.println(sig + "Restarting the watcher loops...");
+		watchedBuckets.clear(); // Their loops ended with the session, getTasks() restarts them
+		if (shards.isSharded()) getShards();
+		getWorkers();
+		getTasks();
+		getAssignments();
+		List<String> parents;
+		synchronized (this) {
+			parents = new ArrayList<>(dependents.keySet());
+		}
+		for (String parent : parents) checkDependency(parent);
+	}
+
+	/**
+	 * Whether a loop callback failed because of the connection (rc). After a CONNECTIONLOSS, the
+	 * watch wasn't set: send the request again (retry), it goes out once the client reconnected.
+	 * After a SESSIONEXPIRED, nothing to do: {@link #recover()} restarts every loop.
+	 */
+	private boolean connectionLost(int rc, Runnable retry) {
+		KeeperException.Code code = KeeperException.Code.get(rc);
+		if (code == KeeperException.Code.CONNECTIONLOSS) retry.run();
+		return code == KeeperException.Code.CONNECTIONLOSS || code == KeeperException.Code.SESSIONEXPIRED;
+	}
+
 	private final Runnable commandHandler = () -> {
 		String sig = Col.RED.fg("Worker/commandListener") + " : ";
 		Scanner sc = new Scanner(System.in);
@@ -52,30 +190,83 @@ public class Master {
 						System.out.println("Currently pending tasks queue: [");
 						for (String task : pendingTasks) System.out.printf("  [%s]\n", task);
 						System.out.println("]");
+						if (!blockedStages.isEmpty()) {
+							System.out.println("Stages waiting on their parents: [");
+							for (Map.Entry<String, BlockedStage> stage : blockedStages.entrySet())
+								System.out.printf("  [%s] -> %s\n", stage.getKey(), Col.YELLOW.fg(stage.getValue().waitingOn.toString()));
+							System.out.println("]");
+						}
+						if (!failedTasks.isEmpty()) {
+							System.out.println("Tasks given up on: [");
+							for (Map.Entry<String, String> task : failedTasks.entrySet())
+								System.out.printf("  [%s] -> %s\n", task.getKey(), Col.RED.fg(task.getValue()));
+							System.out.println("]");
+						}
 					}
 				}
 				// List all current assignments
 				else if ("ls workers".equalsIgnoreCase(cmd)) {
 					synchronized (this) {
+						if (shards.isSharded())
+							System.out.println("We are " + shards.getShard() + ", live shards: " + shards.getLiveShards());
 						System.out.println("Current worker assignments: [");
+						int cores = 0;
+						int busyCores = 0;
+						long now = System.currentTimeMillis();
 						for (Map.Entry<String, String> worker : workerMap.entrySet()) {
-							System.out.printf("  [%s] -> %s\n", worker.getKey(),
+							int offered = workerCores.getOrDefault(worker.getKey(), 1);
+							int granted = worker.getValue() == null ? 0 : coresOf(worker.getValue(), offered);
+							cores += offered;
+							busyCores += granted;
+							System.out.printf("  [%s] -> %s%s%s%s%s\n", worker.getKey(),
 								worker.getValue() == null
 									? Col.GREEN.fg("Idle")
-									: "[" + Col.BLUE.fg(worker.getValue()) + "]");
+									: "[" + Col.BLUE.fg(worker.getValue()) + "]",
+								Col.GRAY.fg(" (" + (worker.getValue() == null ? "" : granted + "/") + offered + " cores)"),
+								draining.contains(worker.getKey()) ? Col.YELLOW.fg(" (draining)") : "",
+								health.describe(worker.getKey(), now),
+								shards.owns(worker.getKey())
+									? ""
+									: Col.GRAY.fg(" (owned by " + shards.ownerOf(worker.getKey()) + ")"));
 						}
 						System.out.println("]");
+						System.out.printf("%d of %d cores busy\n", busyCores, cores);
 					}
 				}
+				// Reap abandoned tasks now and show what was reclaimed so far
+				else if ("gc".equalsIgnoreCase(cmd)) {
+					janitor.printStats();
+					janitor.collectNow();
+				}
+				// Show the autoscaler's latest estimate
+				else if ("autoscale".equalsIgnoreCase(cmd)) {
+					autoscaler.printStats();
+				}
+				// Show whether clients may submit
+				else if ("admission".equalsIgnoreCase(cmd)) {
+					admission.printStats();
+				}
+				// Show what the tasks used, per task class and tenant
+				else if ("usage".equalsIgnoreCase(cmd)) {
+					printUsage();
+				}
 				else {
 					System.out.println(sig + Col.RED.fg("Unknown command \"" + cmd + "\""));
 				}
+			} catch (NoSuchElementException e) {
+				System.out.println(sig + Col.YELLOW.fg("No console, stop listening for commands."));
+				return;
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		}
 	};
 
+	/** The "usage" command (not in the handler itself, which is initialized before {@link #zk}). */
+	private void printUsage() throws KeeperException, InterruptedException {
+		UsageLedger.printTotals(zk);
+	}
+
 	/* ===================================== NEW WORKER MANAGEMENT "LOOP" ===================================== */
 
 	private void getWorkers() {
@@ -91,13 +282,20 @@ public class Master {
 
 		switch (event.getType()) {
 			case NodeChildrenChanged: // Potential new worker, allow callback and watcher loop
-				getWorkers(); // Renew loop
+				long now = System.currentTimeMillis();
+				if (now - lastWorkersTrip < JOIN_BATCH_MS) {
+					// Storm: no watch until we list again, so the joins in between come in one batch.
+					joinBatcher.schedule(this::getWorkers, JOIN_BATCH_MS, TimeUnit.MILLISECONDS);
+				}
+				else {
+					getWorkers(); // Renew loop
+				}
+				lastWorkersTrip = now;
 				break;
-			case None: // Connection closed?
-				if (event.getState() == Watcher.Event.KeeperState.Closed) {
+			case None: // Connection state: the watch outlives a disconnection, recover() renews it after an expiry
+				if (event.getState() == Watcher.Event.KeeperState.Closed)
 					System.out.println(sig + Col.RED.fg("Disconnect: terminating workers \"watcher loop\""));
-					return; // Don't renew loop
-				}
+				return; // Don't renew loop
 			default: // Something wrong happened
 				System.err.printf(sig + Col.RED.bg("An unexpected event has occurred!")
 						+ " [type] = %s | [state] = %s | [path] = %s\n",
@@ -114,22 +312,30 @@ public class Master {
 	 */
 	private final AsyncCallback.ChildrenCallback workersChangeCB = (rc, path, ctx, children) -> {
 		String sig = Col.MAGENTA.bg("Master/workersChangeCB") + " : ";
-		System.out.println(sig + "Callback with > " + KeeperException.Code.get(rc) + " : " + path + " : " + ctx + " : " + children);
+		System.out.println(sig + "Callback with > " + KeeperException.Code.get(rc) + " : " + path + " : " + ctx + " : "
+			+ (children == null ? null : children.size() + " workers"));
 
-		// Connection dropped or some other error
-		if (KeeperException.Code.get(rc) != KeeperException.Code.OK)
+		if (connectionLost(rc, this::getWorkers)) return;
+		// Some other error (NONODE after a reset, say): no list to compare with
+		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
 			System.err.println(sig + Col.RED.bg("Error occurred! " + KeeperException.Code.get(rc).name()));
+			return;
+		}
 
 		int added = 0;
 		AtomicInteger removed = new AtomicInteger();
 		synchronized (this) {
 			System.out.println(sig + "Processing worker changes...");
 
-			// Add all new untracked workers.
+			// Add all new untracked workers. Only named if there are few (not in a join storm).
+			boolean quiet = !DistProcess.LOOP_PRINT && children.size() - workerMap.size() > 10;
 			for (String worker : children) {
 				if (!workerMap.containsKey(worker)) {
-					System.out.println(sig + Col.GREEN.fg("  Added worker [" + worker + "]"));
+					if (!quiet) System.out.println(sig + Col.GREEN.fg("  Added worker [" + worker + "]"));
 					workerMap.put(worker, null); // No tasks currently assigned.
+					getWorkerCores(worker);
+					trace.join(worker);
+					autoscaler.workerJoined();
 					added++;
 				}
 			}
@@ -143,8 +349,13 @@ public class Master {
 						System.out.println(sig + Col.RED.fg +
 							"  Removing [" + entry.getKey() + "]" + (task != null
 							? " with assigned task [" + task + "]" : "") + Col.RESET);
-						if (task != null)
-							System.out.println(sig + "  Aborted task re-enqueuing would happen here (not implemented)");
+						if (task != null) recoverTask(entry.getKey(), task); // Async
+						assignedAt.remove(entry.getKey());
+						workerCores.remove(entry.getKey());
+						draining.remove(entry.getKey());
+						health.forget(entry.getKey());
+						policy.workerLeft(entry.getKey(), System.currentTimeMillis());
+						trace.leave(entry.getKey());
 						removed.getAndIncrement();
 						return true;
 					}
@@ -166,6 +377,69 @@ public class Master {
 		}
 	};
 
+	/**
+	 * A worker left while running a task: delete its (now orphan) assignment, and queue the task
+	 * again unless it got its result in the meantime. Checkpointable tasks will resume from their
+	 * last checkpoint. Only the owner of the task re-queues it.
+	 */
+	private void recoverTask(String worker, String task) {
+		if (UNKNOWN_TASK.equals(task)) {
+			// Assigned by someone else and we don't know with what yet, the assignment tells.
+			zk.getData("/dist50/assignments/" + worker, false, orphanAssignmentCB, worker);
+			return;
+		}
+		zk.delete("/dist50/assignments/" + worker, -1, orphanDeleteCB, worker);
+		// Taken back: re-queued at the time already.
+		if (!TAKEN_BACK.equals(task) && shards.owns(ShardMap.keyOfTask(task)))
+			zk.getChildren("/dist50/tasks/" + task, false, abandonedTaskCB, task);
+	}
+
+	private final AsyncCallback.DataCallback orphanAssignmentCB = (rc, path, ctx, data, stat) -> {
+		if (KeeperException.Code.get(rc) == KeeperException.Code.OK) {
+			Assignment assignment = Assignment.decode(data);
+			recoverTask((String) ctx, assignment.isTakenBack() ? TAKEN_BACK : assignment.getTask());
+		}
+		// NONODE: it had finished, or another master already recovered it.
+	};
+
+	private final AsyncCallback.VoidCallback orphanDeleteCB = (rc, path, ctx) -> {
+		String sig = Col.MAGENTA.bg("Master/orphanDeleteCB") + " : ";
+		// NONODE: another master (shard) deleted it first.
+		if (KeeperException.Code.get(rc) != KeeperException.Code.OK && KeeperException.Code.get(rc) != KeeperException.Code.NONODE)
+			System.err.println(sig + Col.RED.fg("Could not delete the assignment of [" + ctx + "] : " + KeeperException.Code.get(rc)));
+	};
+
+	/** The children of the abandoned task (ctx) tell whether it still needs to run. */
+	private final AsyncCallback.ChildrenCallback abandonedTaskCB = (rc, path, ctx, children) -> {
+		String sig = Col.MAGENTA.bg("Master/abandonedTaskCB") + " : ";
+		String task = (String) ctx;
+		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
+			System.out.println(sig + "Abandoned task [" + task + "] : " + KeeperException.Code.get(rc) + ", not re-queuing it.");
+			return;
+		}
+		if (children.contains("result")) {
+			System.out.println(sig + "Abandoned task [" + task + "] had already stored its result.");
+			return;
+		}
+
+		boolean requeued = false;
+		synchronized (this) {
+			if (!pendingTasks.contains(task) && !workerMap.containsValue(task)) {
+				// It has been waiting the longest, so it goes first.
+				pendingTasks.addFirst(task);
+				queuedAt.putIfAbsent(task, System.currentTimeMillis());
+				policy.taskQueued(task, System.currentTimeMillis());
+				trace.arrival(task);
+				requeued = true;
+			}
+		}
+		if (requeued) {
+			System.out.println(sig + Col.GREEN.fg("Re-queued abandoned task [" + task + "]"
+				+ (children.contains("checkpoint") ? ", it will resume from its checkpoint." : ".")));
+			assignmentRound();
+		}
+	};
+
 	/* ===================================== NEW TASK MANAGEMENT "LOOP" ===================================== */
 
 	void getTasks() {
@@ -183,11 +457,10 @@ public class Master {
 			case NodeChildrenChanged: // Potential new task, allow callback and watcher loop
 				getTasks(); // Renew loop
 				break;
-			case None: // Connection closed?
-				if (event.getState() == Watcher.Event.KeeperState.Closed) {
+			case None: // Connection state: the watch outlives a disconnection, recover() renews it after an expiry
+				if (event.getState() == Watcher.Event.KeeperState.Closed)
 					System.out.println(sig + Col.RED.fg("Disconnect: terminating tasks \"watcher loop\""));
-					return; // Don't renew loop
-				}
+				return; // Don't renew loop
 			default: // Something wrong happened
 				System.err.printf(sig + Col.RED.bg("An unexpected event has occurred!")
 						+ " [type] = %s | [state] = %s | [path] = %s\n",
@@ -202,31 +475,34 @@ public class Master {
 	 * to the set of processed tasks and enqueue them.
 	 * If the callback is from a client removing its task because it finished, this iteration does
 	 * nothing.
+	 * Children named "b-x" are task buckets (see {@link #getBucket(String)}): each new bucket gets
+	 * its own watcher loop. Any other child is a task submitted by a client using the flat layout.
 	 */
 	private final AsyncCallback.ChildrenCallback tasksChangeCB = (rc, path, ctx, children) -> {
 		String sig = Col.GRAY.bg("Master/tasksChangeCB") + " : ";
-		System.out.println(sig + "Callback with > " + KeeperException.Code.get(rc) + " : " + path + " : " + ctx + " : " + children);
+		if (connectionLost(rc, this::getTasks)) return;
+		System.out.println(sig + "Callback with > " + KeeperException.Code.get(rc) + " : " + path + " : " + ctx + " : "
+			+ (children == null ? null : children.size() + " children"));
 
-		// Connection dropped or some other error
+		// Some other error: no children to process
 		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
 			System.err.println(sig + Col.RED.bg("Error occurred! " + KeeperException.Code.get(rc).name()));
+			return;
 		}
 
-		AtomicInteger newTasks = new AtomicInteger();
-		synchronized (this) {
-			System.out.println(sig + "Processing task changes...");
-			// Add all unseen tasks to the queue
-			children.forEach((x) -> {
-				if (!processedTasks.contains(x)) {
-					System.out.println(sig + Col.GREEN.fg("  Queuing task [" + x +"]"));
-					processedTasks.add(x);
-					pendingTasks.add(x);
-					newTasks.getAndIncrement();
-				}
-			});
+		List<String> flatTasks = new ArrayList<>();
+		for (String child : children) {
+			if (!shards.owns(child)) continue; // Another shard's bucket or task
+			if (!child.startsWith(BUCKET_PREFIX)) flatTasks.add(child);
+			else if (watchedBuckets.add(child)) {
+				System.out.println(sig + Col.GREEN.fg("  Watching new bucket [" + child + "]"));
+				getBucket(child); // Start the bucket's own loop
+			}
 		}
-		if (newTasks.get() != 0) {
-			System.out.println(sig + Col.GREEN.fg(newTasks.get() + " new tasks enqueued: start assignment round."));
+
+		int newTasks = enqueueNewTasks(sig, "", flatTasks);
+		if (newTasks != 0) {
+			System.out.println(sig + Col.GREEN.fg(newTasks + " new tasks enqueued: start assignment round."));
 			assignmentRound();
 		}
 		else {
@@ -234,6 +510,438 @@ public class Master {
 		}
 	};
 
+	/**
+	 * Add all unseen tasks to the queue. Task graph stages ("stage-y") are only queued once their
+	 * parents are done, see {@link #getStageDeps(String)}.
+	 * @param prefix Prepended to each child to get the task name, the task's bucket ("b-x/") or "".
+	 * @return Number of newly enqueued tasks.
+	 */
+	private int enqueueNewTasks(String sig, String prefix, List<String> children) {
+		int newTasks = 0;
+		synchronized (this) {
+			if (DistProcess.LOOP_PRINT) System.out.println(sig + "Processing task changes...");
+			for (String child : children) {
+				String task = prefix + child;
+				if (!processedTasks.contains(task)) {
+					processedTasks.add(task);
+					if (child.startsWith(TaskEnvelope.STAGE_PREFIX)) {
+						System.out.println(sig + Col.YELLOW.fg("  Checking dependencies of stage [" + task +"]"));
+						getStageDeps(task);
+						continue;
+					}
+					System.out.println(sig + Col.GREEN.fg("  Queuing task [" + task +"]"));
+					queueTask(task, null);
+					newTasks++;
+				}
+			}
+			forgetGoneFailures(prefix, children);
+		}
+		return newTasks;
+	}
+
+	/**
+	 * Forget the tasks we gave up on that a listing doesn't show anymore: the Janitor reaped them,
+	 * or their client deleted them. Call while synchronized.
+	 * @param prefix What was listed, like for {@link #enqueueNewTasks}: a bucket ("b-x/"), or ""
+	 *               for the tasks outside buckets.
+	 */
+	private void forgetGoneFailures(String prefix, List<String> children) {
+		if (failedTasks.isEmpty()) return;
+		Set<String> listed = new HashSet<>(children);
+		failedTasks.keySet().removeIf((task) -> (prefix.isEmpty() ? task.indexOf('/') < 0 : task.startsWith(prefix))
+			&& !listed.contains(task.substring(prefix.length())));
+	}
+
+	/**
+	 * Append a task to the queue. Call while synchronized.
+	 * @param data Data of the task ZNode if we already read it, null to read it if we need it
+	 *             (the policy wants headers, or we inline payloads in assignments).
+	 */
+	private void queueTask(String task, byte[] data) {
+		pendingTasks.add(task);
+		queuedAt.putIfAbsent(task, System.currentTimeMillis());
+		policy.taskQueued(task, System.currentTimeMillis());
+		trace.arrival(task);
+		autoscaler.taskArrived();
+		admission.taskArrived();
+		if (data != null) learnTask(task, data);
+		else if (policy.wantsHeaders() || admission.isEnabled() || Assignment.INLINE_MAX_BYTES > 0) getTaskData(task);
+	}
+
+	/**
+	 * Keep the payload of a queued task if it's small enough to be inlined in its assignment, and
+	 * hand its headers to the policy (and the trace). Call while synchronized.
+	 */
+	private void learnTask(String task, byte[] data) {
+		String sig = Col.GRAY.bg("Master/learnTask") + " : ";
+		// Unless it was assigned before we could read it.
+		if (data.length <= Assignment.INLINE_MAX_BYTES && !workerMap.containsValue(task)) keepPayload(task, data);
+		if (!policy.wantsHeaders() && !admission.isEnabled()) return;
+		try {
+			Map<String, String> headers = TaskEnvelope.decode(data).getHeaders();
+			tenants.put(task, headers.getOrDefault(TaskEnvelope.TENANT, AdmissionState.DEFAULT_TENANT));
+			if (headers.containsKey(TaskEnvelope.CORES)) {
+				try {
+					taskCores.put(task, Integer.parseInt(headers.get(TaskEnvelope.CORES)));
+				} catch (NumberFormatException ignored) {} // Placed like a task that didn't ask
+			}
+			policy.taskHeaders(task, headers);
+			for (Map.Entry<String, String> header : headers.entrySet())
+				trace.header(task, header.getKey(), header.getValue());
+		} catch (IOException e) {
+			System.err.println(sig + Col.RED.fg("Could not decode the headers of [" + task + "] : " + e));
+		}
+	}
+
+	/**
+	 * Keep the data of a task to inline it in its assignment, unless that would keep more than
+	 * {@link #INLINE_CACHE_BYTES}. Call while synchronized.
+	 */
+	private void keepPayload(String task, byte[] data) {
+		if (payloadBytes + data.length > INLINE_CACHE_BYTES) return;
+		byte[] previous = payloads.put(task, data);
+		payloadBytes += data.length - (previous == null ? 0 : previous.length);
+	}
+
+	/** Forget the data of a task (it's assigned or gone), returning it. Call while synchronized. */
+	private byte[] dropPayload(String task) {
+		byte[] data = payloads.remove(task);
+		if (data != null) payloadBytes -= data.length;
+		return data;
+	}
+
+	private void getTaskData(String task) {
+		zk.getData("/dist50/tasks/" + task, false, taskDataCB, task);
+	}
+
+	/** Learn about a newly queued task (ctx) from its data, see {@link #learnTask(String, byte[])}. */
+	private final AsyncCallback.DataCallback taskDataCB = (rc, path, ctx, data, stat) -> {
+		String sig = Col.GRAY.bg("Master/taskDataCB") + " : ";
+		String task = (String) ctx;
+		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
+			// Most likely already done and deleted by its client (NONODE), nothing to learn. Or
+			// deleted while still pending: nothing to run either.
+			if (DistProcess.LOOP_PRINT) System.out.println(sig + "[" + task + "] : " + KeeperException.Code.get(rc));
+			if (KeeperException.Code.get(rc) == KeeperException.Code.NONODE) {
+				synchronized (this) {
+					if (pendingTasks.remove(task)) {
+						System.out.println(sig + Col.YELLOW.fg("[" + task + "] was deleted before it ran, dropping it."));
+						dropPayload(task);
+						tenants.remove(task);
+						queuedAt.remove(task);
+						taskCores.remove(task);
+						failedOn.remove(task);
+						timedOutTasks.remove(task);
+						policy.taskDropped(task);
+					}
+				}
+			}
+			return;
+		}
+		synchronized (this) {
+			learnTask(task, data);
+		}
+	};
+
+	/* ===================================== TASK GRAPHS ===================================== */
+
+	/**
+	 * Clients submit task graphs as stages named "stage-y" whose {@link TaskEnvelope#DEPS} header
+	 * lists the tasks they depend on. We read it, then wait for the result of every parent, so
+	 * that the stage can start right away without the client having to submit it.
+	 */
+	private void getStageDeps(String stage) {
+		zk.getData("/dist50/tasks/" + stage, false, stageDepsCB, stage);
+	}
+
+	private final AsyncCallback.DataCallback stageDepsCB = (rc, path, ctx, data, stat) -> {
+		String sig = Col.GRAY.bg("Master/stageDepsCB") + " : ";
+		String stage = (String) ctx;
+		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
+			// Deleted by its client in the meantime (NONODE), forget it.
+			System.err.println(sig + Col.RED.fg("Could not read stage [" + stage + "] : " + KeeperException.Code.get(rc)));
+			return;
+		}
+
+		Map<String, String> headers;
+		try {
+			headers = TaskEnvelope.decode(data).getHeaders();
+		} catch (IOException e) {
+			System.err.println(sig + Col.RED.fg("Could not decode the headers of [" + stage + "], queuing it as is : " + e));
+			headers = new HashMap<>();
+		}
+		Set<String> parents = new HashSet<>(TaskEnvelope.parseDeps(headers.get(TaskEnvelope.DEPS)).values());
+		synchronized (this) {
+			if (!processedTasks.contains(stage)) return; // Handed over to another shard in the meantime
+			if (parents.isEmpty()) {
+				queueTask(stage, data);
+			}
+			else {
+				System.out.println(sig + "Stage [" + stage + "] waits on " + parents);
+				blockedStages.put(stage, new BlockedStage(data, parents));
+				for (String parent : parents) {
+					dependents.computeIfAbsent(parent, (p) -> new HashSet<>()).add(stage);
+					checkDependency(parent);
+				}
+			}
+		}
+		if (parents.isEmpty()) assignmentRound();
+	};
+
+	/** Watch for the result of a parent task (existence check + watch in one call). */
+	private void checkDependency(String parent) {
+		zk.exists("/dist50/tasks/" + parent + "/result", dependencyWatcher, dependencyExistsCB, parent);
+	}
+
+	/** One-shot: trips once the result of a parent task shows up. */
+	private final Watcher dependencyWatcher = (event) -> {
+		String sig = Col.GRAY.fg("Master/dependencyWatcher") + " : ";
+		if (DistProcess.LOOP_PRINT) System.out.println(sig + "Tripped with > " + event.getType() + " on " + event.getPath());
+
+		switch (event.getType()) {
+			case NodeCreated: // Parent done (or failed)
+				String result = event.getPath();
+				getParentResult(result.substring("/dist50/tasks/".length(), result.length() - "/result".length()));
+				break;
+			case NodeDeleted: // Result picked up (the watch also stays on results that already existed)
+			case NodeDataChanged:
+				break;
+			case None: // Connection state: recover() checks the dependencies again after an expiry
+				return;
+			default: // Something wrong happened
+				System.err.printf(sig + Col.RED.bg("An unexpected event has occurred!")
+						+ " [type] = %s | [state] = %s | [path] = %s\n",
+					event.getType(), event.getState(), event.getPath());
+				throw new RuntimeException();
+		}
+	};
+
+	/** If the parent (ctx) is already done, look at its result. Otherwise, the watcher will. */
+	private final AsyncCallback.StatCallback dependencyExistsCB = (rc, path, ctx, stat) -> {
+		String sig = Col.GRAY.bg("Master/dependencyExistsCB") + " : ";
+		if (connectionLost(rc, () -> checkDependency((String) ctx))) return;
+		if (KeeperException.Code.get(rc) == KeeperException.Code.OK) getParentResult((String) ctx);
+		else if (KeeperException.Code.get(rc) != KeeperException.Code.NONODE)
+			System.err.println(sig + Col.RED.bg("Error occurred on " + path + "! " + KeeperException.Code.get(rc).name()));
+	};
+
+	private void getParentResult(String parent) {
+		zk.getData("/dist50/tasks/" + parent + "/result", false, parentResultCB, parent);
+	}
+
+	/**
+	 * The result of a parent task (ctx) tells whether it failed (see {@link #failTask}): then its
+	 * dependents fail too, otherwise they may be released.
+	 */
+	private final AsyncCallback.DataCallback parentResultCB = (rc, path, ctx, data, stat) -> {
+		String parent = (String) ctx;
+		if (connectionLost(rc, () -> getParentResult(parent))) return;
+		// NONODE: picked up by its client already, a failure would have failed its dependents.
+		String error = KeeperException.Code.get(rc) == KeeperException.Code.OK ? TaskEnvelope.errorOf(data) : null;
+		if (error == null) parentDone(parent);
+		else parentFailed(parent, error);
+	};
+
+	/** Queue every stage that was only waiting on this parent task. */
+	private void parentDone(String parent) {
+		String sig = Col.GRAY.bg("Master/parentDone") + " : ";
+		int released = 0;
+		synchronized (this) {
+			Set<String> stages = dependents.remove(parent);
+			if (stages == null) return; // Already handled (the exists callback and watcher both fired)
+			for (String stage : stages) {
+				BlockedStage blocked = blockedStages.get(stage);
+				if (blocked == null) continue;
+				blocked.waitingOn.remove(parent);
+				if (blocked.waitingOn.isEmpty()) {
+					System.out.println(sig + Col.GREEN.fg("  Parents of stage [" + stage + "] are done, queuing it"));
+					blockedStages.remove(stage);
+					queueTask(stage, blocked.data);
+					released++;
+				}
+			}
+		}
+		if (released != 0) assignmentRound();
+	}
+
+	/**
+	 * Fail every stage waiting on this parent task, which failed: they would never be released.
+	 * Their own dependents fail in turn once they see the failures.
+	 */
+	private void parentFailed(String parent, String error) {
+		String sig = Col.GRAY.bg("Master/parentFailed") + " : ";
+		synchronized (this) {
+			Set<String> stages = dependents.remove(parent);
+			if (stages == null) return; // Already handled (the exists callback and watcher both fired)
+			for (String stage : stages) {
+				BlockedStage blocked = blockedStages.remove(stage);
+				if (blocked == null) continue;
+				for (String other : blocked.waitingOn) {
+					Set<String> waiting = dependents.get(other);
+					if (waiting != null && waiting.remove(stage) && waiting.isEmpty()) dependents.remove(other);
+				}
+				System.out.println(sig + Col.RED.fg("  Parent [" + parent + "] of stage [" + stage + "] failed, failing it"));
+				failTask(stage, "Parent [" + parent + "] failed: " + error);
+			}
+		}
+	}
+
+	/* ===================================== TASK BUCKETS "LOOPS" ===================================== */
+
+	/**
+	 * Clients spread their tasks over buckets (/dist50/tasks/b-x/task-y) so that a change only
+	 * makes us fetch the children of one bucket instead of the whole backlog. Every bucket has
+	 * its own watcher loop, identical to the flat tasks loop. The task name is then "b-x/task-y",
+	 * so workers can keep resolving "/dist50/tasks/" + name.
+	 */
+	private void getBucket(String bucket) {
+		String sig = Col.GRAY.fg("Master/getBucket") + " : ";
+		zk.getChildren("/dist50/tasks/" + bucket, bucketChangeWatcher, bucketChangeCB, bucket);
+		if (DistProcess.LOOP_PRINT) System.out.println(sig + "bucketChangeWatcher and bucketChangeCB set on " + bucket);
+	}
+
+	/** Watcher-loop on /dist50/tasks/b-x allows handling new tasks being submitted in that bucket. */
+	private final Watcher bucketChangeWatcher = (event) -> {
+		String sig = Col.GRAY.fg("Master/bucketChangeWatcher") + " : ";
+		if (DistProcess.LOOP_PRINT) System.out.println(sig + "Tripped with > " + event.getType() + " on " + event.getPath());
+
+		switch (event.getType()) {
+			case NodeChildrenChanged: // Potential new task, allow callback and watcher loop
+				String bucket = event.getPath().substring("/dist50/tasks/".length());
+				if (shards.owns(bucket)) getBucket(bucket); // Renew loop
+				else watchedBuckets.remove(bucket); // Moved to another shard, let the loop end
+				break;
+			case NodeDeleted: // Bucket removed (reset), stop watching it
+				watchedBuckets.remove(event.getPath().substring("/dist50/tasks/".length()));
+				break;
+			case None: // Connection state: the watch outlives a disconnection, recover() renews it after an expiry
+				if (event.getState() == Watcher.Event.KeeperState.Closed)
+					System.out.println(sig + Col.RED.fg("Disconnect: terminating bucket \"watcher loop\""));
+				return; // Don't renew loop
+			default: // Something wrong happened
+				System.err.printf(sig + Col.RED.bg("An unexpected event has occurred!")
+						+ " [type] = %s | [state] = %s | [path] = %s\n",
+					event.getType(), event.getState(), event.getPath());
+				throw new RuntimeException();
+		}
+	};
+
+	/** Same as {@link #tasksChangeCB}, but only for the tasks of one bucket (ctx). */
+	private final AsyncCallback.ChildrenCallback bucketChangeCB = (rc, path, ctx, children) -> {
+		String sig = Col.GRAY.bg("Master/bucketChangeCB") + " : ";
+		String bucket = (String) ctx;
+		if (connectionLost(rc, () -> getBucket(bucket))) return;
+
+		// Bucket deleted in the meantime or some other error
+		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
+			System.err.println(sig + Col.RED.bg("Error occurred on " + bucket + "! " + KeeperException.Code.get(rc).name()));
+			if (KeeperException.Code.get(rc) == KeeperException.Code.NONODE) {
+				watchedBuckets.remove(bucket);
+				synchronized (this) {
+					forgetGoneFailures(bucket + "/", List.of());
+				}
+			}
+			return;
+		}
+
+		int newTasks = enqueueNewTasks(sig, bucket + "/", children);
+		if (newTasks != 0) {
+			System.out.println(sig + Col.GREEN.fg(newTasks + " new tasks enqueued in " + bucket + ": start assignment round."));
+			assignmentRound();
+		}
+		else if (DistProcess.LOOP_PRINT) {
+			System.out.println(sig + Col.YELLOW.fg("No new tasks in " + bucket));
+		}
+	};
+
+	/* ===================================== SHARD MANAGEMENT "LOOP" ===================================== */
+
+	private void getShards() {
+		String sig = Col.B_BLUE.fg("Master/getShards") + " : ";
+		zk.getChildren("/dist50/shards", shardsChangeWatcher, shardsChangeCB, null);
+		if (DistProcess.LOOP_PRINT) System.out.println(sig + "shardsChangeWatcher and shardsChangeCB set");
+	}
+
+	/** Watcher-loop on /dist50/shards allows rebalancing when a shard master comes or goes. */
+	private final Watcher shardsChangeWatcher = (event) -> {
+		String sig = Col.B_BLUE.fg("Master/shardsChangeWatcher") + " : ";
+		if (DistProcess.LOOP_PRINT) System.out.println(sig + "Tripped with > " + event.getType());
+
+		switch (event.getType()) {
+			case NodeChildrenChanged: // Shard master joined or left
+				getShards(); // Renew loop
+				break;
+			case None: // Connection state: the watch outlives a disconnection, recover() renews it after an expiry
+				if (event.getState() == Watcher.Event.KeeperState.Closed)
+					System.out.println(sig + Col.RED.fg("Disconnect: terminating shards \"watcher loop\""));
+				return; // Don't renew loop
+			default: // Something wrong happened
+				System.err.printf(sig + Col.RED.bg("An unexpected event has occurred!")
+						+ " [type] = %s | [state] = %s | [path] = %s\n",
+					event.getType(), event.getState(), event.getPath());
+				throw new RuntimeException();
+		}
+	};
+
+	/** Upon a change of the live shards, rebalance if the partitioning changed. */
+	private final AsyncCallback.ChildrenCallback shardsChangeCB = (rc, path, ctx, children) -> {
+		String sig = Col.B_BLUE.bg("Master/shardsChangeCB") + " : ";
+		if (connectionLost(rc, this::getShards)) return;
+		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
+			System.err.println(sig + Col.RED.bg("Error occurred! " + KeeperException.Code.get(rc).name()));
+			return;
+		}
+
+		if (!shards.update(children)) {
+			System.out.println(sig + Col.YELLOW.fg("No changes"));
+			return;
+		}
+		System.out.println(sig + Col.GREEN.fg("Live shards are now " + children + ": rebalancing"));
+		rebalance();
+	};
+
+	/**
+	 * Give up the pending tasks we don't own anymore (their new owner will find them in ZK), then
+	 * look for the buckets and tasks we now own. Tasks already running on a worker stay where they
+	 * are: every shard knows all assignments, so nobody will queue them again.
+	 */
+	private void rebalance() {
+		String sig = Col.B_BLUE.bg("Master/rebalance") + " : ";
+		int dropped = 0;
+		synchronized (this) {
+			for (Iterator<String> it = pendingTasks.iterator(); it.hasNext(); ) {
+				String task = it.next();
+				if (!shards.owns(ShardMap.keyOfTask(task))) {
+					it.remove();
+					processedTasks.remove(task);
+					dropPayload(task);
+					tenants.remove(task);
+					queuedAt.remove(task);
+					taskCores.remove(task);
+					failedOn.remove(task);
+					timedOutTasks.remove(task);
+					policy.taskDropped(task);
+					dropped++;
+				}
+			}
+			watchedBuckets.removeIf((bucket) -> !shards.owns(bucket));
+			failedTasks.keySet().removeIf((task) -> !shards.owns(ShardMap.keyOfTask(task)));
+			for (Iterator<String> it = blockedStages.keySet().iterator(); it.hasNext(); ) {
+				String stage = it.next();
+				if (!shards.owns(ShardMap.keyOfTask(stage))) {
+					it.remove();
+					processedTasks.remove(stage);
+					dropped++;
+				}
+			}
+			dependents.values().forEach((stages) -> stages.removeIf((stage) -> !blockedStages.containsKey(stage)));
+			dependents.values().removeIf(Set::isEmpty);
+		}
+		System.out.println(sig + dropped + " pending tasks handed over to other shards.");
+		getTasks(); // Pick up what we now own
+		assignmentRound(); // The workers we own changed as well
+	}
+
 	/* ===================================== ASSIGNMENT MANAGEMENT "LOOP" ===================================== */
 
 	private void getAssignments() {
@@ -251,11 +959,10 @@ public class Master {
 			case NodeChildrenChanged: // Potential new assignment, allow callback and watcher loop
 				getAssignments(); // Renew loop
 				break;
-			case None: // Connection closed?
-				if (event.getState() == Watcher.Event.KeeperState.Closed) {
+			case None: // Connection state: the watch outlives a disconnection, recover() renews it after an expiry
+				if (event.getState() == Watcher.Event.KeeperState.Closed)
 					System.out.println(sig + Col.RED.fg("Disconnect: terminating assignments \"watcher loop\""));
-					return; // Don't renew loop
-				}
+				return; // Don't renew loop
 			default: // Something wrong happened
 				System.err.printf(sig + Col.RED.bg("An unexpected event has occurred!")
 						+ " [type] = %s | [state] = %s | [path] = %s\n",
@@ -270,6 +977,44 @@ public class Master {
 		}
 	};
 
+	private void getAssignmentData(String worker) {
+		zk.getData("/dist50/assignments/" + worker, false, assignmentDataCB, worker);
+	}
+
+	/**
+	 * Learn which task a worker assigned by another master is running (ctx is the worker), so that
+	 * we never queue that task ourselves.
+	 */
+	private final AsyncCallback.DataCallback assignmentDataCB = (rc, path, ctx, data, stat) -> {
+		String sig = Col.YELLOW.bg("Master/assignmentDataCB") + " : ";
+		String worker = (String) ctx;
+		boolean freed = false;
+		synchronized (this) {
+			if (!UNKNOWN_TASK.equals(workerMap.get(worker))) return; // Already finished or removed
+			if (KeeperException.Code.get(rc) == KeeperException.Code.OK && Assignment.decode(data).isTakenBack()) {
+				// Its task was re-queued: the worker is only busy until its computation stops.
+				System.out.println(sig + "Worker [" + worker + "] is stopping a task taken back from it");
+				workerMap.put(worker, TAKEN_BACK);
+			}
+			else if (KeeperException.Code.get(rc) == KeeperException.Code.OK) {
+				String task = Assignment.decode(data).getTask();
+				System.out.println(sig + "Worker [" + worker + "] is running [" + task + "]");
+				workerMap.put(worker, task);
+				pendingTasks.remove(task);
+				dropPayload(task);
+				queuedAt.remove(task);
+				policy.taskDropped(task); // Its own master sees it complete
+			}
+			else {
+				// Most likely finished already (NONODE), consider it idle again.
+				System.out.println(sig + "Worker [" + worker + "] : " + KeeperException.Code.get(rc));
+				workerMap.put(worker, null);
+				freed = true;
+			}
+		}
+		if (freed) assignmentRound();
+	};
+
 	/**
 	 * Upon a change in the assignments list, compare internal worker assignment map with the list
 	 * of assigned workers (children) to determine which workers became free. Recall that upon
@@ -282,6 +1027,12 @@ public class Master {
 	private final AsyncCallback.ChildrenCallback assignmentsChangeCB = (rc, path, ctx, children) -> {
 		String sigColor = "/sigCol/";
 		String sig = sigColor + ("Master/assignmentsChangeCB") + Col.RESET + " : ";
+		if (connectionLost(rc, this::getAssignments)) return;
+		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
+			// Some other error (NONODE after a reset, say): no list to compare with
+			System.err.println(sig.replace(sigColor, Col.CYAN.bg) + Col.RED.bg("Error occurred! " + KeeperException.Code.get(rc).name()));
+			return;
+		}
 		String msg = "";
 		msg += (sig + "Callback with > " + KeeperException.Code.get(rc) + " : " + path + " : " + ctx + " : " + children + "\n");
 		/*
@@ -292,15 +1043,49 @@ public class Master {
 		int newlyIdle = 0;
 		Set<String> assignments = new HashSet<>(children);
 		synchronized (this) {
+			// Workers that failed their task gave it back with a report (see FailureReport), which
+			// frees them once read.
+			Set<String> failing = new HashSet<>();
+			failureReports.retainAll(assignments);
+			for (String child : children) {
+				String worker = FailureReport.workerOf(child);
+				if (worker == null) continue;
+				failing.add(worker);
+				if (failureReports.add(child)) getFailureReport(child);
+			}
+
 			for (Map.Entry<String, String> worker : workerMap.entrySet()) {
 				// Worker is "idle" according to ZK
 				if (!assignments.contains(worker.getKey())) {
 					// Yet, worker is marked as "busy" internally
 					// ==> JUST BECAME IDLE (it removed itself from assignments)
 					// So, we update our internal worker map entry.
-					if (worker.getValue() != null) {
+					// Unless we are still creating its assignment: this listing was requested
+					// before, its reply just got to us after the assignment round. Or it failed.
+					if (TAKEN_BACK.equals(worker.getValue())) {
+						// Its computation stopped: nothing to complete, the task was re-queued already.
+						msg += String.format(sig + Col.GREEN.fg("  Worker [%s] stopped the task taken back from it and became idle.\n")
+							, worker.getKey());
+						worker.setValue(null);
+						newlyIdle++;
+					}
+					else if (worker.getValue() != null && !creatingAssignments.contains(worker.getKey())
+						&& !failing.contains(worker.getKey())) {
 						msg += String.format(sig + Col.GREEN.fg("  Worker [%s] finished [%s] and became idle.\n")
 							, worker.getKey(), worker.getValue());
+						Long started = assignedAt.remove(worker.getKey());
+						if (started != null) {
+							long now = System.currentTimeMillis();
+							policy.taskCompleted(worker.getValue(), worker.getKey(), started, now);
+							trace.complete(worker.getValue(), worker.getKey(), now - started);
+							autoscaler.taskCompleted(now - started);
+						}
+						health.completed(worker.getKey());
+						failedOn.remove(worker.getValue());
+						timedOutTasks.remove(worker.getValue());
+						tenants.remove(worker.getValue());
+						queuedAt.remove(worker.getValue());
+						taskCores.remove(worker.getValue());
 						worker.setValue(null);
 						newlyIdle++;
 					}
@@ -308,17 +1093,16 @@ public class Master {
 				// Worker is "busy" according to ZK
 				else {
 					// Yet, worker is marked as "idle" internally
-					// ==> IMPOSSIBLE
+					// ==> Assigned by someone else
 					if (worker.getValue() == null) {
-						// Worker is not idle, but we saved that it was. This should not happen as
-						// we set the worker to assigned in our local map before actually assigning
-						// by creating the ZK key.
-						msg += String.format(sig + Col.RED.bg("  Mismatch between ZK assignments"
-							+ "and local assignments map for worker [%s]\n"), worker.getKey());
-						msg += ("ZK assignments are: " + assignments + "\n");
-						msg += ("Map assignments are: " + workerMap.keySet() + "\n");
-						System.out.println(msg);
-						throw new RuntimeException();
+						// We set the worker to assigned in our local map before actually assigning
+						// by creating the ZK key, so this assignment was made by another shard
+						// master (or by the previous master before a failover). Mark the worker as
+						// busy and find out with what.
+						msg += String.format(sig + Col.YELLOW.fg("  Worker [%s] was assigned by another master.\n"),
+							worker.getKey());
+						worker.setValue(UNKNOWN_TASK);
+						getAssignmentData(worker.getKey());
 					}
 					// Otherwise ZK and Map agreement, nothing to do.
 				}
@@ -344,6 +1128,160 @@ public class Master {
 		}
 	};
 
+	/* ===================================== FAILURES AND TIMEOUTS ===================================== */
+
+	private void getFailureReport(String report) {
+		zk.getData("/dist50/assignments/" + report, false, failureReportCB, report);
+	}
+
+	/**
+	 * A worker gave its task back with a failure report (path, ctx is its name): the worker is
+	 * free, the failure counts against it if it is to blame (see {@link WorkerHealth}), and the
+	 * owner of the task tries it on another worker, then deletes the report.
+	 */
+	private final AsyncCallback.DataCallback failureReportCB = (rc, path, ctx, data, stat) -> {
+		String sig = Col.RED.bg("Master/failureReportCB") + " : ";
+		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) return; // NONODE: read by the owner of its task
+		String worker = FailureReport.workerOf((String) ctx);
+		FailureReport report = FailureReport.decode(data);
+		String task = report.getTask();
+		boolean round = false;
+		synchronized (this) {
+			System.out.println(sig + Col.RED.fg("Worker [" + worker + "] failed [" + task + "] ("
+				+ (report.isWorkerFault() ? "its" : "the task's") + " fault) : " + report.getError()));
+			if (task.equals(workerMap.get(worker)) || UNKNOWN_TASK.equals(workerMap.get(worker))) {
+				workerMap.put(worker, null);
+				assignedAt.remove(worker);
+				round = true;
+			}
+			if (report.isWorkerFault() && workerMap.containsKey(worker))
+				health.failed(worker, System.currentTimeMillis(), workerMap.size());
+			if (shards.owns(ShardMap.keyOfTask(task))) {
+				if (retry(sig, task, worker, report.getError())) round = true;
+				deleteFailureReport((String) ctx);
+			}
+		}
+		if (round) assignmentRound();
+	};
+
+	private void deleteFailureReport(String report) {
+		zk.delete("/dist50/assignments/" + report, -1, null, null);
+	}
+
+	/**
+	 * An attempt of a task failed on a worker (or timed out): queue the task again, first, for a
+	 * worker it didn't fail on. Unless it failed on {@link WorkerHealth#MAX_ATTEMPTS} workers (or
+	 * all of them) already: we give up on it, see {@link #failTask(String, String)}. Call while
+	 * synchronized.
+	 * @return Whether the task was re-queued.
+	 */
+	private boolean retry(String sig, String task, String worker, String error) {
+		Set<String> tried = failedOn.computeIfAbsent(task, (t) -> new HashSet<>());
+		tried.add(worker);
+		if (tried.size() >= WorkerHealth.MAX_ATTEMPTS || tried.containsAll(workerMap.keySet())) {
+			System.out.println(sig + Col.RED.fg("Giving up on [" + task + "], it failed on " + tried.size() + " workers."));
+			failedOn.remove(task);
+			timedOutTasks.remove(task);
+			tenants.remove(task);
+			queuedAt.remove(task);
+			taskCores.remove(task);
+			failTask(task, error);
+			return false;
+		}
+		if (pendingTasks.contains(task) || workerMap.containsValue(task)) return false;
+		pendingTasks.addFirst(task);
+		queuedAt.putIfAbsent(task, System.currentTimeMillis());
+		policy.taskQueued(task, System.currentTimeMillis());
+		trace.arrival(task);
+		System.out.println(sig + Col.GREEN.fg("Re-queued [" + task + "] for another worker."));
+		return true;
+	}
+
+	/**
+	 * Give up on a task: store a failure result ({@link TaskEnvelope#failure(String)}), so that
+	 * its client gets an error instead of waiting forever, the stages depending on it fail in turn
+	 * (see {@link #parentResultCB}), and the Janitor reaps it like any result. Its checkpoint, if
+	 * any, is deleted first (our session orders the two), so the client can delete the task.
+	 * Call while synchronized.
+	 */
+	private void failTask(String task, String error) {
+		failedTasks.put(task, error);
+		policy.taskDropped(task);
+		zk.delete("/dist50/tasks/" + task + "/checkpoint", -1, null, null);
+		zk.create("/dist50/tasks/" + task + "/result", TaskEnvelope.failure(error),
+			ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, failureResultCB, task);
+	}
+
+	private final AsyncCallback.StringCallback failureResultCB = (rc, path, ctx, name) -> {
+		String sig = Col.RED.bg("Master/failureResultCB") + " : ";
+		String task = (String) ctx;
+		KeeperException.Code code = KeeperException.Code.get(rc);
+		if (code == KeeperException.Code.CONNECTIONLOSS) {
+			// If it went through, we get NODEEXISTS this time.
+			synchronized (this) {
+				failTask(task, failedTasks.get(task));
+			}
+		}
+		// NODEEXISTS: it has a result after all. NONODE: its client deleted it.
+		else if (code != KeeperException.Code.OK && code != KeeperException.Code.NODEEXISTS && code != KeeperException.Code.NONODE)
+			System.err.println(sig + Col.RED.fg("Could not store the failure of [" + task + "] : " + code));
+	};
+
+	/**
+	 * Take back the tasks we assigned that have been running for longer than
+	 * {@link WorkerHealth#TASK_TIMEOUT_SECONDS} and try them on another worker. Their assignment
+	 * is rewritten as taken back ({@link Assignment#takeBack(String)}) rather than deleted: the
+	 * worker cancels the computation and deletes it once its compute thread is actually free, a
+	 * task ignoring interrupts keeps it busy until then. A task timing out for the second time is
+	 * to blame, not its worker. Called by the {@link WorkerHealth} thread.
+	 */
+	void timeOutTasks() {
+		String sig = Col.RED.bg("Master/timeOutTasks") + " : ";
+		boolean round = false;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Iterator<Map.Entry<String, Long>> it = assignedAt.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<String, Long> assigned = it.next();
+				String worker = assigned.getKey();
+				String task = workerMap.get(worker);
+				if (now - assigned.getValue() < WorkerHealth.TASK_TIMEOUT_SECONDS * 1000 || task == null
+					|| UNKNOWN_TASK.equals(task) || creatingAssignments.contains(worker)) continue;
+				System.out.println(sig + Col.RED.fg("Worker [" + worker + "] has been running [" + task + "] for "
+					+ (now - assigned.getValue()) / 1000 + " s, taking it back."));
+				it.remove();
+				workerMap.put(worker, TAKEN_BACK);
+				takeBack(worker, task);
+				if (timedOutTasks.add(task)) health.timedOut(worker, now, workerMap.size());
+				else System.out.println(sig + Col.YELLOW.fg("[" + task + "] timed out before, not holding it against the worker."));
+				if (shards.owns(ShardMap.keyOfTask(task)) && retry(sig, task, worker, "Timed out")) round = true;
+			}
+		}
+		if (round) assignmentRound();
+	}
+
+	private void takeBack(String worker, String task) {
+		zk.setData("/dist50/assignments/" + worker, Assignment.takeBack(task), -1, takeBackCB, new String[] {worker, task});
+	}
+
+	/** Rewrote the assignment of a timed out task as taken back (ctx is the worker and the task). */
+	private final AsyncCallback.StatCallback takeBackCB = (rc, path, ctx, stat) -> {
+		String sig = Col.RED.bg("Master/takeBackCB") + " : ";
+		String[] workerTask = (String[]) ctx;
+		KeeperException.Code code = KeeperException.Code.get(rc);
+		if (code == KeeperException.Code.CONNECTIONLOSS) takeBack(workerTask[0], workerTask[1]);
+		// Finished (or left) in the meantime: the listing of the assignments frees it.
+		else if (code == KeeperException.Code.NONODE) getAssignments();
+		else if (code != KeeperException.Code.OK)
+			System.err.println(sig + Col.RED.fg("Could not take [" + workerTask[1] + "] back from [" + workerTask[0] + "] : " + code));
+	};
+
+	/** A worker is out of quarantine (on probation): it can take tasks again. */
+	void quarantineEnded(String worker) {
+		String sig = Col.GREEN.bg("Master/quarantineEnded") + " : ";
+		System.out.println(sig + "Worker [" + worker + "] is out of quarantine.");
+		assignmentRound();
+	}
+
 	/* ===================================== Update Assignments ===================================== */
 
 	private synchronized void assignmentRound() {
@@ -356,49 +1294,289 @@ public class Master {
 		}
 
 		// Immediately exit if there are no available workers
-		if (workerMap.entrySet().stream().noneMatch( (e) -> e.getValue() == null )) {
+		long roundStart = System.currentTimeMillis();
+		if (workerMap.entrySet().stream().noneMatch( (e) -> e.getValue() == null && !draining.contains(e.getKey())
+			&& !health.isQuarantined(e.getKey(), roundStart) )) {
 			System.out.println(sig + Col.B_YELLOW.fg("There are no available workers."));
 			return;
 		}
 
 		// Try to assign as many tasks as possible.
+		Set<String> skipped = new HashSet<>(); // Only workers they failed on are free, still pending
+		Collection<String> unskipped = pendingExcept(skipped);
 		while (!pendingTasks.isEmpty()) {
-			String nextPending = pendingTasks.peekFirst();
+			long now = System.currentTimeMillis();
+			Collection<String> candidates = pendingTasks;
+			if (!skipped.isEmpty()) {
+				candidates = unskipped;
+				if (!candidates.iterator().hasNext()) break; // Stops at the first one not skipped
+			}
+			String nextPending = policy.nextTask(candidates, now);
 			System.out.println(sig + "Attempt to find idle worker for task [" + nextPending + "].");
 
+			// Already running on some worker (assigned by another master before we saw it).
+			if (workerMap.containsValue(nextPending)) {
+				System.out.println(sig + Col.YELLOW.fg("  Task is already assigned, dropping it."));
+				pendingTasks.remove(nextPending);
+				dropPayload(nextPending);
+				queuedAt.remove(nextPending);
+				policy.taskDropped(nextPending);
+				continue;
+			}
 
-			// Find a free worker
-			Optional<String> freeWorker = workerMap.entrySet().stream()
-				.filter(e -> e.getValue() == null)
-				.map(Map.Entry::getKey)
-				.findFirst();
-			if (freeWorker.isEmpty()) {
+			// Find the free workers: our own if there are any. Otherwise, borrow idle ones from
+			// other shards.
+			List<String> idle = new ArrayList<>();
+			List<String> borrowable = new ArrayList<>();
+			for (Map.Entry<String, String> worker : workerMap.entrySet()) {
+				if (worker.getValue() == null && !draining.contains(worker.getKey()) && !health.isQuarantined(worker.getKey(), now))
+					(shards.owns(worker.getKey()) ? idle : borrowable).add(worker.getKey());
+			}
+			if (idle.isEmpty()) idle = borrowable;
+			if (idle.isEmpty()) {
 				System.err.println(sig + Col.YELLOW.fg("  Ran out of free workers! Stopping round."));
 				break;
 			}
-			System.out.println(sig + Col.GREEN.fg("  Found free worker [" + freeWorker.get() + "]"));
+			// A task that failed goes to another worker: the one it failed on may be broken.
+			Set<String> tried = failedOn.get(nextPending);
+			if (tried != null) {
+				idle = new ArrayList<>(idle);
+				idle.removeAll(tried);
+				if (idle.isEmpty()) {
+					System.out.println(sig + Col.YELLOW.fg("  Only workers it failed on are free, leaving it for now."));
+					skipped.add(nextPending);
+					continue;
+				}
+			}
+			idle = bestFit(nextPending, idle);
+			String freeWorker = policy.pickWorker(nextPending, idle, now);
+			System.out.println(sig + Col.GREEN.fg("  Found free worker [" + freeWorker + "]"));
 
 			// Assign the task to the free worker
 			// Locally mark worker as BUSY first, so that we don't get confused next assignment
 			// change CB iteration
-			workerMap.put(freeWorker.get(), nextPending);
-			pendingTasks.pop();
+			workerMap.put(freeWorker, nextPending);
+			pendingTasks.remove(nextPending);
+			assignedAt.put(freeWorker, now);
+			policy.taskAssigned(nextPending, freeWorker, now);
+			trace.assign(nextPending, freeWorker);
+			creatingAssignments.add(freeWorker);
 			// Now, let the worker know (this will trigger assignment CB).
-			zk.create("/dist50/assignments/" + freeWorker.get(), nextPending.getBytes(),
-				ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, assignmentCreationCB, null);
+			// Small tasks travel in the assignment, so the worker can start after a single read.
+			long waited = now - queuedAt.getOrDefault(nextPending, now);
+			zk.create("/dist50/assignments/" + freeWorker, Assignment.encode(nextPending, dropPayload(nextPending), waited),
+				ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, assignmentCreationCB, nextPending);
 		}
 	}
 
-	/** Here to detect errors. */
+	/**
+	 * The pending tasks but some (still pending), as a view: skipping tasks in a round doesn't copy
+	 * the whole queue for each task assigned after them. Call while synchronized.
+	 */
+	private Collection<String> pendingExcept(Set<String> skipped) {
+		return new AbstractCollection<>() {
+			@Override
+			public Iterator<String> iterator() {
+				return pendingTasks.stream().filter((task) -> !skipped.contains(task)).iterator();
+			}
+
+			@Override
+			public int size() {
+				return pendingTasks.size() - skipped.size(); // Traverses the queue, like its own size()
+			}
+		};
+	}
+
+	/**
+	 * Among idle workers, those a {@link ParallelTask} fits best, so that we count cores rather
+	 * than workers: the fewest cores that still cover what it asked for (the bigger workers stay
+	 * free for bigger tasks), or the most cores if none does (or it asked for all of a worker's).
+	 * Other tasks can go to any of them. Call while synchronized.
+	 */
+	private List<String> bestFit(String task, List<String> idle) {
+		Integer wanted = taskCores.get(task);
+		if (wanted == null) return idle;
+
+		List<String> best = new ArrayList<>();
+		int bestCores = -1;
+		for (String worker : idle) {
+			int cores = workerCores.getOrDefault(worker, 1);
+			boolean better = bestCores < 0
+				|| (wanted > 0 && cores >= wanted && (bestCores < wanted || cores < bestCores)) // Tighter fit
+				|| ((wanted <= 0 || bestCores < wanted) && cores > bestCores); // Nothing fits yet: bigger
+			if (better) {
+				best.clear();
+				bestCores = cores;
+			}
+			if (cores == bestCores) best.add(worker);
+		}
+		return best;
+	}
+
+	/** Cores granted to a task on a worker offering that many (1 for tasks that didn't ask). */
+	private int coresOf(String task, int offered) {
+		Integer wanted = taskCores.get(task);
+		return wanted == null ? 1 : Worker.grant(wanted, offered);
+	}
+
+	/** Learn how many cores a new worker offers (see {@link Worker#CORES}). */
+	private void getWorkerCores(String worker) {
+		zk.getData("/dist50/workers/" + worker, false, workerDataCB, worker);
+	}
+
+	private final AsyncCallback.DataCallback workerDataCB = (rc, path, ctx, data, stat) -> {
+		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) return; // Gone already
+		synchronized (this) {
+			if (workerMap.containsKey((String) ctx)) workerCores.put((String) ctx, Worker.coresOf(data));
+		}
+	};
+
+	/**
+	 * The assignment is now in ZK (listings requested from now on show it). Also here to detect
+	 * errors. The only expected one is when another shard master assigned the same (borrowed)
+	 * worker at the same time: the task (ctx) goes back to the front of the queue. Same when the
+	 * session expired: we don't know whether the assignment was created, so we ask, and the task
+	 * may run twice (the first result wins, see Worker#commitResult). When the connection was
+	 * lost, the worker keeps the task until we read the assignment back, see
+	 * {@link #assignmentCheckCB}.
+	 */
 	private final AsyncCallback.StringCallback assignmentCreationCB = (rc, path, ctx, name) -> {
 		String sig = Col.YELLOW.bg("Master/assignmentCreateCB") + " : ";
-		if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
+		KeeperException.Code code = KeeperException.Code.get(rc);
+		if (code == KeeperException.Code.CONNECTIONLOSS) {
+			System.out.println(sig + Col.YELLOW.fg("Worker [" + path.substring("/dist50/assignments/".length())
+				+ "] may not be assigned (" + code + "), checking its assignment for [" + ctx + "]"));
+			checkAssignment(path, (String) ctx);
+			return;
+		}
+		synchronized (this) {
+			creatingAssignments.remove(path.substring("/dist50/assignments/".length()));
+		}
+		if (code == KeeperException.Code.NODEEXISTS || code == KeeperException.Code.SESSIONEXPIRED) {
+			String worker = path.substring("/dist50/assignments/".length());
+			System.out.println(sig + Col.YELLOW.fg("Worker [" + worker + "] " + (code == KeeperException.Code.NODEEXISTS
+				? "was taken by another master" : "may not be assigned (" + code + ")") + ", re-queuing [" + ctx + "]"));
+			synchronized (this) {
+				pendingTasks.addFirst((String) ctx);
+				assignedAt.remove(worker);
+				if (workerMap.containsKey(worker)) workerMap.put(worker, UNKNOWN_TASK);
+			}
+			getAssignmentData(worker);
+			assignmentRound();
+		}
+		else if (code != KeeperException.Code.OK) {
 			// Only print stuff if things go wrong.
-			System.out.println(sig + "Callback with > " + KeeperException.Code.get(rc) + " : " + path + " : " + ctx + " : " + name);
+			System.out.println(sig + "Callback with > " + code + " : " + path + " : " + ctx + " : " + name);
 			System.out.println(sig + Col.RED.bg("Failed to create ZNode"));
 			throw new RuntimeException();
 		}
 	};
 
-}
+	/**
+	 * Read back an assignment whose creation lost the connection: it may well have been created.
+	 * Until we know, the worker stays busy with the task, and listings of the assignments can't
+	 * free it (see {@link #creatingAssignments}), so the task can't go to a second worker.
+	 */
+	private void checkAssignment(String path, String task) {
+		zk.getData(path, false, assignmentCheckCB, task);
+	}
 
+	/**
+	 * The task (ctx) is only re-queued if the assignment doesn't exist (NONODE): never created, or
+	 * created and already completed, in which case it may run twice (the first result wins). If it
+	 * holds another task, another master assigned the worker first.
+	 */
+	private final AsyncCallback.DataCallback assignmentCheckCB = (rc, path, ctx, data, stat) -> {
+		String sig = Col.YELLOW.bg("Master/assignmentCheckCB") + " : ";
+		String task = (String) ctx;
+		String worker = path.substring("/dist50/assignments/".length());
+		KeeperException.Code code = KeeperException.Code.get(rc);
+		if (code == KeeperException.Code.CONNECTIONLOSS) {
+			checkAssignment(path, task);
+			return;
+		}
+		String assigned = code == KeeperException.Code.OK ? Assignment.decode(data).getTask() : null;
+		synchronized (this) {
+			creatingAssignments.remove(worker);
+			if (task.equals(assigned)) {
+				System.out.println(sig + "Worker [" + worker + "] was assigned [" + task + "] after all.");
+				return;
+			}
+			System.out.println(sig + Col.YELLOW.fg("Worker [" + worker + "] was not assigned [" + task + "] ("
+				+ (assigned == null ? code : "it runs [" + assigned + "]") + "), re-queuing it"));
+			assignedAt.remove(worker);
+			if (workerMap.containsKey(worker)) workerMap.put(worker, assigned);
+			if (assigned != null) {
+				pendingTasks.remove(assigned);
+				dropPayload(assigned);
+				queuedAt.remove(assigned);
+				policy.taskDropped(assigned);
+			}
+			if (!pendingTasks.contains(task) && !workerMap.containsValue(task)) pendingTasks.addFirst(task);
+		}
+		assignmentRound();
+	};
+
+	/* ===================================== JANITOR ===================================== */
+
+	/**
+	 * Whether we are done with a task of ours, for the {@link Janitor} to reap it if it has no
+	 * result (its result expired, see {@link Worker#RESULT_TTL}): we queued it once, and it is
+	 * neither pending, blocked nor running. While a worker's task is still unknown, none is.
+	 */
+	synchronized boolean isSettled(String task) {
+		return processedTasks.contains(task) && !queuedAt.containsKey(task) && !blockedStages.containsKey(task)
+			&& !workerMap.containsValue(task) && !workerMap.containsValue(UNKNOWN_TASK);
+	}
+
+	/* ===================================== AUTOSCALING ===================================== */
+
+	/** Number of pending tasks of each tenant, for the {@link AdmissionController}. */
+	synchronized Map<String, Integer> pendingByTenant() {
+		Map<String, Integer> pending = new HashMap<>();
+		for (String task : pendingTasks) {
+			pending.merge(tenants.getOrDefault(task, AdmissionState.DEFAULT_TENANT), 1, Integer::sum);
+		}
+		return pending;
+	}
+
+	/** Current backlog and workers (draining ones left out), for the {@link Autoscaler}. */
+	synchronized Autoscaler.Load load() {
+		int workers = 0;
+		List<String> idle = new ArrayList<>();
+		for (Map.Entry<String, String> worker : workerMap.entrySet()) {
+			if (draining.contains(worker.getKey())) continue;
+			workers++;
+			if (worker.getValue() == null) idle.add(worker.getKey());
+		}
+		return new Autoscaler.Load(pendingTasks.size(), workers, idle);
+	}
+
+	/**
+	 * Retire an idle worker gracefully: we stop assigning it anything, then create
+	 * /dist50/drain/worker-x, upon which the worker exits by itself. Its ZNode then goes away and
+	 * it is removed like any worker leaving.
+	 * @return Whether the worker is now draining (false if it's busy, gone, or already draining).
+	 */
+	synchronized boolean drain(String worker) {
+		String sig = Col.YELLOW.bg("Master/drain") + " : ";
+		if (!workerMap.containsKey(worker) || workerMap.get(worker) != null || !draining.add(worker)) return false;
+		System.out.println(sig + "Draining worker [" + worker + "]");
+		zk.create("/dist50/drain/" + worker, new byte[0],
+			ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, drainCreationCB, worker);
+		return true;
+	}
+
+	/** If the drain request could not be created, the worker (ctx) is put back to work. */
+	private final AsyncCallback.StringCallback drainCreationCB = (rc, path, ctx, name) -> {
+		String sig = Col.YELLOW.bg("Master/drainCreationCB") + " : ";
+		KeeperException.Code code = KeeperException.Code.get(rc);
+		if (code == KeeperException.Code.OK || code == KeeperException.Code.NODEEXISTS) return;
+		System.err.println(sig + Col.RED.fg("Could not drain [" + ctx + "] : " + code + ", keeping it."));
+		synchronized (this) {
+			draining.remove((String) ctx);
+		}
+		assignmentRound();
+	};
+
+}
@@ -0,0 +1,254 @@
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Coordination} that outlives its sessions. Short disconnections need nothing: the
+ * client reconnects by itself, and the session, its ephemeral nodes and its watches survive (we
+ * only time them). But once the session expires (cut from the ensemble for longer than the
+ * session timeout), the ZooKeeper handle is dead for good: we then open a new session right away,
+ * and the {@link Listener} registers again what the old one had (ephemeral nodes, watches).
+ * Everybody holding this object keeps working across the switch. In the meantime, operations
+ * fail like they would anyway (CONNECTIONLOSS, SESSIONEXPIRED).
+ */
+public class ReconnectingCoordination implements Coordination {
+
+	/** Called on the event thread of the session. */
+	public interface Listener {
+		/** The first session is connected. */
+		void connected();
+
+		/**
+		 * The session expired and a new one is connected: nothing of the old one is left.
+		 * @param expiredAt {@link System#nanoTime()} at which we learnt it expired.
+		 */
+		void renewed(long expiredAt);
+	}
+
+	private final String connectString;
+	private final int sessionTimeout;
+	private final Listener listener;
+
+	private volatile Coordination session;
+	/** Bumped with each new session, so that events of the previous ones are ignored. */
+	private int generation = 0;
+	private boolean connected = false;
+	private boolean renewing = false;
+	private long disconnectedAt = 0;
+	private long expiredAt = 0;
+
+	private final AtomicLong disconnections = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	private ReconnectingCoordination(String connectString, int sessionTimeout, Listener listener) {
+		this.connectString = connectString;
+		this.sessionTimeout = sessionTimeout;
+		this.listener = listener;
+	}
+
+	/** Connect (see {@link Coordination#connect}), the listener is told once connected. */
+	public static ReconnectingCoordination connect(String connectString, int sessionTimeout, Listener listener)
+		throws IOException {
+		ReconnectingCoordination coordination = new ReconnectingCoordination(connectString, sessionTimeout, listener);
+		coordination.open();
+		return coordination;
+	}
+
+	/** Locked so that the connection events of the new session wait until we know it. */
+	private synchronized void open() throws IOException {
+		int current = ++generation;
+		session = Coordination.connect(connectString, sessionTimeout, (event) -> process(current, event));
+	}
+
+	private void process(int sessionGeneration, WatchedEvent event) {
+		String sig = Col.B_BLUE.fg("Session/process") + " : ";
+		boolean first = false;
+		boolean renewed = false;
+		synchronized (this) {
+			if (sessionGeneration != generation) return; // An older session, closed since
+			if (event.getType() != Watcher.Event.EventType.None) return; // No default watches are set
+
+			switch (event.getState()) {
+				case SyncConnected:
+					if (disconnectedAt != 0) {
+						System.out.printf(sig + Col.GREEN.fg("Reconnected after %.1f ms, session kept\n"),
+							(System.nanoTime() - disconnectedAt) / 1e6);
+						disconnectedAt = 0;
+					}
+					first = !connected;
+					renewed = renewing && connected; // Expired before ever connecting: nothing to renew
+					connected = true;
+					renewing = false;
+					break;
+				case Disconnected:
+					if (disconnectedAt == 0) {
+						disconnectedAt = System.nanoTime();
+						disconnections.incrementAndGet();
+						System.out.println(sig + Col.YELLOW.fg("Disconnected, the client is reconnecting..."));
+					}
+					break;
+				case Expired:
+					expiredAt = System.nanoTime();
+					expirations.incrementAndGet();
+					System.out.println(sig + Col.RED.fg("Session expired" + (disconnectedAt != 0
+						? String.format(" after %.1f ms disconnected", (expiredAt - disconnectedAt) / 1e6) : "")
+						+ ", opening a new one"));
+					disconnectedAt = 0;
+					renewing = true;
+					renew();
+					return;
+				default: // Closed by us, or read-only/auth states we don't use
+					return;
+			}
+		}
+
+		if (first) listener.connected();
+		if (renewed) {
+			System.out.printf(sig + Col.GREEN.fg("New session 0x%x after %.1f ms\n"),
+				getSessionId(), (System.nanoTime() - expiredAt) / 1e6);
+			listener.renewed(expiredAt);
+		}
+	}
+
+	/** Replace the expired session, retrying until the client can be created. Call while synchronized. */
+	private void renew() {
+		String sig = Col.B_BLUE.fg("Session/renew") + " : ";
+		Coordination expired = session;
+		while (true) {
+			try {
+				open();
+				break;
+			} catch (IOException e) {
+				System.err.println(sig + Col.RED.fg("Could not open a new session, retrying : " + e));
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		try {
+			expired.close(); // Already dead, only frees the handle
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** The session in use (a new one after each expiry). */
+	Coordination current() {
+		return session;
+	}
+
+	public long getDisconnections() {
+		return disconnections.get();
+	}
+
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	/* ===================================== DELEGATION ===================================== */
+
+	@Override
+	public long getSessionId() {
+		return session.getSessionId();
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		session.close();
+	}
+
+	@Override
+	public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode)
+		throws KeeperException, InterruptedException {
+		return session.create(path, data, acl, createMode);
+	}
+
+	@Override
+	public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode,
+	                   AsyncCallback.StringCallback cb, Object ctx) {
+		session.create(path, data, acl, createMode, cb, ctx);
+	}
+
+	@Override
+	public void delete(String path, int version) throws KeeperException, InterruptedException {
+		session.delete(path, version);
+	}
+
+	@Override
+	public void delete(String path, int version, AsyncCallback.VoidCallback cb, Object ctx) {
+		session.delete(path, version, cb, ctx);
+	}
+
+	@Override
+	public Stat exists(String path, boolean watch) throws KeeperException, InterruptedException {
+		return session.exists(path, watch);
+	}
+
+	@Override
+	public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+		return session.exists(path, watcher);
+	}
+
+	@Override
+	public void exists(String path, Watcher watcher, AsyncCallback.StatCallback cb, Object ctx) {
+		session.exists(path, watcher, cb, ctx);
+	}
+
+	@Override
+	public byte[] getData(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
+		return session.getData(path, watch, stat);
+	}
+
+	@Override
+	public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+		return session.getData(path, watcher, stat);
+	}
+
+	@Override
+	public void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) {
+		session.getData(path, watch, cb, ctx);
+	}
+
+	@Override
+	public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+		return session.setData(path, data, version);
+	}
+
+	@Override
+	public void setData(String path, byte[] data, int version, AsyncCallback.StatCallback cb, Object ctx) {
+		session.setData(path, data, version, cb, ctx);
+	}
+
+	@Override
+	public List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException {
+		return session.getChildren(path, watch);
+	}
+
+	@Override
+	public List<String> getChildren(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
+		return session.getChildren(path, watch, stat);
+	}
+
+	@Override
+	public void getChildren(String path, Watcher watcher, AsyncCallback.ChildrenCallback cb, Object ctx) {
+		session.getChildren(path, watcher, cb, ctx);
+	}
+
+	@Override
+	public void getChildren(String path, boolean watch, AsyncCallback.ChildrenCallback cb, Object ctx) {
+		session.getChildren(path, watch, cb, ctx);
+	}
+
+	@Override
+	public List<OpResult> multi(Iterable<Op> ops) throws KeeperException, InterruptedException {
+		return session.multi(ops);
+	}
+
+}
@@ -0,0 +1,191 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-behind journal of the results of a worker: a memory-mapped file where each result
+ * is appended (and forced to disk) before it is published to ZK in the background. The result of
+ * a computation then survives the ensemble being slow or away, and the worker process dying
+ * before it is published: the next worker started with the same journal publishes it.
+ * <p>
+ * Record: MAGIC (int), state (byte, {@link #PENDING} or {@link #PUBLISHED}), body length (int),
+ * CRC32 of the body (int), body: task name (UTF), assignment version (int), assignment czxid
+ * (long), session (long), result length (int), result. A record that doesn't check out (torn
+ * write) ends the journal. Once every record is published, the next one starts over at the
+ * beginning of the file.
+ */
+public class ResultJournal implements Closeable {
+	/** "D50J" */
+	static final int MAGIC = 0x4435304A;
+	static final byte PENDING = 0;
+	static final byte PUBLISHED = 1;
+	/** MAGIC, state, body length, CRC. */
+	static final int HEADER = 4 + 1 + 4 + 4;
+
+	/** A result, and the assignment it was computed for (to release it when publishing). */
+	public static class Entry {
+		final String task;
+		final int assignmentVersion;
+		final long assignmentCzxid;
+		final long session;
+		final byte[] data;
+		/** Where the record is in the journal. */
+		private int position;
+
+		Entry(String task, int assignmentVersion, long assignmentCzxid, long session, byte[] data) {
+			this.task = task;
+			this.assignmentVersion = assignmentVersion;
+			this.assignmentCzxid = assignmentCzxid;
+			this.session = session;
+			this.data = data;
+		}
+	}
+
+	private final FileChannel channel;
+	private final FileLock lock;
+	private final MappedByteBuffer buffer;
+	/** Records not published yet. */
+	private int pending = 0;
+	/** Found unpublished when opening: left by a previous process. */
+	private final List<Entry> recovered = new ArrayList<>();
+
+	/**
+	 * Map the journal, creating it if needed, and read back what a previous process left.
+	 * @throws IOException Also if another process has it open.
+	 */
+	public ResultJournal(Path path, int bytes) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileLock locked;
+		try {
+			locked = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			locked = null; // By another worker of this JVM
+		}
+		lock = locked;
+		if (lock == null) {
+			channel.close();
+			throw new IOException(path + " is used by another worker");
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(bytes, channel.size()));
+		scan();
+	}
+
+	/** Read the records up to the first that doesn't check out, keep the pending ones. */
+	private void scan() {
+		int position = 0;
+		while (position + HEADER <= buffer.capacity() && buffer.getInt(position) == MAGIC) {
+			byte state = buffer.get(position + 4);
+			int length = buffer.getInt(position + 5);
+			int crc = buffer.getInt(position + 9);
+			if (length < 0 || position + HEADER + length > buffer.capacity()) break;
+			byte[] body = new byte[length];
+			ByteBuffer view = buffer.duplicate();
+			view.position(position + HEADER);
+			view.get(body);
+			if (crc != crc(body)) break; // Torn write: it was never acknowledged
+			if (state == PENDING) {
+				try {
+					Entry entry = decode(body);
+					entry.position = position;
+					recovered.add(entry);
+					pending++;
+				} catch (IOException e) {
+					break;
+				}
+			}
+			position += HEADER + length;
+		}
+		buffer.position(pending == 0 ? 0 : position);
+		if (pending == 0) buffer.putInt(0, 0);
+	}
+
+	/** Results a previous process journaled but didn't publish. */
+	public List<Entry> recovered() {
+		return recovered;
+	}
+
+	/**
+	 * Append a result and force it to disk.
+	 * @return The entry to publish, then to pass to {@link #published(Entry)}. Null if the journal
+	 *         is full: publish the result directly.
+	 */
+	public synchronized Entry append(String task, int assignmentVersion, long assignmentCzxid, long session, byte[] data)
+		throws IOException {
+		Entry entry = new Entry(task, assignmentVersion, assignmentCzxid, session, data);
+		byte[] body = encode(entry);
+		if (pending == 0) buffer.position(0);
+		if (buffer.position() + HEADER + body.length + 4 > buffer.capacity()) return null;
+
+		entry.position = buffer.position();
+		buffer.position(entry.position + HEADER);
+		buffer.put(body);
+		buffer.putInt(buffer.position(), 0); // End of the journal, until the next record
+		buffer.put(entry.position + 4, PENDING);
+		buffer.putInt(entry.position + 5, body.length);
+		buffer.putInt(entry.position + 9, crc(body));
+		buffer.putInt(entry.position, MAGIC); // Last, so that a record is never seen half written
+		buffer.force();
+		pending++;
+		return entry;
+	}
+
+	/** The entry is in ZK: it won't be replayed. */
+	public synchronized void published(Entry entry) {
+		buffer.put(entry.position + 4, PUBLISHED);
+		buffer.force();
+		pending--;
+	}
+
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.release();
+		channel.close();
+	}
+
+	private static byte[] encode(Entry entry) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(entry.data.length + entry.task.length() + 32);
+			DataOutputStream out = new DataOutputStream(bos);
+			out.writeUTF(entry.task);
+			out.writeInt(entry.assignmentVersion);
+			out.writeLong(entry.assignmentCzxid);
+			out.writeLong(entry.session);
+			out.writeInt(entry.data.length);
+			out.write(entry.data);
+			out.flush();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Can't happen in memory
+		}
+	}
+
+	private static Entry decode(byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		String task = in.readUTF();
+		int version = in.readInt();
+		long czxid = in.readLong();
+		long session = in.readLong();
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return new Entry(task, version, czxid, session, data);
+	}
+
+	private static int crc(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		return (int) crc.getValue();
+	}
+
+}
@@ -0,0 +1,70 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a result straight to the client that asked for it (see {@link TaskEnvelope#REPLY_TO}),
+ * so that large results never go through the ensemble. ZK then only gets a small
+ * {@link TaskEnvelope#streamedMarker(long)} in the result ZNode.
+ * <p>
+ * The result is spooled to a temporary file and sent with {@link FileChannel#transferTo}
+ * (zero-copy). Protocol: task path (UTF), result length (long), result bytes. The client answers
+ * with a single byte once it has everything, only then do we write the marker.
+ */
+public class ResultStreamer {
+	static final int TIMEOUT_MS = 10000;
+
+	private ResultStreamer() {}
+
+	/**
+	 * @param replyTo "host:port" of the client's listener.
+	 * @param taskPath Full path of the task ZNode, identifies the result on the client side.
+	 * @return The marker to store in the result ZNode, or null if streaming failed (the caller
+	 * should then store the result in ZK as usual).
+	 */
+	public static byte[] stream(String replyTo, String taskPath, DistTask result) {
+		String sig = Col.BLUE.fg("ResultStreamer/stream") + " : ";
+		File spool = null;
+		try {
+			spool = File.createTempFile("dist50-result-", ".bin");
+			try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(spool)))) {
+				oos.writeObject(result);
+			}
+			long length = spool.length();
+
+			int colon = replyTo.lastIndexOf(':');
+			InetSocketAddress address = new InetSocketAddress(replyTo.substring(0, colon),
+				Integer.parseInt(replyTo.substring(colon + 1)));
+			try (SocketChannel socket = SocketChannel.open();
+				 FileChannel file = FileChannel.open(spool.toPath(), StandardOpenOption.READ)) {
+				socket.socket().connect(address, TIMEOUT_MS);
+				socket.socket().setSoTimeout(TIMEOUT_MS);
+
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				DataOutputStream header = new DataOutputStream(bos);
+				header.writeUTF(taskPath);
+				header.writeLong(length);
+				ByteBuffer headerBuffer = ByteBuffer.wrap(bos.toByteArray());
+				while (headerBuffer.hasRemaining()) socket.write(headerBuffer);
+
+				long sent = 0;
+				while (sent < length) sent += file.transferTo(sent, length - sent, socket);
+
+				// Blocking read through the socket's stream so that the timeout applies.
+				if (socket.socket().getInputStream().read() < 0)
+					throw new EOFException("Client closed the connection before acknowledging");
+			}
+			System.out.println(sig + Col.GREEN.fg("Streamed " + length + " bytes to " + replyTo));
+			return TaskEnvelope.streamedMarker(length);
+		} catch (IOException | RuntimeException e) {
+			System.err.println(sig + Col.RED.fg("Could not stream result to " + replyTo + " (" + e + "), falling back to ZK."));
+			return null;
+		} finally {
+			if (spool != null && !spool.delete()) spool.deleteOnExit();
+		}
+	}
+
+}
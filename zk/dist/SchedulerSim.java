@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Offline discrete-event simulator of the Master's assignment rounds, to evaluate
+ * {@link SchedulingPolicy scheduling policies} without a live cluster.
+ * <pre>
+ * java SchedulerSim trace &lt;trace file&gt; [policy ...]
+ * java SchedulerSim synthetic &lt;tasks&gt; &lt;workers&gt; &lt;arrivals/s&gt; [policy ...]
+ * </pre>
+ * A trace (see {@link SchedulerTrace}) is replayed with its recorded arrivals, worker joins/leaves
+ * and task durations; only the assignment decisions are up to the policy. Synthetic workloads mix
+ * MCPi-style tasks (duration proportional to a log-uniform number of samples) and
+ * InterruptibleTask-style tasks (fixed duration), with the cost headers their clients would send,
+ * arriving as a Poisson process on workers that are all present from the start. Every {@link #SLOW_EVERY}th worker is older hardware, taking
+ * {@link #SLOWDOWN} times longer on everything.
+ * <p>
+ * For each policy, prints the makespan, worker utilization and latency (arrival to completion)
+ * percentiles, all in (simulated) seconds.
+ */
+public class SchedulerSim {
+	/** MCPi cost model: ns of CPU per sample. */
+	static final double MCPI_NS_PER_SAMPLE = 10;
+	/** Seed of the synthetic workloads, so that policies are compared on the same workload. */
+	static final long SEED = 50;
+	/** In synthetic workloads, every SLOW_EVERYth worker is SLOWDOWN times slower. */
+	static final int SLOW_EVERY = 4;
+	static final double SLOWDOWN = 2.5;
+
+	private enum Kind { ARRIVAL, COMPLETION, JOIN, LEAVE }
+
+	private static class SimEvent {
+		final long time;
+		final long seq;
+		final Kind kind;
+		final String name; // Task (arrival/completion) or worker (join/leave)
+		final String worker; // Completion only
+
+		SimEvent(long time, long seq, Kind kind, String name, String worker) {
+			this.time = time;
+			this.seq = seq;
+			this.kind = kind;
+			this.name = name;
+			this.worker = worker;
+		}
+	}
+
+	/**
+	 * Workload to simulate: timed arrivals/joins/leaves, how long each task takes (ms) on a normal
+	 * worker, the headers of the tasks, and how much slower than normal each worker is (default 1).
+	 */
+	private static class Workload {
+		final List<SimEvent> events = new ArrayList<>();
+		final Map<String, Long> durations = new HashMap<>();
+		final Map<String, Map<String, String>> headers = new HashMap<>();
+		final Map<String, Double> slowdowns = new HashMap<>();
+	}
+
+	private final SchedulingPolicy policy;
+	private final Workload workload;
+
+	private final PriorityQueue<SimEvent> events = new PriorityQueue<>(
+		Comparator.<SimEvent>comparingLong((e) -> e.time).thenComparingLong((e) -> e.seq));
+	private long seq = 0;
+	/** Pending tasks, in arrival order. */
+	private LinkedHashSet<String> pending = new LinkedHashSet<>();
+	/** Worker to running task (null when idle), in join order. */
+	private final LinkedHashMap<String, String> workers = new LinkedHashMap<>();
+	private final Map<String, Long> assignedAt = new HashMap<>();
+	private final Map<String, Long> joinedAt = new HashMap<>();
+	private final Map<String, Long> arrivedAt = new HashMap<>();
+
+	private final List<Long> latencies = new ArrayList<>();
+	private long busyMs = 0;
+	private long presentMs = 0;
+	private long firstArrival = Long.MAX_VALUE;
+	private long lastCompletion = 0;
+
+	private SchedulerSim(SchedulingPolicy policy, Workload workload) {
+		this.policy = policy;
+		this.workload = workload;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("usage: SchedulerSim trace <file> [policy ...]");
+			System.out.println("       SchedulerSim synthetic <tasks> <workers> <arrivals/s> [policy ...]");
+			return;
+		}
+
+		Workload workload;
+		int policiesFrom;
+		if ("trace".equalsIgnoreCase(args[0])) {
+			workload = fromTrace(args[1]);
+			policiesFrom = 2;
+		}
+		else {
+			workload = synthetic(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Double.parseDouble(args[3]));
+			policiesFrom = 4;
+		}
+
+		List<String> policies = args.length > policiesFrom
+			? Arrays.asList(args).subList(policiesFrom, args.length)
+			: List.of("fifo");
+		System.out.printf("Simulating %d tasks (%.1f s of CPU)\n", workload.durations.size(),
+			workload.durations.values().stream().mapToLong(Long::longValue).sum() / 1000D);
+		for (String name : policies) {
+			new SchedulerSim(SchedulingPolicy.named(name), workload).run().report(name);
+		}
+	}
+
+	/** Replay a recorded trace. Tasks that never completed in the trace are left out. */
+	static Workload fromTrace(String path) throws IOException {
+		Workload workload = new Workload();
+		List<SchedulerTrace.Event> trace = SchedulerTrace.read(path);
+		for (SchedulerTrace.Event e : trace) {
+			if (e.type == SchedulerTrace.Type.COMPLETE) workload.durations.put(e.task, e.duration);
+			if (e.type == SchedulerTrace.Type.HEADER)
+				workload.headers.computeIfAbsent(e.task, (t) -> new HashMap<>()).put(e.key, e.value);
+		}
+		long seq = 0;
+		for (SchedulerTrace.Event e : trace) {
+			switch (e.type) {
+				case ARRIVAL:
+					if (workload.durations.containsKey(e.task))
+						workload.events.add(new SimEvent(e.time, seq++, Kind.ARRIVAL, e.task, null));
+					break;
+				case JOIN:
+					workload.events.add(new SimEvent(e.time, seq++, Kind.JOIN, e.worker, null));
+					break;
+				case LEAVE:
+					workload.events.add(new SimEvent(e.time, seq++, Kind.LEAVE, e.worker, null));
+					break;
+				default: // Assignments and completions are what we simulate.
+			}
+		}
+		return workload;
+	}
+
+	/** Synthetic workload, see class javadoc. */
+	static Workload synthetic(int tasks, int workers, double arrivalsPerSecond) {
+		Workload workload = new Workload();
+		Random random = new Random(SEED);
+		long seq = 0;
+		for (int w = 0; w < workers; w++) {
+			String name = String.format("worker-%04d", w);
+			workload.events.add(new SimEvent(0, seq++, Kind.JOIN, name, null));
+			if (w % SLOW_EVERY == SLOW_EVERY - 1) workload.slowdowns.put(name, SLOWDOWN);
+		}
+
+		double time = 0;
+		for (int t = 0; t < tasks; t++) {
+			time += -Math.log(1 - random.nextDouble()) / arrivalsPerSecond * 1000; // Exponential gaps
+			String name = String.format("task-%06d", t);
+			long duration;
+			String taskClass;
+			double cost;
+			if (random.nextBoolean()) {
+				long samples = (long) Math.pow(10, 6 + 3 * random.nextDouble()); // 1e6 .. 1e9
+				duration = Math.max(1, (long) (samples * MCPI_NS_PER_SAMPLE / 1e6));
+				taskClass = "MCPi";
+				cost = samples;
+			}
+			else {
+				duration = (1 + random.nextInt(120)) * 1000L; // 1 .. 120 s
+				taskClass = "InterruptibleTask";
+				cost = duration / 1000D;
+			}
+			workload.durations.put(name, duration);
+			workload.headers.put(name, Map.of(TaskEnvelope.TASK_CLASS, taskClass, TaskEnvelope.COST, Double.toString(cost)));
+			workload.events.add(new SimEvent((long) time, seq++, Kind.ARRIVAL, name, null));
+		}
+		return workload;
+	}
+
+	private SchedulerSim run() {
+		events.addAll(workload.events);
+		seq = workload.events.size();
+		long now = 0;
+		while (!events.isEmpty()) {
+			SimEvent e = events.poll();
+			now = e.time;
+			switch (e.kind) {
+				case ARRIVAL:
+					firstArrival = Math.min(firstArrival, now);
+					arrivedAt.put(e.name, now);
+					pending.add(e.name);
+					policy.taskQueued(e.name, now);
+					if (policy.wantsHeaders() && workload.headers.containsKey(e.name))
+						policy.taskHeaders(e.name, workload.headers.get(e.name));
+					break;
+				case JOIN:
+					workers.putIfAbsent(e.name, null);
+					joinedAt.put(e.name, now);
+					break;
+				case LEAVE:
+					leave(e.name, now);
+					break;
+				case COMPLETION:
+					// Stale if the worker left (and the task was re-queued) before finishing
+					if (!e.name.equals(workers.get(e.worker))) break;
+					long started = assignedAt.remove(e.worker);
+					busyMs += now - started;
+					workers.put(e.worker, null);
+					latencies.add(now - arrivedAt.get(e.name));
+					lastCompletion = Math.max(lastCompletion, now);
+					policy.taskCompleted(e.name, e.worker, started, now);
+					break;
+			}
+			assignmentRound(now);
+		}
+		for (String worker : new ArrayList<>(workers.keySet())) leave(worker, lastCompletion);
+		return this;
+	}
+
+	/** Same as the Master's assignment round. */
+	private void assignmentRound(long now) {
+		while (!pending.isEmpty()) {
+			List<String> idle = new ArrayList<>();
+			for (Map.Entry<String, String> worker : workers.entrySet())
+				if (worker.getValue() == null) idle.add(worker.getKey());
+			if (idle.isEmpty()) return;
+
+			String task = policy.nextTask(pending, now);
+			String worker = policy.pickWorker(task, idle, now);
+			pending.remove(task);
+			workers.put(worker, task);
+			assignedAt.put(worker, now);
+			policy.taskAssigned(task, worker, now);
+			long duration = Math.round(workload.durations.get(task) * workload.slowdowns.getOrDefault(worker, 1D));
+			events.add(new SimEvent(now + duration, seq++, Kind.COMPLETION, task, worker));
+		}
+	}
+
+	/** A worker leaves, its running task (if any) goes back to the front of the queue. */
+	private void leave(String worker, long now) {
+		if (!workers.containsKey(worker)) return;
+		String task = workers.remove(worker);
+		Long started = assignedAt.remove(worker);
+		if (task != null) {
+			busyMs += now - started;
+			LinkedHashSet<String> requeued = new LinkedHashSet<>();
+			requeued.add(task);
+			requeued.addAll(pending);
+			pending = requeued;
+		}
+		presentMs += now - Math.max(joinedAt.remove(worker), Math.min(firstArrival, now));
+		policy.workerLeft(worker, now);
+	}
+
+	private void report(String name) {
+		if (latencies.isEmpty()) {
+			System.out.printf("%-8s : nothing completed\n", name);
+			return;
+		}
+		Collections.sort(latencies);
+		double makespan = (lastCompletion - firstArrival) / 1000D;
+		double mean = latencies.stream().mapToLong(Long::longValue).average().orElse(0) / 1000D;
+		System.out.printf("%-8s : %d tasks, makespan %.1f s, utilization %.1f %%, latency mean %.2f s | p50 %.2f s | p90 %.2f s | p99 %.2f s | max %.2f s%s\n",
+			name, latencies.size(), makespan, presentMs == 0 ? 0 : 100D * busyMs / presentMs, mean,
+			percentile(0.50), percentile(0.90), percentile(0.99), latencies.get(latencies.size() - 1) / 1000D,
+			pending.isEmpty() ? "" : " (" + pending.size() + " never ran)");
+	}
+
+	private double percentile(double p) {
+		int index = (int) Math.ceil(p * latencies.size()) - 1;
+		return latencies.get(Math.max(0, index)) / 1000D;
+	}
+
+}
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary trace of the scheduler's events, recorded by the {@link Master} when
+ * SCHED_TRACE_50 is set to a file path, and replayed by the {@link SchedulerSim}.
+ * <p>
+ * Format: MAGIC (int), start time (long, epoch ms), then records starting with their type (byte).
+ * Task and worker names are only written once, in a NAME record (id int, name UTF), and referred
+ * to by id afterwards. Event times are ms since the start of the trace.
+ * <pre>
+ * NAME     : id, name
+ * ARRIVAL  : time, task
+ * JOIN     : time, worker
+ * LEAVE    : time, worker
+ * ASSIGN   : time, task, worker
+ * COMPLETE : time, task, worker, duration (ms)
+ * HEADER   : time, task, key (UTF), value (UTF)
+ * </pre>
+ */
+public class SchedulerTrace implements Closeable {
+	/** "D50R" */
+	static final int MAGIC = 0x44353052;
+	/** Flush after this many records (the rest is flushed on shutdown). */
+	private static final int FLUSH_EVERY = 256;
+
+	public enum Type { NAME, ARRIVAL, JOIN, LEAVE, ASSIGN, COMPLETE, HEADER }
+
+	/** A trace record, as read back. Unused fields are null / 0. */
+	public static class Event {
+		public final Type type;
+		public final long time;
+		public final String task;
+		public final String worker;
+		public final long duration;
+		public final String key;
+		public final String value;
+
+		Event(Type type, long time, String task, String worker, long duration, String key, String value) {
+			this.type = type;
+			this.time = time;
+			this.task = task;
+			this.worker = worker;
+			this.duration = duration;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/** Null when tracing is disabled, every method is then a no-op. */
+	private final DataOutputStream out;
+	private final long start = System.currentTimeMillis();
+	private final Map<String, Integer> ids = new HashMap<>();
+	private int unflushed = 0;
+
+	private SchedulerTrace(DataOutputStream out) {
+		this.out = out;
+	}
+
+	/** Trace to the file in SCHED_TRACE_50, or a disabled trace if unset. */
+	public static SchedulerTrace fromEnv() {
+		String path = System.getenv("SCHED_TRACE_50");
+		if (path == null) return new SchedulerTrace(null);
+		try {
+			SchedulerTrace trace = new SchedulerTrace(new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(path))));
+			trace.out.writeInt(MAGIC);
+			trace.out.writeLong(trace.start);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try { trace.close(); } catch (IOException ignored) {}
+			}));
+			System.out.println(Col.B_BLUE.fg("SchedulerTrace") + " : Recording scheduler events to " + path);
+			return trace;
+		} catch (IOException e) {
+			System.err.println(Col.RED.fg("Could not open scheduler trace " + path + ", tracing disabled."));
+			e.printStackTrace();
+			return new SchedulerTrace(null);
+		}
+	}
+
+	public boolean isEnabled() {
+		return out != null;
+	}
+
+	public synchronized void arrival(String task) {
+		record(Type.ARRIVAL, task, null, 0);
+	}
+
+	public synchronized void join(String worker) {
+		record(Type.JOIN, null, worker, 0);
+	}
+
+	public synchronized void leave(String worker) {
+		record(Type.LEAVE, null, worker, 0);
+	}
+
+	public synchronized void assign(String task, String worker) {
+		record(Type.ASSIGN, task, worker, 0);
+	}
+
+	public synchronized void complete(String task, String worker, long durationMs) {
+		record(Type.COMPLETE, task, worker, durationMs);
+	}
+
+	/** A header of a task (see {@link TaskEnvelope}), as read by the Master. */
+	public synchronized void header(String task, String key, String value) {
+		if (out == null) return;
+		record(Type.HEADER, task, null, 0);
+		try {
+			out.writeUTF(key);
+			out.writeUTF(value);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void record(Type type, String task, String worker, long duration) {
+		if (out == null) return;
+		try {
+			int taskId = task == null ? -1 : id(task);
+			int workerId = worker == null ? -1 : id(worker);
+			out.writeByte(type.ordinal());
+			out.writeLong(System.currentTimeMillis() - start);
+			if (task != null) out.writeInt(taskId);
+			if (worker != null) out.writeInt(workerId);
+			if (type == Type.COMPLETE) out.writeLong(duration);
+			if (++unflushed >= FLUSH_EVERY) {
+				out.flush();
+				unflushed = 0;
+			}
+		} catch (IOException e) {
+			e.printStackTrace(); // Tracing must never break scheduling.
+		}
+	}
+
+	/** Id of a name, writing a NAME record the first time it is seen. */
+	private int id(String name) throws IOException {
+		Integer id = ids.get(name);
+		if (id != null) return id;
+		id = ids.size();
+		ids.put(name, id);
+		out.writeByte(Type.NAME.ordinal());
+		out.writeInt(id);
+		out.writeUTF(name);
+		return id;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null) out.close();
+	}
+
+	/** Read back all the events (NAME records resolved) of a trace file. */
+	public static List<Event> read(String path) throws IOException {
+		List<Event> events = new ArrayList<>();
+		Map<Integer, String> names = new HashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+			if (in.readInt() != MAGIC) throw new IOException(path + " is not a scheduler trace");
+			in.readLong(); // Start time
+			while (true) {
+				int t = in.read();
+				if (t < 0) break;
+				Type type = Type.values()[t];
+				if (type == Type.NAME) {
+					names.put(in.readInt(), in.readUTF());
+					continue;
+				}
+				long time = in.readLong();
+				String task = type == Type.ARRIVAL || type == Type.ASSIGN || type == Type.COMPLETE || type == Type.HEADER
+					? names.get(in.readInt()) : null;
+				String worker = type != Type.ARRIVAL && type != Type.HEADER ? names.get(in.readInt()) : null;
+				long duration = type == Type.COMPLETE ? in.readLong() : 0;
+				String key = type == Type.HEADER ? in.readUTF() : null;
+				String value = type == Type.HEADER ? in.readUTF() : null;
+				events.add(new Event(type, time, task, worker, duration, key, value));
+			}
+		} catch (EOFException ignored) {} // Truncated last record (process killed mid-write)
+		return events;
+	}
+
+}
@@ -0,0 +1,78 @@
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which pending task goes to which idle worker during an assignment round. Used both by
+ * the {@link Master} and by the offline {@link SchedulerSim}, so that a policy can be evaluated on
+ * traces or synthetic workloads before running it on a live cluster.
+ * <p>
+ * Policies must not look at the wall clock: the current time is always passed in (in ms), since
+ * it is simulated time in the simulator. Calls are never concurrent.
+ */
+public interface SchedulingPolicy {
+
+	/** Pick the task to assign next among the pending ones (non-empty, in arrival order). */
+	String nextTask(Collection<String> pending, long now);
+
+	/** Pick the worker to assign the task to among the idle ones (non-empty). */
+	String pickWorker(String task, List<String> idle, long now);
+
+	/** A task was queued. */
+	default void taskQueued(String task, long now) {}
+
+	/**
+	 * Whether the policy needs the headers of the tasks ({@link TaskEnvelope}). If so, the Master
+	 * reads every task it queues, and passes its headers to {@link #taskHeaders(String, Map)}.
+	 */
+	default boolean wantsHeaders() {
+		return false;
+	}
+
+	/**
+	 * Headers of a queued task. Comes in asynchronously after {@link #taskQueued(String, long)}:
+	 * the task may even be assigned before its headers are known.
+	 */
+	default void taskHeaders(String task, Map<String, String> headers) {}
+
+	/** A task was assigned to a worker. */
+	default void taskAssigned(String task, String worker, long now) {}
+
+	/** A worker finished a task it was assigned at {@code assignedAt}. */
+	default void taskCompleted(String task, String worker, long assignedAt, long now) {}
+
+	/**
+	 * A queued task left without completing: given up on, handed over to another shard, found
+	 * running already or deleted. Forget it.
+	 */
+	default void taskDropped(String task) {}
+
+	/** A worker left, along with any task it was running. */
+	default void workerLeft(String worker, long now) {}
+
+	/**
+	 * Policy selected by SCHED_POLICY_50 (default FIFO), wrapped in a
+	 * {@link BroadcastAffinityPolicy} if BROADCAST_AFFINITY_50 is set: affinity needs the headers
+	 * of every task, which costs a read per task, only worth it if tasks use broadcasts.
+	 */
+	static SchedulingPolicy fromEnv() {
+		String name = System.getenv("SCHED_POLICY_50");
+		SchedulingPolicy policy = named(name == null ? "fifo" : name);
+		return System.getenv("BROADCAST_AFFINITY_50") != null ? new BroadcastAffinityPolicy(policy) : policy;
+	}
+
+	/** Policy by name, as accepted by SCHED_POLICY_50 and the simulator. */
+	static SchedulingPolicy named(String name) {
+		switch (name.toLowerCase()) {
+			case "fifo":
+				return new FifoPolicy();
+			case "ewma":
+				return new ThroughputPolicy();
+			case "sjf":
+				return new SjfPolicy();
+			default:
+				throw new IllegalArgumentException("Unknown scheduling policy \"" + name + "\"");
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Decides which scheduler shard (Master) is responsible for which part of the system. Shard
+ * masters register as /dist50/shards/shard-k, and every task bucket and worker is owned by exactly
+ * one of the live shards, picked by rendezvous hashing (the shard with the highest hash of
+ * (shard, key) wins). When a shard comes or goes, only the keys it wins/owned move, the rest of the
+ * partitioning stays the same.
+ * <p>
+ * With a single shard (the default), the Master owns everything.
+ */
+public class ShardMap {
+	/** Number of scheduler shards. 1 means a single Master elected through /dist50/master. */
+	static final int SHARDS = Integer.parseInt(
+		Objects.requireNonNullElse(System.getenv("MASTER_SHARDS_50"), "1"));
+
+	/** Our own shard (e.g. "shard-2"), null when not sharded. */
+	private final String myShard;
+	/** Currently live shards. */
+	private volatile List<String> liveShards;
+
+	private ShardMap(String myShard) {
+		this.myShard = myShard;
+		this.liveShards = myShard == null ? List.of() : List.of(myShard);
+	}
+
+	/** Partitioning for a single master that owns everything. */
+	public static ShardMap single() {
+		return new ShardMap(null);
+	}
+
+	/** Partitioning for the master of the given shard. */
+	public static ShardMap forShard(String shard) {
+		return new ShardMap(shard);
+	}
+
+	public boolean isSharded() {
+		return myShard != null;
+	}
+
+	public String getShard() {
+		return myShard;
+	}
+
+	public List<String> getLiveShards() {
+		return liveShards;
+	}
+
+	/**
+	 * Update the live shards.
+	 * @return Whether the set of live shards changed (a rebalance is needed).
+	 */
+	public boolean update(List<String> shards) {
+		List<String> sorted = new ArrayList<>(shards);
+		Collections.sort(sorted);
+		if (sorted.equals(liveShards)) return false;
+		liveShards = List.copyOf(sorted);
+		return true;
+	}
+
+	/** Whether we own the given key (task bucket, flat task name or worker name). */
+	public boolean owns(String key) {
+		return !isSharded() || myShard.equals(ownerOf(key));
+	}
+
+	/** The live shard owning the given key, null if there are no live shards. */
+	public String ownerOf(String key) {
+		String owner = null;
+		long best = Long.MIN_VALUE;
+		for (String shard : liveShards) {
+			long h = mix(shard.hashCode() * 0x9E3779B97F4A7C15L + key.hashCode());
+			if (owner == null || h > best) {
+				best = h;
+				owner = shard;
+			}
+		}
+		return owner;
+	}
+
+	/**
+	 * Partitioning key of a task: its bucket ("b-x/task-y" -> "b-x") so that a whole bucket, and
+	 * its watcher loop, belongs to one shard. Flat tasks are partitioned by name.
+	 */
+	public static String keyOfTask(String task) {
+		int slash = task.indexOf('/');
+		return slash < 0 ? task : task.substring(0, slash);
+	}
+
+	/** Murmur3 64 bit finalizer, spreads the (poorly distributed) String hash codes. */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
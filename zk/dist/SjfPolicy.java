@@ -0,0 +1,136 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Shortest expected job first, with aging, to the first idle worker. A short task no longer waits
+ * behind long ones that arrived before it, which cuts the mean time to completion of mixed
+ * workloads. Runtimes are estimated from history:
+ * <ul>
+ *     <li>Each task class ({@link TaskEnvelope#TASK_CLASS} header) has the moving average (EWMA) of
+ *     its duration, and, for tasks that tell their cost ({@link TaskEnvelope#COST} header, see
+ *     {@link CostedTask}), the moving average of their duration per unit of cost.</li>
+ *     <li>A task is estimated at its cost times the duration per unit of its class, or else at the
+ *     average duration of its class, or else (unknown class, or headers not read yet) at the
+ *     average duration of all tasks.</li>
+ * </ul>
+ * Tasks age: every ms spent waiting takes {@link #AGING} ms off their estimate, so a long task
+ * can't be starved by a steady stream of short ones: at the default of 0.1, a task expected to run
+ * an hour longer than the others waits at most 10 hours more. 0 is pure SJF, larger values get
+ * closer to FIFO. Until something completed, all estimates are equal and this is FIFO.
+ * <p>
+ * Tasks aren't preempted: a task that started runs to the end, even if shorter ones arrive.
+ * Picking a task is linear in the number of pending tasks.
+ */
+public class SjfPolicy implements SchedulingPolicy {
+	/** Weight of the newest sample in the moving averages. */
+	static final double ALPHA = 0.2;
+	/** Ms of estimated runtime forgiven per ms waited (SJF_AGING_50). */
+	static final double AGING = Double.parseDouble(Objects.requireNonNullElse(System.getenv("SJF_AGING_50"), "0.1"));
+	/** Class of tasks whose headers we don't know (yet). */
+	static final String UNKNOWN_CLASS = "?";
+
+	private static class ClassStats {
+		/** EWMA of the duration, in ms. */
+		double duration;
+		/** EWMA of the duration per unit of cost, in ms, -1 until a task with a cost completed. */
+		double perCost = -1;
+
+		ClassStats(double duration) {
+			this.duration = duration;
+		}
+	}
+
+	/** Class of each queued or running task. */
+	private final Map<String, String> taskClasses = new HashMap<>();
+	/** Cost of each queued or running task that has one. */
+	private final Map<String, Double> costs = new HashMap<>();
+	/** When each queued or running task was first queued. */
+	private final Map<String, Long> queuedAt = new HashMap<>();
+	private final Map<String, ClassStats> classes = new HashMap<>();
+	/** EWMA of the duration of all tasks, in ms, 0 until one completed. */
+	private double overall = 0;
+
+	@Override
+	public String nextTask(Collection<String> pending, long now) {
+		String best = null;
+		double bestScore = Double.MAX_VALUE;
+		for (String task : pending) {
+			double score = estimate(task) - AGING * (now - queuedAt.getOrDefault(task, now));
+			// Strictly better only: ties go to the oldest
+			if (best == null || score < bestScore) {
+				best = task;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public String pickWorker(String task, List<String> idle, long now) {
+		return idle.get(0);
+	}
+
+	/** Expected runtime of a task in ms, see class javadoc. */
+	double estimate(String task) {
+		ClassStats stats = classes.get(taskClasses.getOrDefault(task, UNKNOWN_CLASS));
+		if (stats == null) return overall;
+		Double cost = costs.get(task);
+		return cost != null && stats.perCost >= 0 ? cost * stats.perCost : stats.duration;
+	}
+
+	@Override
+	public void taskQueued(String task, long now) {
+		queuedAt.putIfAbsent(task, now); // Re-queued after its worker left: it keeps its age
+	}
+
+	@Override
+	public boolean wantsHeaders() {
+		return true;
+	}
+
+	@Override
+	public void taskHeaders(String task, Map<String, String> headers) {
+		String taskClass = headers.get(TaskEnvelope.TASK_CLASS);
+		if (taskClass != null) taskClasses.put(task, taskClass);
+		String cost = headers.get(TaskEnvelope.COST);
+		if (cost != null) {
+			try {
+				costs.put(task, Double.parseDouble(cost));
+			} catch (NumberFormatException ignored) {} // Estimated like a task without cost
+		}
+	}
+
+	@Override
+	public void taskCompleted(String task, String worker, long assignedAt, long now) {
+		String taskClass = taskClasses.getOrDefault(task, UNKNOWN_CLASS);
+		Double cost = costs.get(task);
+		taskClasses.remove(task);
+		costs.remove(task);
+		queuedAt.remove(task);
+		double duration = Math.max(1, now - assignedAt);
+
+		overall = overall == 0 ? duration : ewma(overall, duration);
+		ClassStats stats = classes.get(taskClass);
+		if (stats == null) classes.put(taskClass, stats = new ClassStats(duration));
+		else stats.duration = ewma(stats.duration, duration);
+		if (cost != null && cost > 0) {
+			double perCost = duration / cost;
+			stats.perCost = stats.perCost < 0 ? perCost : ewma(stats.perCost, perCost);
+		}
+	}
+
+	@Override
+	public void taskDropped(String task) {
+		taskClasses.remove(task);
+		costs.remove(task);
+		queuedAt.remove(task);
+	}
+
+	private static double ewma(double average, double sample) {
+		return ALPHA * sample + (1 - ALPHA) * average;
+	}
+
+}
@@ -0,0 +1,108 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Oldest task first, to the fastest idle worker. Workers are not all equally fast (our fleet mixes
+ * hardware generations), so we learn a speed factor for each of them from how long their tasks
+ * take:
+ * <ul>
+ *     <li>Each task class ({@link TaskEnvelope#TASK_CLASS} header) has a baseline: the moving
+ *     average (EWMA) of its duration over all workers.</li>
+ *     <li>Each worker has a slowness: the moving average of its durations relative to the
+ *     baseline of their class (1 = average, 2 = twice as slow). Workers without any completed task
+ *     yet start at 1.</li>
+ *     <li>A task taking more than {@link #STRAGGLER_FACTOR} times its baseline is a strike.
+ *     Workers are penalized by their (also moving average) strike rate, so that nodes which are
+ *     persistently slow or stall are pushed back even more than their mean suggests.</li>
+ * </ul>
+ * The idle worker with the lowest score (slowness x penalty) gets the task. We still use every
+ * idle worker when there are enough tasks, slow ones only get what the faster ones can't take.
+ */
+public class ThroughputPolicy implements SchedulingPolicy {
+	/** Weight of the newest sample in the moving averages. */
+	static final double ALPHA = 0.2;
+	/** A task taking this many times its class baseline is a strike against its worker. */
+	static final double STRAGGLER_FACTOR = 3;
+	/** Score multiplier of a worker whose every task is a strike. */
+	static final double STRIKE_PENALTY = 2;
+	/** Class of tasks whose headers we don't know (yet). */
+	static final String UNKNOWN_CLASS = "?";
+
+	private static class WorkerStats {
+		double slowness = 1;
+		double strikeRate = 0;
+
+		double score() {
+			return slowness * (1 + STRIKE_PENALTY * strikeRate);
+		}
+	}
+
+	/** Class of each queued or running task. */
+	private final Map<String, String> taskClasses = new HashMap<>();
+	/** EWMA of the duration of each class, in ms. */
+	private final Map<String, Double> baselines = new HashMap<>();
+	private final Map<String, WorkerStats> workers = new HashMap<>();
+
+	@Override
+	public String nextTask(Collection<String> pending, long now) {
+		return pending.iterator().next();
+	}
+
+	@Override
+	public String pickWorker(String task, List<String> idle, long now) {
+		String best = idle.get(0);
+		double bestScore = Double.MAX_VALUE;
+		for (String worker : idle) {
+			WorkerStats stats = workers.get(worker);
+			double score = stats == null ? 1 : stats.score();
+			if (score < bestScore) {
+				best = worker;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public boolean wantsHeaders() {
+		return true;
+	}
+
+	@Override
+	public void taskHeaders(String task, Map<String, String> headers) {
+		String taskClass = headers.get(TaskEnvelope.TASK_CLASS);
+		if (taskClass != null) taskClasses.put(task, taskClass);
+	}
+
+	@Override
+	public void taskCompleted(String task, String worker, long assignedAt, long now) {
+		String taskClass = taskClasses.getOrDefault(task, UNKNOWN_CLASS);
+		taskClasses.remove(task);
+		double duration = Math.max(1, now - assignedAt);
+
+		Double baseline = baselines.get(taskClass);
+		double ratio = baseline == null ? 1 : duration / baseline;
+		baselines.put(taskClass, baseline == null ? duration : ewma(baseline, duration));
+
+		WorkerStats stats = workers.computeIfAbsent(worker, (w) -> new WorkerStats());
+		stats.slowness = ewma(stats.slowness, ratio);
+		stats.strikeRate = ewma(stats.strikeRate, ratio > STRAGGLER_FACTOR ? 1 : 0);
+	}
+
+	@Override
+	public void taskDropped(String task) {
+		taskClasses.remove(task);
+	}
+
+	@Override
+	public void workerLeft(String worker, long now) {
+		workers.remove(worker);
+	}
+
+	private static double ewma(double average, double sample) {
+		return ALPHA * sample + (1 - ALPHA) * average;
+	}
+
+}
@@ -0,0 +1,126 @@
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link TaskUsage} of the tasks of a worker, added up per task class and tenant, kept in
+ * /dist50/usage/worker-x so that the Master can add up those of all workers for capacity planning
+ * and chargeback ({@link #printTotals}, the "usage" command). Written every {@link #PUBLISH_MS} if
+ * anything changed, so that it costs the ensemble nothing per task. Totals are since the worker
+ * started. The nodes of workers that are gone stay: the Master's totals are the cluster's since
+ * the last ZKReset.
+ */
+public class UsageLedger {
+	static final String ROOT = "/dist50/usage";
+	static final long PUBLISH_MS = 10000;
+
+	private final Coordination zk;
+	private final ScheduledExecutorService scheduler =
+		Executors.newSingleThreadScheduledExecutor((r) -> new Thread(r, "usage"));
+	private String path;
+	/** Usage by "class\ttenant". */
+	private final Map<String, TaskUsage> table = new TreeMap<>();
+	private boolean dirty = false;
+
+	public UsageLedger(Coordination zk) {
+		this.zk = zk;
+	}
+
+	/** Publish under the worker's name from now on, on our own thread. */
+	public void start(String worker) {
+		path = ROOT + "/" + worker;
+		scheduler.scheduleWithFixedDelay(this::publish, PUBLISH_MS, PUBLISH_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void record(String taskClass, String tenant, TaskUsage usage) {
+		table.computeIfAbsent(taskClass + "\t" + tenant, (key) -> new TaskUsage()).add(usage);
+		dirty = true;
+	}
+
+	public synchronized void printStats(String sig) {
+		for (Map.Entry<String, TaskUsage> entry : table.entrySet())
+			System.out.println(sig + "Usage of " + entry.getKey().replace('\t', '/') + " : " + entry.getValue());
+	}
+
+	private void publish() {
+		String sig = Col.CYAN.fg("UsageLedger/publish") + " : ";
+		byte[] data;
+		synchronized (this) {
+			if (!dirty) return;
+			data = TaskUsage.encodeTable(table);
+			dirty = false;
+		}
+		try {
+			try {
+				zk.setData(path, data, -1);
+			} catch (KeeperException.NoNodeException e) {
+				try {
+					zk.create(ROOT, "Usage of the tasks of each worker, per task class and tenant".getBytes(),
+						ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+				} catch (KeeperException.NodeExistsException ignored) {} // Created by ZKReset or another worker
+				zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			}
+		} catch (KeeperException e) {
+			System.err.println(sig + Col.RED.fg("Could not publish our usage : " + e));
+			synchronized (this) {
+				dirty = true; // Next time
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Read the ledgers of all workers and print the usage of the cluster per task class and tenant,
+	 * then per tenant and per class, the largest CPU users first. Blocking.
+	 */
+	public static void printTotals(Coordination zk) throws KeeperException, InterruptedException {
+		Map<String, TaskUsage> byKey = new HashMap<>();
+		List<String> workers;
+		try {
+			workers = zk.getChildren(ROOT, false);
+		} catch (KeeperException.NoNodeException e) {
+			workers = List.of();
+		}
+		for (String worker : workers) {
+			try {
+				for (Map.Entry<String, TaskUsage> entry : TaskUsage.decodeTable(zk.getData(ROOT + "/" + worker, false, null)).entrySet())
+					byKey.computeIfAbsent(entry.getKey(), (key) -> new TaskUsage()).add(entry.getValue());
+			} catch (IOException e) {
+				System.err.println(Col.RED.fg("Corrupted usage of [" + worker + "] : " + e));
+			}
+		}
+		if (byKey.isEmpty()) {
+			System.out.println("No usage recorded yet (workers publish theirs every " + PUBLISH_MS / 1000 + " s)");
+			return;
+		}
+
+		Map<String, TaskUsage> byTenant = new HashMap<>();
+		Map<String, TaskUsage> byClass = new HashMap<>();
+		for (Map.Entry<String, TaskUsage> entry : byKey.entrySet()) {
+			String[] key = entry.getKey().split("\t", 2);
+			byClass.computeIfAbsent(key[0], (k) -> new TaskUsage()).add(entry.getValue());
+			byTenant.computeIfAbsent(key[1], (k) -> new TaskUsage()).add(entry.getValue());
+		}
+		System.out.println("Usage of " + workers.size() + " workers, per task class / tenant: [");
+		print(byKey);
+		System.out.println("]\nPer tenant: [");
+		print(byTenant);
+		System.out.println("]\nPer task class: [");
+		print(byClass);
+		System.out.println("]");
+	}
+
+	private static void print(Map<String, TaskUsage> usage) {
+		usage.entrySet().stream()
+			.sorted(Comparator.comparingLong((Map.Entry<String, TaskUsage> e) -> e.getValue().getCpuNanos()).reversed())
+			.forEach((e) -> System.out.printf("  [%s] -> %s\n", e.getKey().replace('\t', '/'), e.getValue()));
+	}
+
+}
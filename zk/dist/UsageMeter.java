@@ -0,0 +1,87 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the CPU time and the bytes allocated by the threads computing one task, with the
+ * per-thread counters of the JVM ({@link ThreadMXBean}): the compute thread, and for a
+ * {@link ParallelTask}, the threads of its pool (the meter is the pool's thread factory). Counters
+ * the JVM doesn't support read 0. One meter per task.
+ */
+public class UsageMeter implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	/** Allocation counters are a HotSpot extension, null without them. */
+	private static final com.sun.management.ThreadMXBean ALLOCATIONS;
+
+	static {
+		if (THREADS.isThreadCpuTimeSupported() && !THREADS.isThreadCpuTimeEnabled()) THREADS.setThreadCpuTimeEnabled(true);
+		com.sun.management.ThreadMXBean hotspot = THREADS instanceof com.sun.management.ThreadMXBean
+			? (com.sun.management.ThreadMXBean) THREADS : null;
+		if (hotspot != null && hotspot.isThreadAllocatedMemorySupported()) {
+			if (!hotspot.isThreadAllocatedMemoryEnabled()) hotspot.setThreadAllocatedMemoryEnabled(true);
+			ALLOCATIONS = hotspot;
+		}
+		else {
+			ALLOCATIONS = null;
+		}
+	}
+
+	private final List<Thread> poolThreads = new CopyOnWriteArrayList<>();
+	private final AtomicLong cpuNanos = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	/** The computation, counting what the thread running it uses meanwhile. */
+	public Runnable measure(Runnable compute) {
+		return () -> {
+			long thread = Thread.currentThread().getId();
+			long cpu = cpu(thread);
+			long allocated = allocated(thread);
+			try {
+				compute.run();
+			} finally {
+				cpuNanos.addAndGet(cpu(thread) - cpu);
+				allocatedBytes.addAndGet(allocated(thread) - allocated);
+			}
+		};
+	}
+
+	@Override
+	public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+		ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+		poolThreads.add(thread);
+		return thread;
+	}
+
+	/**
+	 * Add what the threads of the pool used (all of it: they only ever ran this task). Call before
+	 * shutting the pool down, the counters of a thread go with it.
+	 */
+	public void collectPool() {
+		for (Thread thread : poolThreads) {
+			cpuNanos.addAndGet(cpu(thread.getId()));
+			allocatedBytes.addAndGet(allocated(thread.getId()));
+		}
+		poolThreads.clear();
+	}
+
+	public long getCpuNanos() {
+		return cpuNanos.get();
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	private static long cpu(long thread) {
+		return THREADS.isThreadCpuTimeEnabled() ? Math.max(0, THREADS.getThreadCpuTime(thread)) : 0;
+	}
+
+	private static long allocated(long thread) {
+		return ALLOCATIONS != null ? Math.max(0, ALLOCATIONS.getThreadAllocatedBytes(thread)) : 0;
+	}
+
+}
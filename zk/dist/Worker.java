@@ -1,43 +1,163 @@
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
-import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Scanner;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class representing a worker. See worker.md for more details.
  */
 public class Worker {
 
-	private final ZooKeeper zk;
+	private final Coordination zk;
 	private String workerZNode;
 	private final String processInfo;
 
+	/** Number of compute threads. Only one task runs at a time, extra threads are spares for "kill". */
+	static final int COMPUTE_THREADS = Integer.parseInt(
+		Objects.requireNonNullElse(System.getenv("COMPUTE_THREADS_50"), "1"));
+
+	/**
+	 * Cores we offer to {@link ParallelTask}s (WORKER_CORES_50, default all of the machine's):
+	 * advertised in our worker ZNode, and the most a task gets.
+	 */
+	static final int CORES = Integer.parseInt(Objects.requireNonNullElse(System.getenv("WORKER_CORES_50"),
+		Integer.toString(Runtime.getRuntime().availableProcessors())));
+	/** Line of the data of a worker ZNode telling its {@link #CORES}. */
+	static final String CORES_LINE = "cores=";
+
+	/**
+	 * Time to live of result ZNodes in ms (0 = plain persistent). Requires the ensemble to run with
+	 * zookeeper.extendedTypesEnabled=true, otherwise we fall back to persistent results.
+	 */
+	static final long RESULT_TTL = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("RESULT_TTL_50"), "0"));
+	/** Whether to create results with {@link #RESULT_TTL}, until the ensemble tells us it can't. */
+	private volatile boolean ttlResults = RESULT_TTL > 0;
+
+	/** File of the result journal (RESULT_JOURNAL_50, off if unset), see {@link ResultJournal}. */
+	static final String JOURNAL = System.getenv("RESULT_JOURNAL_50");
+	/** Size of the result journal in MB: results that don't fit are published directly. */
+	static final int JOURNAL_MB = Integer.parseInt(Objects.requireNonNullElse(System.getenv("RESULT_JOURNAL_MB_50"), "64"));
+	/** Results are appended here, then published by the {@link #publisher}. Null if disabled. */
+	private ResultJournal journal;
+	/** Publishes the journaled results to ZK, in order. */
+	private final ExecutorService publisher;
+
 	/** The ExecutorService responsible for doing computations. */
 	private final ExecutorService executor;
+	/**
+	 * The ExecutorService responsible for the blocking ZK coordination around a computation
+	 * (reading the assignment and task, writing the result). Reused across assignments instead of
+	 * spawning a new thread every time.
+	 */
+	private final ExecutorService coordinator;
+	/** Saves the progress of checkpointable tasks while they run. */
+	private Checkpointer checkpointer;
+	/** Broadcast objects used by our tasks. */
+	private BroadcastCache broadcasts;
+	/** What our tasks used, per task class and tenant, for the Master's totals. */
+	private UsageLedger ledger;
 	/** The future of the task the worker is currently executing. */
 	private volatile Future<?> taskFuture;
+	/** Context of the {@link ParallelTask} currently executing, null if none. */
+	private volatile TaskContext taskContext;
+	/** The Master took back the task we are computing (it timed out): we cancel it, see {@link Assignment#takeBack}. */
+	private volatile boolean takenBack = false;
+
+	/** Number of assignments dispatched so far (for dispatch overhead statistics). */
+	private final AtomicLong dispatched = new AtomicLong();
+	/** Total time between assignment watcher trip and compute submission, in nanoseconds. */
+	private final AtomicLong dispatchNanos = new AtomicLong();
+	/** Same, for the assignments that had their task inlined (one read instead of two). */
+	private final AtomicLong inlineDispatched = new AtomicLong();
+	private final AtomicLong inlineDispatchNanos = new AtomicLong();
+
+	/**
+	 * How long the computation thread keeps retrying a ZK operation while the connection is lost,
+	 * in ms: the client reconnects, or DistProcess opens a new session, meanwhile. A computed
+	 * result is only given up after that.
+	 */
+	static final long RETRY_MS = 5 * 60 * 1000;
+	/** A job is queued or running on the coordination thread (for {@link #recover()}). */
+	private volatile boolean busy = false;
+
+	/**
+	 * A computation on the compute thread that tells when that thread is really done with it:
+	 * cancelling its future doesn't stop a task that ignores interrupts (MCPi).
+	 */
+	private static final class Computation implements Runnable {
+		private final Runnable compute;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private final CountDownLatch over = new CountDownLatch(1);
+
+		Computation(Runnable compute) {
+			this.compute = compute;
+		}
+
+		@Override
+		public void run() {
+			if (!claimed.compareAndSet(false, true)) return; // Cancelled before it started
+			try {
+				compute.run();
+			} finally {
+				over.countDown();
+			}
+		}
+
+		/** Wait until the compute thread has left the computation, if it ever started it. */
+		void awaitStopped() throws InterruptedException {
+			if (claimed.compareAndSet(false, true)) return; // Never started, and now never will
+			over.await();
+		}
+	}
 
-	public Worker(ZooKeeper zk, String processInfo) {
+	/** A blocking ZK operation, for {@link #retrying}. */
+	private interface ZkCall<T> {
+		T call() throws KeeperException, InterruptedException;
+	}
+
+	public Worker(Coordination zk, String processInfo) {
 		String sig = Col.CYAN.fg("Worker/constructor") + " : ";
 		this.zk = zk;
 		this.processInfo = processInfo;
 		System.out.println(sig +  "Constructed and ready for init");
-		executor = Executors.newSingleThreadExecutor();
+		executor = Executors.newFixedThreadPool(COMPUTE_THREADS, (r) -> new Thread(r, "compute"));
+		coordinator = Executors.newSingleThreadExecutor((r) -> new Thread(r, "coordination"));
+		checkpointer = new Checkpointer(zk);
+		broadcasts = new BroadcastCache(zk);
+		ledger = new UsageLedger(zk);
+		publisher = Executors.newSingleThreadExecutor((r) -> new Thread(r, "publisher"));
+		if (JOURNAL != null) {
+			try {
+				journal = new ResultJournal(Path.of(JOURNAL), JOURNAL_MB * 1024 * 1024);
+				System.out.println(sig + "Result journal " + JOURNAL + " opened, " + journal.recovered().size() + " results to publish");
+			} catch (IOException e) {
+				System.err.println(sig + Col.RED.fg("Could not open the result journal, results are published directly : " + e));
+			}
+		}
+		Broadcast.setResolver(broadcasts);
 	}
 
 	/**
@@ -46,11 +166,13 @@ public class Worker {
 	 * know they joined by creating the node "/dist50/workers/worker-x", which the Master has
 	 * a watch on. This is to avoid a case where the master immediately assigns a task to the
 	 * worker before the worker has had time to set a watch on its assignments.
-	 * This method is synchronous.
-	 * @throws InterruptedException Failure to create sequential ZNode.
-	 * @throws KeeperException Failure to create sequential ZNode.
+	 * <p>
+	 * This method is asynchronous: the watches and the worker ZNode are requested back to back,
+	 * without waiting for each reply (one round trip to join instead of four, which matters when
+	 * hundreds of workers start at once). This is safe because ZK processes the requests of a
+	 * session in order: both watches are set by the time the Master can see us.
 	 */
-	public void init() throws InterruptedException, KeeperException {
+	public void init() {
 		String sig = Col.CYAN.fg("Worker/init") + " : ";
 
 		// Create thread that will listen for commands (debug only)
@@ -60,35 +182,104 @@ public class Worker {
 		/*
 		 * Get our ZNode name BEFORE notifying the Master.
 		 *
-		 * There is a slight chicken-and-egg problem where. To set a watch on its assignments,
-		 * worker-x must know ts ID ("x"). To get "x", the worker has to create a sequential node
-		 * "worker-?", but if it creates that node in "/dist50/workers", the master will be
-		 * notified, and we run in the problem in the method javadoc. To solve this, for workers
-		 * to get their ID ("x"), the worker first creates a sequential node in "/dist50/trash"
-		 * to get "x" without notifying the master. We could have also used {@link #processInfo},
-		 * but it has no uniqueness guarantees as unlikely as it is to actually be a problem.
+		 * To set a watch on its assignments, worker-x must know its ID ("x"), and it must not be
+		 * the name of a ZNode in "/dist50/workers" yet, or the master would be notified before
+		 * we are ready (see the method javadoc). The session ID is unique in the ensemble and
+		 * known as soon as we are connected, so it is our ID (workers used to create a
+		 * sequential node in "/dist50/trash" to get one, a round trip for nothing).
 		 */
-		System.out.println(sig + "Creating garbage ZNode to get our worker ID.");
-		String tmp = zk.create("/dist50/trash/worker-", processInfo.getBytes(),
-			ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-		this.workerZNode = tmp.split("/trash/")[1]; //"worker-???"
+		this.workerZNode = String.format("worker-%016x", zk.getSessionId());
 		System.out.println(sig + "Initialized with ID [" + this.workerZNode + "]");
+		ledger.start(workerZNode);
 		sig = Col.CYAN.bg(workerZNode + "/init") + " : ";
 
-
-		// Start the assignments "watch-loop" BEFORE letting master know we joined. Synchronous.
-		System.out.println(sig + "Creating watch on assignment before announcing presence.");
-		setAssignmentWatcher();
+		// Start the assignments "watch-loop" BEFORE letting master know we joined.
+		System.out.println(sig + "Creating watch on assignment, then announcing presence to master.");
+		setAssignmentWatcher(false);
+		setDrainWatcher();
 
 		// Create node so that the Master is notified of us joining.
-		System.out.println(sig + "Announcing presence to master.");
-		String zNode = zk.create("/dist50/workers/" + workerZNode, processInfo.getBytes(),
-			ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+		join(System.nanoTime());
+
+		// Results a previous worker computed here but couldn't publish before it died.
+		if (journal != null) for (ResultJournal.Entry entry : journal.recovered()) publisher.execute(() -> publish(entry, true));
+	}
+
+	/**
+	 * Our session expired and DistProcess got us a new one: our worker ZNode and our watches went
+	 * with the old one, and the Master took our assignment back. Same as {@link #init()}, under the
+	 * same name. A computation in progress goes on: its result is still stored (see
+	 * {@link #commitResult}), the Master has re-queued the task meanwhile and the first result wins.
+	 */
+	public void recover() {
+		String sig = Col.CYAN.bg(workerZNode + "/recover") + " : ";
+		System.out.println(sig + "Setting our watches again and re-joining" + (busy ? " (still computing)" : ""));
+		setAssignmentWatcher(!busy); // Idle: we may have been assigned something before it is set
+		setDrainWatcher();
+		join(System.nanoTime());
+	}
 
-		// Something went really wrong if this fails.
-		assert (Objects.equals(zNode, workerZNode) && zNode != null);
+	/** Create our node so that the Master is notified of us joining (startedAt: for joinCB). */
+	private void join(long startedAt) {
+		zk.create("/dist50/workers/" + workerZNode, (processInfo + "\n" + CORES_LINE + CORES).getBytes(),
+			ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, joinCB, startedAt);
 	}
 
+	/** Cores offered by a worker, from the data of its ZNode (1 if it doesn't tell). */
+	static int coresOf(byte[] data) {
+		for (String line : new String(data).split("\n")) {
+			if (line.startsWith(CORES_LINE)) {
+				try {
+					return Integer.parseInt(line.substring(CORES_LINE.length()));
+				} catch (NumberFormatException ignored) {}
+			}
+		}
+		return 1;
+	}
+
+	/** Cores granted to a task asking for some (0: all of ours). */
+	static int grant(int wanted, int offered) {
+		return wanted <= 0 ? offered : Math.min(wanted, offered);
+	}
+
+	/** Our worker ZNode was created (ctx: when we started joining), the Master now knows us. */
+	private final AsyncCallback.StringCallback joinCB = (rc, path, ctx, name) -> {
+		String sig = Col.CYAN.bg(workerZNode + "/joinCB") + " : ";
+		switch (KeeperException.Code.get(rc)) {
+			case OK:
+			case NODEEXISTS: // Our previous attempt went through before the connection was lost
+				break;
+			case CONNECTIONLOSS: // Not known whether it went through, try again once reconnected
+				join((long) ctx);
+				return;
+			case SESSIONEXPIRED: // recover() joins again
+				return;
+			default:
+				System.err.println(sig + Col.RED.bg("Could not announce our presence : " + KeeperException.Code.get(rc)));
+				throw new RuntimeException(KeeperException.create(KeeperException.Code.get(rc), path));
+		}
+		System.out.printf(sig + Col.GREEN.fg("Joined in %.3f ms\n"), (System.nanoTime() - (long) ctx) / 1e6);
+	};
+
+	/**
+	 * Errors of the exists() calls setting our watches (NONODE is the normal case). After a
+	 * connection loss, the watch is set again by ctx (a Runnable) once reconnected; after an
+	 * expiry, by {@link #recover()}.
+	 */
+	private final AsyncCallback.StatCallback watchSetCB = (rc, path, ctx, stat) -> {
+		String sig = Col.MAGENTA.bg(workerZNode + "/watchSetCB") + " : ";
+		KeeperException.Code code = KeeperException.Code.get(rc);
+		if (code == KeeperException.Code.CONNECTIONLOSS && ctx != null) {
+			((Runnable) ctx).run();
+			return;
+		}
+		if (code == KeeperException.Code.SESSIONEXPIRED) return;
+		if (code != KeeperException.Code.OK && code != KeeperException.Code.NONODE) {
+			System.err.println(sig + Col.RED.bg("An error has occurred while setting the watch on " + path + " : " + code));
+			throw new RuntimeException(KeeperException.create(code, path));
+		}
+	};
+
 	/** Allow manual debugging */
 	private final Runnable commandHandler = () -> {
 		String sig = Col.RED.bg + "Worker/commandHandler" + Col.RESET + " : ";
@@ -104,11 +295,13 @@ public class Worker {
 					 * cancel its future and serialize an "unfinished" task object back for debugging
 					 * purposes. MCPi doesn't respond to interrupts, so it will continue hogging CPU in
 					 * some random thread somewhere but at least control will be restored to the worker
-					 * computation thread (ST executor will be unable to process new tasks). Use
-					 * TestClient to debug with an interruptible task.
+					 * coordination thread (with COMPUTE_THREADS_50 = 1, the executor will be unable to
+					 * process new tasks). Use TestClient to debug with an interruptible task.
 					 */
 					if (taskFuture != null && (!taskFuture.isDone() || !taskFuture.isCancelled())) {
 						System.out.println(sig + Col.RED.fg("Attempting to interrupt task..."));
+						TaskContext context = taskContext;
+						if (context != null) context.cancel(); // Parallel parts stop at their next check
 						taskFuture.cancel(true);
 					}
 					else {
@@ -119,11 +312,34 @@ public class Worker {
 					if (taskFuture == null || taskFuture.isDone() || taskFuture.isCancelled())
 						System.out.println(sig + "Currently idle");
 					else
-						System.out.println(sig + "Currently running task");
+						System.out.println(sig + "Currently running task"
+							+ (taskContext != null ? " on " + taskContext.getCores() + " of our " + CORES + " cores" : ""));
+					long n = dispatched.get();
+					long inline = inlineDispatched.get();
+					if (n > 0) {
+						System.out.printf(sig + "Average dispatch overhead: %.3f ms over %d tasks\n",
+							dispatchNanos.get() / 1e6 / n, n);
+					}
+					if (inline > 0 && n > inline) {
+						System.out.printf(sig + "  inline tasks: %.3f ms over %d | fetched tasks: %.3f ms over %d\n",
+							inlineDispatchNanos.get() / 1e6 / inline, inline,
+							(dispatchNanos.get() - inlineDispatchNanos.get()) / 1e6 / (n - inline), n - inline);
+					}
+					else if (inline > 0) {
+						System.out.println(sig + "  (all tasks were inlined)");
+					}
+					checkpointer.printStats(sig);
+					broadcasts.printStats(sig);
+					ledger.printStats(sig);
+					if (journal != null) System.out.println(sig + journal.getPending() + " journaled results not published yet");
 				}
 				else {
 					System.out.println(sig + Col.RED.fg("Unknown command \"" + cmd + "\""));
 				}
+			} catch (NoSuchElementException e) {
+				// Launched by the autoscaler and it went away (stdin closed)
+				System.out.println(sig + Col.YELLOW.fg("No console, stop listening for commands."));
+				return;
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -132,26 +348,34 @@ public class Worker {
 
 	/* ===================================== ASSIGNMENT MANAGEMENT "LOOP" ===================================== */
 
-	private void setAssignmentWatcher() {
+	/**
+	 * @param afterRelease We just released our assignment: the Master may have created the next
+	 *                     one before the watch is set, in which case it won't trip, so start it.
+	 */
+	private void setAssignmentWatcher(boolean afterRelease) {
 		String sig = Col.MAGENTA.bg(workerZNode + "/setAssignmentWatcher") + " : ";
-		try {
-			/*
-			 * From javadoc: "The watch will be triggered by a successful operation that
-			 * creates/delete the node or sets the data on the node." So, we can be safe knowing
-			 * that this will trip ONCE the (currently nonexistent) node gets CREATED by the Master.
-			 */
-			if (DistProcess.LOOP_PRINT) {
-				System.out.println(sig + "assignmentWatcher set on "
-					+ "\"/dist50/assignments/" + workerZNode + "\"'s existence");
-			}
-			zk.exists("/dist50/assignments/" + workerZNode, assignmentWatcher);
-		} catch (InterruptedException | KeeperException e) {
-			System.err.println(sig + Col.RED.bg("An error has occurred while assigning the watch."));
-			e.printStackTrace();
-			throw new RuntimeException(e);
+		/*
+		 * From javadoc: "The watch will be triggered by a successful operation that
+		 * creates/delete the node or sets the data on the node." So, we can be safe knowing
+		 * that this will trip ONCE the (currently nonexistent) node gets CREATED by the Master.
+		 */
+		if (DistProcess.LOOP_PRINT) {
+			System.out.println(sig + "assignmentWatcher set on "
+				+ "\"/dist50/assignments/" + workerZNode + "\"'s existence");
 		}
+		zk.exists("/dist50/assignments/" + workerZNode, assignmentWatcher, assignmentWatchSetCB, afterRelease);
 	}
 
+	/** Like {@link #watchSetCB}, but also start the assignment already there after a release (ctx). */
+	private final AsyncCallback.StatCallback assignmentWatchSetCB = (rc, path, ctx, stat) -> {
+		watchSetCB.processResult(rc, path, (Runnable) () -> setAssignmentWatcher((Boolean) ctx), stat);
+		if (KeeperException.Code.get(rc) == KeeperException.Code.OK && (Boolean) ctx) {
+			String sig = Col.MAGENTA.bg(workerZNode + "/assignmentWatchSetCB") + " : ";
+			System.out.println(sig + "A new task was assigned to us before we were watching. Starting it...");
+			startComputation(System.nanoTime()); // Asynchronous
+		}
+	};
+
 	private final Watcher assignmentWatcher = (event) -> {
 		String sig = Col.MAGENTA.bg(workerZNode + "/assignmentWatcher") + " : ";
 		if (DistProcess.LOOP_PRINT) System.out.println(sig + "Tripped with > " + event.getType().name());
@@ -160,21 +384,86 @@ public class Worker {
 			case NodeCreated:
 				// New assignment: get task from ZNode data, retrieve and do it.
 				System.out.println(sig + "A new task was assigned to us. Starting it...");
-				startComputation(); // Asynchronous
-				break;
+				startComputation(System.nanoTime()); // Asynchronous
+				setAssignmentWatcher(false); // Loop (trips when we release it)
+				return;
+
+			case NodeDataChanged:
+				// The Master took the task back (it timed out, see WorkerHealth) and runs it
+				// elsewhere: stop computing it. The computation thread deletes the assignment once
+				// the compute thread is free, until then the Master doesn't assign us anything.
+				System.out.println(sig + Col.YELLOW.fg("Our assignment was taken back, cancelling the computation."));
+				takeBack();
+				setAssignmentWatcher(false); // Loop (trips when we release it)
+				return;
 
 			case NodeDeleted:
-				// ONLY WE are allowed to delete our own assignment node, this is tripped by the
-				// computation thread finishing. There is nothing to do.
+				// Normally, tripped by the computation thread finishing (releasing the assignment).
+				// The Master may already have assigned the next one.
 //				if (DistProcess.LOOP_PRINT) System.out.println(sig + "Assignment removed.");
-				break;
+				// Deleted while still computing, the Master thought we were gone and runs the task
+				// elsewhere: stop computing it.
+				Future<?> running = taskFuture;
+				if (running != null && !running.isDone()) {
+					System.out.println(sig + Col.YELLOW.fg("Our assignment was deleted, cancelling the computation."));
+					takeBack();
+				}
+				setAssignmentWatcher(true); // Loop
+				return;
 
 			case None:
-				// Client close
-				if (event.getState() == Watcher.Event.KeeperState.Closed) {
+				// Connection state: the watch outlives a disconnection, recover() sets it again after an expiry
+				if (event.getState() == Watcher.Event.KeeperState.Closed)
 					System.out.println(sig + Col.RED.fg("Disconnect: terminating assignment \"watcher loop\""));
-					return; // Don't renew loop
-				}
+				return; // Don't renew loop
+
+			default:
+				// Something wrong happened
+				System.err.printf(sig + Col.RED.bg("An unexpected event has occurred!")
+						+ " [type] = %s | [state] = %s | [path] = %s",
+					event.getType(), event.getState(), event.getPath());
+				throw new RuntimeException();
+		}
+	};
+
+	/** Cancel the computation in progress, if any, for good: it is not ours anymore. */
+	private void takeBack() {
+		Future<?> running = taskFuture;
+		if (running == null || running.isDone()) return; // Not started yet, or committing its result
+		takenBack = true;
+		TaskContext context = taskContext;
+		if (context != null) context.cancel();
+		running.cancel(true);
+	}
+
+	/* ===================================== DRAIN REQUEST ===================================== */
+
+	/**
+	 * The master (autoscaler) retires us by creating /dist50/drain/worker-x. It only does so while
+	 * we are idle, and stops assigning us anything before. One-shot: we exit once it trips.
+	 */
+	private void setDrainWatcher() {
+		String sig = Col.MAGENTA.bg(workerZNode + "/setDrainWatcher") + " : ";
+		if (DistProcess.LOOP_PRINT) {
+			System.out.println(sig + "drainWatcher set on \"/dist50/drain/" + workerZNode + "\"'s existence");
+		}
+		zk.exists("/dist50/drain/" + workerZNode, drainWatcher, watchSetCB, (Runnable) this::setDrainWatcher);
+	}
+
+	private final Watcher drainWatcher = (event) -> {
+		String sig = Col.MAGENTA.bg(workerZNode + "/drainWatcher") + " : ";
+		if (DistProcess.LOOP_PRINT) System.out.println(sig + "Tripped with > " + event.getType().name());
+
+		switch (event.getType()) {
+			case NodeCreated:
+				// Queued behind any computation in progress, so a task is never cut short.
+				System.out.println(sig + Col.YELLOW.fg("Drain requested, exiting once idle."));
+				scheduleRetirement();
+				break;
+
+			case None:
+				// Connection state: the watch outlives a disconnection, recover() sets it again after an expiry
+				return;
 
 			default:
 				// Something wrong happened
@@ -183,93 +472,433 @@ public class Worker {
 					event.getType(), event.getState(), event.getPath());
 				throw new RuntimeException();
 		}
-		setAssignmentWatcher(); // Loop
 	};
 
-	private void startComputation() {
+	private void scheduleRetirement() {
+		coordinator.execute(this::retire);
+	}
+
+	/** Remove the drain request (so that the ID can't be drained again) and exit. */
+	private void retire() {
+		String sig = Col.YELLOW.bg(workerZNode + "/retire") + " : ";
+		try {
+			zk.delete("/dist50/drain/" + workerZNode, -1);
+		} catch (InterruptedException | KeeperException e) {
+			System.err.println(sig + Col.RED.fg("Could not remove our drain request : " + e));
+		}
+		System.out.println(sig + Col.GREEN.fg("Retired by the master, shutting down."));
+		System.exit(0); // Runs shutdown hook to disconnect
+	}
+
+	/**
+	 * Hands the assignment over to the coordination thread.
+	 * @param trippedAt {@link System#nanoTime()} at which the assignment watcher tripped, used to
+	 *                  measure the dispatch overhead.
+	 */
+	private void startComputation(long trippedAt) {
 		/*
-		 * Everything in the computation thread is synchronous.
+		 * Everything in the coordination thread is synchronous.
 		 * 1. We are not on the event handler thread, so it's ok if we block or take a long time.
 		 * 2. We can't proceed without getting the information, so in terms of time taken, there's
 		 *    no difference between blocking or using a callback (since it will be called in the
 		 *    same amount of time as it would take it to unblock, and we'd be back on the event
 		 *    handler thread).
+		 * 3. ZK operations are retried while the connection is lost (see retrying()), so that a
+		 *    disconnection or a session expiry doesn't lose the computation.
 		 */
-		new Thread( () -> {
-			String sig = Col.YELLOW.bg(workerZNode + "/computationThread") + " : ";
-			System.out.println(sig + "Computation thread starting...");
-
-			// Get which task was assigned to us.
-			System.out.println(sig + "Getting assigned task details...");
-			String assignedTaskName;
+		busy = true;
+		coordinator.execute( () -> {
+			boolean journaled = false;
 			try {
-				byte[] rawTaskLocation = zk.getData("/dist50/assignments/" + workerZNode, false, null);
-				assignedTaskName = new String(rawTaskLocation);
-				System.out.println(sig + "We were assigned: " + Col.GREEN.fg("[" + assignedTaskName + "]"));
+				journaled = compute(trippedAt);
+			} finally {
+				if (!journaled) busy = false; // Otherwise, once published
+			}
+		});
+	}
 
-			} catch (KeeperException | InterruptedException e) {
-				System.err.println(sig + Col.RED.bg("Error encountered while getting assigned task."));
-				e.printStackTrace();
-				throw new RuntimeException(e);
+	/**
+	 * The job of the coordination thread for one assignment.
+	 * @return Whether the result was journaled, and is now being published by the publisher.
+	 */
+	private boolean compute(long trippedAt) {
+		String sig = Col.YELLOW.bg(workerZNode + "/computationThread") + " : ";
+		System.out.println(sig + "Computation thread starting...");
+		long session = zk.getSessionId(); // If it changes meanwhile, the Master took our assignment back
+
+		// Get which task was assigned to us.
+		System.out.println(sig + "Getting assigned task details...");
+		String assignedTaskName;
+		Assignment assignment;
+		Stat assignmentStat = new Stat(); // Its version makes sure we release this very assignment
+		try {
+			byte[] rawTaskLocation = retrying(sig, () -> zk.getData("/dist50/assignments/" + workerZNode, false, assignmentStat));
+			assignment = Assignment.decode(rawTaskLocation);
+			assignedTaskName = assignment.getTask();
+			if (assignment.isTakenBack()) {
+				// Timed out while we were away, or before we got to it.
+				System.out.println(sig + Col.YELLOW.fg("[" + assignedTaskName + "] was taken back, releasing it."));
+				releaseTakenBack(sig, assignmentStat);
+				return false;
 			}
+			System.out.println(sig + "We were assigned: " + Col.GREEN.fg("[" + assignedTaskName + "]")
+				+ (assignment.isInline() ? " (inline)" : ""));
+
+		} catch (KeeperException.NoNodeException e) {
+			// Our session expired before we got to it, and the Master took it back.
+			System.out.println(sig + Col.YELLOW.fg("Our assignment was taken back, nothing to do."));
+			return false;
+		} catch (KeeperException | InterruptedException e) {
+			System.err.println(sig + Col.RED.bg("Error encountered while getting assigned task."));
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
 
-			// Deserialize the task and actually compute.
+		// Deserialize the task and actually compute.
+		try {
+			System.out.println(sig + "Deserializing task...");
+			//getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) Async version of GetData
+			// Small tasks are inlined in the assignment by the Master, no need to read them.
+			byte[] taskSerial = assignment.isInline()
+				? assignment.getPayload()
+				: retrying(sig, () -> zk.getData("/dist50/tasks/" + assignedTaskName, false, null));
+
+			// Re-construct our task object.
+			TaskEnvelope envelope = TaskEnvelope.decode(taskSerial);
+			DistTask dt = envelope.getTask();
+			if (dt instanceof DependentTask) ((DependentTask) dt).setInputs(readInputs(sig, envelope));
+
+			// Pick up where a previous worker left off, if it saved anything.
+			String taskPath = "/dist50/tasks/" + assignedTaskName;
+			long priorWorkMs = 0;
+			if (dt instanceof CheckpointableTask)
+				priorWorkMs = checkpointer.resume(sig, taskPath, (CheckpointableTask) dt);
+
+			System.out.println(sig + "Starting computation...");
+
+			// Execute the task. Using an executor so that we can cancel on a Future (for now
+			// only manual cancellation by user entering "Kill" in terminal).
+			ForkJoinPool pool = null;
+			Computation computation = null;
+			UsageMeter meter = new UsageMeter();
+			long computeStart = System.nanoTime();
+			takenBack = false;
 			try {
-				System.out.println(sig + "Deserializing task...");
-				//getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) Async version of GetData
-				byte[] taskSerial = zk.getData("/dist50/tasks/" + assignedTaskName, false, null);
+				if (dt instanceof ParallelTask) {
+					// Its own pool, sized to the grant: the task can't use more cores than that.
+					pool = new ForkJoinPool(grant(((ParallelTask) dt).getCores(), CORES), meter, null, false);
+					TaskContext context = new TaskContext(pool);
+					taskContext = context;
+					System.out.println(sig + "Granted " + pool.getParallelism() + " of our " + CORES + " cores");
+					computation = new Computation(meter.measure(() -> ((ParallelTask) dt).compute(context)));
+				}
+				else {
+					computation = new Computation(meter.measure(dt::compute));
+				}
+				taskFuture = executor.submit(computation);
+				if (dt instanceof CheckpointableTask)
+					checkpointer.start(taskPath, (CheckpointableTask) dt, priorWorkMs);
+				long overhead = System.nanoTime() - trippedAt;
+				dispatched.incrementAndGet();
+				dispatchNanos.addAndGet(overhead);
+				if (assignment.isInline()) {
+					inlineDispatched.incrementAndGet();
+					inlineDispatchNanos.addAndGet(overhead);
+				}
+				System.out.printf(sig + "Dispatch overhead: %.3f ms\n", overhead / 1e6);
+				taskFuture.get(); // Block here until either done or cancelled.
+				System.out.println(sig + Col.GREEN.bg("Computation done") + ", serializing task.");
+			} catch (CancellationException e) {
+				if (takenBack) {
+					// Another worker resumes it, from its checkpoint if it has one. We only let go of
+					// the assignment once the compute thread is free for the next one.
+					System.out.println(sig + Col.YELLOW.bg("Computation cancelled") + ", the task was taken back. Waiting for it to stop...");
+					checkpointer.stop();
+					if (pool != null) pool.shutdownNow();
+					long stopping = System.nanoTime();
+					computation.awaitStopped();
+					System.out.printf(sig + "Computation stopped after %.1f s, releasing the assignment.\n", (System.nanoTime() - stopping) / 1e9);
+					releaseTakenBack(sig, assignmentStat);
+					return false;
+				}
+				System.out.println(sig + Col.RED.bg("Computation cancelled") + ", serializing incomplete task.");
+			} catch (ExecutionException e) {
+				checkpointer.stop(); // Kept for the worker it is tried on next
+				throw e;
+			} finally {
+				taskContext = null;
+				if (pool != null) {
+					meter.collectPool();
+					pool.shutdownNow();
+				}
+			}
+			// What the task used, for its client and for the Master's totals.
+			TaskUsage usage = new TaskUsage(meter.getCpuNanos(), meter.getAllocatedBytes(),
+				(System.nanoTime() - computeStart) / 1000000, assignment.getWaitMillis());
+			ledger.record(Objects.requireNonNullElse(envelope.header(TaskEnvelope.TASK_CLASS), dt.getClass().getName()),
+				Objects.requireNonNullElse(envelope.header(TaskEnvelope.TENANT), AdmissionState.DEFAULT_TENANT), usage);
+			System.out.println(sig + "Usage: " + usage);
+			checkpointer.stop();
+			boolean checkpointed = checkpointer.hasCheckpoint(taskPath); // The result supersedes it
+
+			// Serialize our Task object back to a byte array! If the client asked for it, stream
+			// it directly to the client instead, and only store a marker in ZK.
+			taskSerial = null;
+			String replyTo = envelope.header(TaskEnvelope.REPLY_TO);
+			if (replyTo != null) {
+				System.out.println(sig + "Streaming result to client at " + replyTo);
+				taskSerial = ResultStreamer.stream(replyTo, "/dist50/tasks/" + assignedTaskName, dt);
+			}
+			if (taskSerial == null) taskSerial = TaskEnvelope.encode(Map.of(TaskEnvelope.USAGE, usage.toHeader()), TaskEnvelope.serialize(dt));
+
+			// Journaled, the result survives whatever happens to ZK or to us: publish it in the
+			// background, and be done with this assignment.
+			ResultJournal.Entry entry = journal == null ? null : journal.append(assignedTaskName,
+				assignmentStat.getVersion(), assignmentStat.getCzxid(), session, taskSerial);
+			if (entry != null) {
+				System.out.println(sig + Col.GREEN.fg("Task finished") + ", result journaled.");
+				publisher.execute(() -> publish(entry, false));
+				return true;
+			}
 
-				// Re-construct our task object.
-				ByteArrayInputStream bis = new ByteArrayInputStream(taskSerial);
-				ObjectInput in = new ObjectInputStream(bis);
-				DistTask dt = (DistTask) in.readObject();
+			// Store it inside the result node, and remove our own assignment at the same time.
+			// By this point our assignment watcher should be reinstated.
+			System.out.println(sig + "Storing result in /dist50/tasks/" + assignedTaskName + "/result"
+				+ " and removing assignment (delete /dist50/assignments/" + workerZNode + ")");
+			commitResult(sig, assignedTaskName, taskSerial, assignmentStat, session, checkpointed);
+			//zk.create("/dist50/tasks/"+c+"/result", ("Hello from "+pinfo).getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			System.out.println(sig + Col.GREEN.fg("Task finished") + ", result stored.");
+
+		} catch (KeeperException.NoNodeException e) {
+			// Another attempt of a re-queued task finished first and its client deleted it.
+			System.out.println(sig + Col.YELLOW.fg("The task is gone (" + e.getPath() + "), releasing our assignment."));
+			try {
+				release(sig, assignmentStat, session);
+			} catch (KeeperException | InterruptedException re) {
+				throw new RuntimeException(re);
+			}
+		} catch (InterruptedException e) {
+			System.err.println(sig + Col.RED.bg(" : Interrupted while doing our assigned task."));
+			throw new RuntimeException(e);
+		} catch (Exception | LinkageError e) {
+			// The task threw, or we could not get it ready: give it back for another worker.
+			System.err.println(sig + Col.RED.bg(" : Error encountered while doing our assigned task."));
+			e.printStackTrace();
+			reportFailure(sig, assignedTaskName, assignmentStat, session, e);
+		}
+		return false;
+	}
 
-				System.out.println(sig + "Starting computation...");
+	/**
+	 * Give a task we could not compute back to the Master: replace our assignment with a
+	 * {@link FailureReport} in one transaction (only if the assignment is still the version we
+	 * read). Nothing to report if the Master took the assignment back already: it re-queued the
+	 * task itself.
+	 */
+	private void reportFailure(String sig, String task, Stat assignmentStat, long session, Throwable e) {
+		FailureReport report = new FailureReport(task, FailureReport.isWorkerFault(e), e.toString());
+		System.out.println(sig + Col.RED.fg("Reporting the failure of [" + task + "] ("
+			+ (report.isWorkerFault() ? "our" : "the task's") + " fault) to the Master."));
+		String assignment = "/dist50/assignments/" + workerZNode;
+		try {
+			if (zk.getSessionId() != session && !stillAssigned(sig, assignmentStat)) return;
+			try {
+				retrying(sig, () -> zk.multi(List.of(
+					Op.create(assignment + FailureReport.MARK, report.encode(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL),
+					Op.delete(assignment, assignmentStat.getVersion()))));
+			} catch (KeeperException.NoNodeException | KeeperException.BadVersionException ignored) {
+				System.out.println(sig + Col.YELLOW.fg("Our assignment was taken back, nothing to report."));
+				releaseTakenBack(sig, assignmentStat);
+			}
+		} catch (KeeperException | InterruptedException re) {
+			throw new RuntimeException(re);
+		}
+	}
 
-				// Execute the task. Using an executor so that we can cancel on a Future (for now
-				// only manual cancellation by user entering "Kill" in terminal).
+	/**
+	 * Publish a journaled result, retrying until it is in ZK, then mark it published in the
+	 * journal. Our own results are committed like any (see {@link #commitResult}), which frees us
+	 * for the next assignment. Those of a previous process (recovered) are only stored: their
+	 * assignment was another worker's, taken back by the Master when it left.
+	 */
+	private void publish(ResultJournal.Entry entry, boolean recovered) {
+		String sig = Col.YELLOW.bg(workerZNode + "/publisher") + " : ";
+		try {
+			while (true) {
 				try {
-					taskFuture = executor.submit(dt::compute);
-					taskFuture.get(); // Block here until either done or cancelled.
-					System.out.println(sig + Col.GREEN.bg("Computation done") + ", serializing task.");
-				} catch (CancellationException e) {
-					System.out.println(sig + Col.RED.bg("Computation cancelled") + ", serializing incomplete task.");
-				} catch (ExecutionException e) {
-					throw new RuntimeException(e);
+					boolean checkpointed = zk.exists("/dist50/tasks/" + entry.task + "/checkpoint", false) != null;
+					if (recovered) {
+						storeResult(sig, entry.task, entry.data, checkpointed);
+					}
+					else {
+						Stat assignmentStat = new Stat();
+						assignmentStat.setVersion(entry.assignmentVersion);
+						assignmentStat.setCzxid(entry.assignmentCzxid);
+						commitResult(sig, entry.task, entry.data, assignmentStat, entry.session, checkpointed);
+					}
+					break;
+				} catch (KeeperException e) {
+					System.err.println(sig + Col.RED.fg("Could not publish the result of [" + entry.task + "] : " + e + ", retrying in 5 s"));
+					Thread.sleep(5000);
 				}
-
-				// Serialize our Task object back to a byte array!
-				ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				ObjectOutputStream oos = new ObjectOutputStream(bos);
-				oos.writeObject(dt); oos.flush();
-				taskSerial = bos.toByteArray();
-
-				// Store it inside the result node.
-				System.out.println(sig + "Storing result in /dist50/tasks/" + assignedTaskName + "/result");
-				zk.create("/dist50/tasks/" + assignedTaskName + "/result", taskSerial,
-					ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-				//zk.create("/dist50/tasks/"+c+"/result", ("Hello from "+pinfo).getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-				System.out.println(sig + "Result stored.");
-
-			} catch(KeeperException | IOException | InterruptedException | ClassNotFoundException e) {
-				System.err.println(sig + Col.RED.bg(" : Error encountered while doing our assigned task."));
-				e.printStackTrace();
-				throw new RuntimeException(e);
 			}
+			journal.published(entry);
+			System.out.println(sig + Col.GREEN.fg((recovered ? "Recovered result" : "Result") + " of [" + entry.task + "] published."));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (!recovered) busy = false;
+		}
+	}
 
-			// Finally, now that we're done, we can remove our own assignment. By this point our
-			// assignment watcher should be reinstated.
+	/**
+	 * Run a ZK operation of the computation thread, again and again while the connection is lost
+	 * (for up to {@link #RETRY_MS}). Mind that an operation failing with CONNECTIONLOSS may have
+	 * been applied: callers of writes deal with what the retry then finds.
+	 */
+	private <T> T retrying(String sig, ZkCall<T> call) throws KeeperException, InterruptedException {
+		long giveUpAt = System.currentTimeMillis() + RETRY_MS;
+		while (true) {
 			try {
-				System.out.println(sig + Col.GREEN.fg("Task finished")
-					+ ", removing assignment (delete /dist50/assignments/" + workerZNode + ")");
-				zk.delete("/dist50/assignments/" + workerZNode, -1);
-			} catch (InterruptedException | KeeperException e) {
-				System.err.println(sig + Col.RED.fg(" : Error encountered while removing our 'assignment node'."));
-				e.printStackTrace();
-				throw new RuntimeException(e);
+				return call.call();
+			} catch (KeeperException.ConnectionLossException | KeeperException.SessionExpiredException e) {
+				if (System.currentTimeMillis() > giveUpAt) throw e;
+				System.out.println(sig + Col.YELLOW.fg(e.code() + ", retrying in 1 s..."));
+				Thread.sleep(1000);
+			}
+		}
+	}
+
+	/**
+	 * Store the result and release our assignment in a single transaction: one round trip instead
+	 * of two, and we can't die in between, looking busy forever with our result stored. The
+	 * Master sees the result and us idle at the same time. The assignment is only deleted if it is
+	 * still the version we read.
+	 * Results get a TTL if {@link #RESULT_TTL} is set, so that results nobody picks up eventually
+	 * disappear by themselves.
+	 * <p>
+	 * If our session expired while computing (it isn't the one we started with), the Master took
+	 * the assignment back and may have given us a new one since (with the same version): the
+	 * result is then stored alone, unless our assignment is still the very node we read.
+	 * <p>
+	 * The checkpoint of the task, if it has one, is deleted in the same transaction: until the
+	 * result is stored, the next worker may need it, and once it is, the client can delete the task.
+	 * @param checkpointed Whether the task has a checkpoint (see {@link Checkpointer#hasCheckpoint}).
+	 */
+	private void commitResult(String sig, String task, byte[] data, Stat assignmentStat, long session, boolean checkpointed)
+		throws KeeperException, InterruptedException {
+		String assignment = "/dist50/assignments/" + workerZNode;
+		String result = "/dist50/tasks/" + task + "/result";
+		if (zk.getSessionId() != session && !stillAssigned(sig, assignmentStat)) {
+			System.out.println(sig + Col.YELLOW.fg("Our assignment was taken back while we were away, storing the result alone."));
+			storeResult(sig, task, data, checkpointed);
+			return;
+		}
+		List<Op> ops = new ArrayList<>(3);
+		ops.add(ttlResults
+			? Op.create(result, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_WITH_TTL, RESULT_TTL)
+			: Op.create(result, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+		if (checkpointed) ops.add(Op.delete("/dist50/tasks/" + task + "/checkpoint", -1));
+		ops.add(Op.delete(assignment, assignmentStat.getVersion()));
+		try {
+			retrying(sig, () -> zk.multi(ops));
+		} catch (KeeperException.UnimplementedException e) {
+			if (!ttlResults) throw e;
+			System.err.println(sig + Col.RED.fg("TTL nodes are disabled on the ensemble, storing persistent results."));
+			ttlResults = false;
+			commitResult(sig, task, data, assignmentStat, session, checkpointed);
+		} catch (KeeperException.NodeExistsException e) {
+			// Re-queued after our previous owner died after storing the result (with an older
+			// worker that didn't commit atomically), or our own commit went through before the
+			// connection was lost. The first result wins, just release.
+			System.out.println(sig + Col.YELLOW.fg("Result was already stored by a previous attempt."));
+			if (checkpointed) dropCheckpoint(sig, task);
+			release(sig, assignmentStat, session);
+		} catch (KeeperException.NoNodeException | KeeperException.BadVersionException e) {
+			// The Master took the assignment back (it timed out, or it thought we were gone), or
+			// the checkpoint is gone already: still store the result.
+			System.out.println(sig + Col.YELLOW.fg("Our assignment was taken back, storing the result alone."));
+			storeResult(sig, task, data, checkpointed);
+			releaseTakenBack(sig, assignmentStat);
+		}
+	}
+
+	/** Whether our assignment is still the node we read (same creation), after a session change. */
+	private boolean stillAssigned(String sig, Stat assignmentStat) throws KeeperException, InterruptedException {
+		Stat current = retrying(sig, () -> zk.exists("/dist50/assignments/" + workerZNode, false));
+		return current != null && current.getCzxid() == assignmentStat.getCzxid();
+	}
+
+	/**
+	 * Store a result without touching our assignment, deleting the checkpoint of the task along
+	 * with it like {@link #commitResult}. The first result wins.
+	 */
+	private void storeResult(String sig, String task, byte[] data, boolean checkpointed) throws KeeperException, InterruptedException {
+		String result = "/dist50/tasks/" + task + "/result";
+		try {
+			if (checkpointed) {
+				retrying(sig, () -> zk.multi(List.of(
+					Op.create(result, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+					Op.delete("/dist50/tasks/" + task + "/checkpoint", -1))));
 			}
+			else {
+				retrying(sig, () -> zk.create(result, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+			}
+		} catch (KeeperException.NodeExistsException e) {
+			System.out.println(sig + Col.YELLOW.fg("Result was already stored by another attempt."));
+			if (checkpointed) dropCheckpoint(sig, task);
+		} catch (KeeperException.NoNodeException e) {
+			// The checkpoint may be the one gone (another attempt's result deleted it)
+			if (checkpointed) storeResult(sig, task, data, false);
+			else System.out.println(sig + Col.YELLOW.fg("The task is gone (its client gave up), dropping the result."));
+		}
+	}
+
+	/** Delete the checkpoint of a task that has a result: its client couldn't delete the task otherwise. */
+	private void dropCheckpoint(String sig, String task) throws KeeperException, InterruptedException {
+		try {
+			retrying(sig, () -> { zk.delete("/dist50/tasks/" + task + "/checkpoint", -1); return null; });
+		} catch (KeeperException.NoNodeException ignored) {}
+	}
 
-		}).start();
+	/** Delete our assignment if it is still the one we read (it may be gone already, see {@link #commitResult}). */
+	private void release(String sig, Stat assignmentStat, long session) throws KeeperException, InterruptedException {
+		if (zk.getSessionId() != session && !stillAssigned(sig, assignmentStat)) return;
+		try {
+			retrying(sig, () -> { zk.delete("/dist50/assignments/" + workerZNode, assignmentStat.getVersion()); return null; });
+		} catch (KeeperException.BadVersionException e) {
+			releaseTakenBack(sig, assignmentStat);
+		} catch (KeeperException.NoNodeException ignored) {}
+	}
+
+	/**
+	 * Delete our assignment after the Master took it back (rewrote it, which changed its version),
+	 * once we are done with it: that frees us. Only if it is still the node we read.
+	 */
+	private void releaseTakenBack(String sig, Stat assignmentStat) throws KeeperException, InterruptedException {
+		Stat current = retrying(sig, () -> zk.exists("/dist50/assignments/" + workerZNode, false));
+		if (current == null || current.getCzxid() != assignmentStat.getCzxid()) return;
+		try {
+			retrying(sig, () -> { zk.delete("/dist50/assignments/" + workerZNode, current.getVersion()); return null; });
+		} catch (KeeperException.NoNodeException | KeeperException.BadVersionException ignored) {}
+	}
+
+	/**
+	 * Read the results of the parents of a task graph stage (the Master only assigns it once they
+	 * all exist). Parent results must be stored in ZK, not streamed to the client.
+	 * @return Result of each parent, by stage name.
+	 */
+	private Map<String, DistTask> readInputs(String sig, TaskEnvelope envelope)
+		throws KeeperException, InterruptedException, IOException, ClassNotFoundException {
+		Map<String, DistTask> inputs = new LinkedHashMap<>();
+		for (Map.Entry<String, String> parent : TaskEnvelope.parseDeps(envelope.header(TaskEnvelope.DEPS)).entrySet()) {
+			System.out.println(sig + "Reading input [" + parent.getKey() + "] from " + parent.getValue());
+			byte[] result = zk.getData("/dist50/tasks/" + parent.getValue() + "/result", false, null);
+			if (TaskEnvelope.isStreamedMarker(result))
+				throw new IOException("Result of " + parent.getValue() + " was streamed to its client, not stored in ZK");
+			inputs.put(parent.getKey(), TaskEnvelope.decode(result).getTask());
+		}
+		return inputs;
 	}
 
 }
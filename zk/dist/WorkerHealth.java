@@ -0,0 +1,142 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Failures and timeouts of each worker, so that the Master stops feeding work to a broken one. A
+ * worker whose environment is broken (a class missing, a bad disk) fails every task it gets, is
+ * free again right away and takes the next one: it drains the queue into failures.
+ * <ul>
+ *     <li>Failures the worker is to blame for (see {@link FailureReport#isWorkerFault}) and
+ *     timeouts are strikes. A task failing by itself is neither held against its worker nor
+ *     for it.</li>
+ *     <li>After QUARANTINE_AFTER_50 (3) strikes in a row, the worker is quarantined: it isn't
+ *     assigned anything for QUARANTINE_SECONDS_50 (30) seconds, doubled at each quarantine in a
+ *     row (up to {@link #MAX_DOUBLINGS} times). Once released it is on probation: its next strike
+ *     quarantines it again, and completing a task clears its record.</li>
+ *     <li>At most half of the workers are quarantined at once: when most workers fail, the tasks
+ *     are more likely to blame than the workers.</li>
+ *     <li>With TASK_TIMEOUT_50 set (seconds, 0 = none), the Master takes back the tasks it
+ *     assigned that have been running longer than that, every quarter of it. A task timing out
+ *     on a second worker is no strike: the task is to blame.</li>
+ * </ul>
+ * Called under the lock of the Master, which re-queues the failed and timed out tasks (see
+ * {@link #MAX_ATTEMPTS}). With shards, each shard master only hears of its own tasks, so
+ * quarantines are per shard.
+ */
+public class WorkerHealth {
+	static final int QUARANTINE_AFTER = Integer.parseInt(
+		Objects.requireNonNullElse(System.getenv("QUARANTINE_AFTER_50"), "3"));
+	/** First quarantine of a worker, in seconds. */
+	static final long QUARANTINE_SECONDS = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("QUARANTINE_SECONDS_50"), "30"));
+	/** Quarantines double at most this many times (32 minutes with the defaults). */
+	static final int MAX_DOUBLINGS = 6;
+	/** Longest a task may run before it is taken back, in seconds (0 = forever). */
+	static final long TASK_TIMEOUT_SECONDS = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("TASK_TIMEOUT_50"), "0"));
+	/**
+	 * A task that failed or timed out goes to a worker it didn't fail on, until it failed on this
+	 * many workers (or on all of them): then the Master gives up on it.
+	 */
+	static final int MAX_ATTEMPTS = Integer.parseInt(
+		Objects.requireNonNullElse(System.getenv("TASK_MAX_ATTEMPTS_50"), "3"));
+
+	private static class Stats {
+		long completed;
+		long failed;
+		long timedOut;
+		/** Strikes in a row. */
+		int strikes;
+		/** Quarantines in a row, without completing a task in between. */
+		int quarantines;
+		/** Epoch ms, 0 if never quarantined. */
+		long quarantinedUntil;
+	}
+
+	private final Master master;
+	private final ScheduledExecutorService scheduler =
+		Executors.newSingleThreadScheduledExecutor((r) -> new Thread(r, "health"));
+	private final Map<String, Stats> workers = new HashMap<>();
+
+	public WorkerHealth(Master master) {
+		this.master = master;
+	}
+
+	/** Look for timed out tasks from now on, on our own thread, if enabled. */
+	public void start() {
+		if (TASK_TIMEOUT_SECONDS <= 0) return;
+		long period = Math.max(1, TASK_TIMEOUT_SECONDS * 1000 / 4);
+		scheduler.scheduleWithFixedDelay(master::timeOutTasks, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void completed(String worker) {
+		Stats stats = workers.computeIfAbsent(worker, (w) -> new Stats());
+		stats.completed++;
+		stats.strikes = 0;
+		stats.quarantines = 0;
+	}
+
+	/** The worker failed a task, its own fault. */
+	public synchronized void failed(String worker, long now, int workerCount) {
+		Stats stats = workers.computeIfAbsent(worker, (w) -> new Stats());
+		stats.failed++;
+		strike(worker, stats, now, workerCount);
+	}
+
+	/** The worker's task was taken back, it ran for too long. */
+	public synchronized void timedOut(String worker, long now, int workerCount) {
+		Stats stats = workers.computeIfAbsent(worker, (w) -> new Stats());
+		stats.timedOut++;
+		strike(worker, stats, now, workerCount);
+	}
+
+	private void strike(String worker, Stats stats, long now, int workerCount) {
+		String sig = Col.RED.bg("WorkerHealth/strike") + " : ";
+		stats.strikes++;
+		if (stats.strikes < QUARANTINE_AFTER || stats.quarantinedUntil > now) return;
+		if (quarantined(now) + 1 > workerCount / 2) {
+			System.out.println(sig + Col.YELLOW.fg("Worker [" + worker + "] failed its last " + stats.strikes
+				+ " tasks, but too many workers are quarantined already: not quarantining it."));
+			return;
+		}
+		long ms = QUARANTINE_SECONDS * 1000 << Math.min(stats.quarantines, MAX_DOUBLINGS);
+		stats.quarantinedUntil = now + ms;
+		stats.quarantines++;
+		stats.strikes = QUARANTINE_AFTER - 1; // On probation once released
+		System.out.println(sig + Col.RED.fg("Worker [" + worker + "] " + (stats.quarantines > 1 ? "failed again on probation"
+			: "failed its last " + QUARANTINE_AFTER + " tasks") + ": quarantined for " + ms / 1000 + " s."));
+		scheduler.schedule(() -> master.quarantineEnded(worker), ms, TimeUnit.MILLISECONDS);
+	}
+
+	private int quarantined(long now) {
+		int quarantined = 0;
+		for (Stats stats : workers.values()) if (stats.quarantinedUntil > now) quarantined++;
+		return quarantined;
+	}
+
+	public synchronized boolean isQuarantined(String worker, long now) {
+		Stats stats = workers.get(worker);
+		return stats != null && stats.quarantinedUntil > now;
+	}
+
+	/** The worker left. */
+	public synchronized void forget(String worker) {
+		workers.remove(worker);
+	}
+
+	/** For "ls workers": how the worker fares, "" if it never failed. */
+	public synchronized String describe(String worker, long now) {
+		Stats stats = workers.get(worker);
+		if (stats == null || stats.failed + stats.timedOut == 0) return "";
+		String record = String.format(" (%d failed, %d timed out of %d tasks)",
+			stats.failed, stats.timedOut, stats.completed + stats.failed + stats.timedOut);
+		if (stats.quarantinedUntil > now)
+			return Col.RED.fg(" (quarantined, " + (stats.quarantinedUntil - now + 999) / 1000 + " s left)") + Col.GRAY.fg(record);
+		return Col.GRAY.fg(record);
+	}
+
+}
@@ -0,0 +1,29 @@
+import java.io.IOException;
+
+/**
+ * Starts new worker processes for the {@link Autoscaler}. Launching is fire-and-forget: a new
+ * worker is only counted once it shows up in /dist50/workers. Workers are never stopped through
+ * the launcher, they are drained through ZK instead (see {@link Master#drain(String)}), so that
+ * a worker is never killed in the middle of a task.
+ */
+public interface WorkerLauncher {
+
+	/** Start one new worker. */
+	void launch() throws IOException;
+
+	/** Number of workers started by this launcher that are still running, -1 if unknown. */
+	default int running() {
+		return -1;
+	}
+
+	/** Launcher by name, as accepted by AUTOSCALE_50. */
+	static WorkerLauncher named(String name) {
+		switch (name.toLowerCase()) {
+			case "local":
+				return new LocalProcessLauncher();
+			default:
+				throw new IllegalArgumentException("Unknown worker launcher \"" + name + "\"");
+		}
+	}
+
+}
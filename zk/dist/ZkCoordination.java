@@ -0,0 +1,112 @@
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.List;
+
+/** {@link Coordination} through a ZooKeeper ensemble: plain delegation. */
+public class ZkCoordination implements Coordination {
+	private final ZooKeeper zk;
+
+	public ZkCoordination(ZooKeeper zk) {
+		this.zk = zk;
+	}
+
+	@Override
+	public long getSessionId() {
+		return zk.getSessionId();
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		zk.close();
+	}
+
+	@Override
+	public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode)
+		throws KeeperException, InterruptedException {
+		return zk.create(path, data, acl, createMode);
+	}
+
+	@Override
+	public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode,
+	                   AsyncCallback.StringCallback cb, Object ctx) {
+		zk.create(path, data, acl, createMode, cb, ctx);
+	}
+
+	@Override
+	public void delete(String path, int version) throws KeeperException, InterruptedException {
+		zk.delete(path, version);
+	}
+
+	@Override
+	public void delete(String path, int version, AsyncCallback.VoidCallback cb, Object ctx) {
+		zk.delete(path, version, cb, ctx);
+	}
+
+	@Override
+	public Stat exists(String path, boolean watch) throws KeeperException, InterruptedException {
+		return zk.exists(path, watch);
+	}
+
+	@Override
+	public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+		return zk.exists(path, watcher);
+	}
+
+	@Override
+	public void exists(String path, Watcher watcher, AsyncCallback.StatCallback cb, Object ctx) {
+		zk.exists(path, watcher, cb, ctx);
+	}
+
+	@Override
+	public byte[] getData(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
+		return zk.getData(path, watch, stat);
+	}
+
+	@Override
+	public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+		return zk.getData(path, watcher, stat);
+	}
+
+	@Override
+	public void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) {
+		zk.getData(path, watch, cb, ctx);
+	}
+
+	@Override
+	public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+		return zk.setData(path, data, version);
+	}
+
+	@Override
+	public void setData(String path, byte[] data, int version, AsyncCallback.StatCallback cb, Object ctx) {
+		zk.setData(path, data, version, cb, ctx);
+	}
+
+	@Override
+	public List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException {
+		return zk.getChildren(path, watch);
+	}
+
+	@Override
+	public List<String> getChildren(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
+		return zk.getChildren(path, watch, stat);
+	}
+
+	@Override
+	public void getChildren(String path, Watcher watcher, AsyncCallback.ChildrenCallback cb, Object ctx) {
+		zk.getChildren(path, watcher, cb, ctx);
+	}
+
+	@Override
+	public void getChildren(String path, boolean watch, AsyncCallback.ChildrenCallback cb, Object ctx) {
+		zk.getChildren(path, watch, cb, ctx);
+	}
+
+	@Override
+	public List<OpResult> multi(Iterable<Op> ops) throws KeeperException, InterruptedException {
+		return zk.multi(ops);
+	}
+
+}
@@ -0,0 +1,105 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Whether new tasks are admitted, as published by the Master in /dist50/admission for clients to
+ * check before submitting (see AdmissionController and AdmissionGate). Readable text, one
+ * "key value" per line, so that it can be checked with zkCli:
+ * <pre>
+ * open false
+ * reason 1200 tasks pending (max 1000)
+ * retry-ms 2000
+ * closed-tenant batch-jobs
+ * </pre>
+ * Shared by the client and the servers, so it lives with the tasks.
+ */
+public final class AdmissionState {
+	/** Tenant of the tasks without a {@link TaskEnvelope#TENANT} header. */
+	public static final String DEFAULT_TENANT = "default";
+	public static final AdmissionState OPEN = new AdmissionState(true, "", 0, new TreeSet<>());
+
+	private final boolean open;
+	private final String reason;
+	private final long retryAfterMs;
+	private final Set<String> closedTenants;
+
+	public AdmissionState(boolean open, String reason, long retryAfterMs, Set<String> closedTenants) {
+		this.open = open;
+		this.reason = reason;
+		this.retryAfterMs = retryAfterMs;
+		this.closedTenants = closedTenants;
+	}
+
+	/** Whether a new task of the tenant may be submitted. */
+	public boolean admits(String tenant) {
+		return open && !closedTenants.contains(tenant);
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+
+	/** How long the Master expects the state to last, a hint for clients backing off. */
+	public long getRetryAfterMs() {
+		return retryAfterMs;
+	}
+
+	public Set<String> getClosedTenants() {
+		return closedTenants;
+	}
+
+	public byte[] encode() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("open ").append(open).append('\n');
+		if (!reason.isEmpty()) sb.append("reason ").append(reason).append('\n');
+		if (retryAfterMs > 0) sb.append("retry-ms ").append(retryAfterMs).append('\n');
+		for (String tenant : closedTenants) sb.append("closed-tenant ").append(tenant).append('\n');
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Anything we can't parse (e.g. ZKReset's description of the node) means open. */
+	public static AdmissionState decode(byte[] data) {
+		boolean open = true;
+		String reason = "";
+		long retryAfterMs = 0;
+		Set<String> closedTenants = new TreeSet<>();
+		if (data == null) return OPEN;
+		for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+			int space = line.indexOf(' ');
+			if (space < 0) continue;
+			String value = line.substring(space + 1);
+			switch (line.substring(0, space)) {
+				case "open":
+					open = Boolean.parseBoolean(value);
+					break;
+				case "reason":
+					reason = value;
+					break;
+				case "retry-ms":
+					try {
+						retryAfterMs = Long.parseLong(value);
+					} catch (NumberFormatException ignored) {}
+					break;
+				case "closed-tenant":
+					closedTenants.add(value);
+					break;
+				default:
+					break;
+			}
+		}
+		return new AdmissionState(open, reason, retryAfterMs, closedTenants);
+	}
+
+	@Override
+	public String toString() {
+		if (open && closedTenants.isEmpty()) return "open";
+		return (open ? "open" : "closed (" + reason + ")")
+			+ (closedTenants.isEmpty() ? "" : ", closed to " + closedTenants);
+	}
+
+}
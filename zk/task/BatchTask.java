@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Many small tasks travelling as one: one task ZNode, one assignment and one result for the whole
+ * batch instead of one each, which is what tiny tasks mostly cost. Built by the client's
+ * TaskBatcher, computed by a worker like any task (entries one after the other, or in parallel on
+ * the cores the worker grants), and unpacked by the client into the result of each entry.
+ * <p>
+ * An entry throwing doesn't fail the batch: its error is recorded and the other entries still run.
+ * Once the batch is cancelled, the entries not started yet are recorded as cancelled.
+ */
+public class BatchTask implements ParallelTask {
+
+	private final List<DistTask> tasks;
+	private final boolean parallel;
+	private final String[] errors;
+
+	public BatchTask(List<DistTask> tasks, boolean parallel) {
+		this.tasks = new ArrayList<>(tasks);
+		this.parallel = parallel;
+		this.errors = new String[tasks.size()];
+	}
+
+	/** All of the worker's cores if parallel. */
+	@Override
+	public int getCores() {
+		return parallel ? 0 : 1;
+	}
+
+	@Override
+	public void compute(TaskContext ctx) {
+		System.out.println("DistTask: compute : batch of " + tasks.size() + (parallel ? " (parallel on " + ctx.getCores() + " cores)" : ""));
+		if (parallel) ctx.getPool().submit(() -> IntStream.range(0, tasks.size()).parallel().forEach((i) -> computeEntry(ctx, i))).join();
+		else IntStream.range(0, tasks.size()).forEach((i) -> computeEntry(ctx, i));
+		System.out.println("DistTask: compute : batch completed");
+	}
+
+	private void computeEntry(TaskContext ctx, int i) {
+		if (ctx.isCancelled()) {
+			errors[i] = "Cancelled";
+			return;
+		}
+		try {
+			tasks.get(i).compute();
+		} catch (RuntimeException e) {
+			errors[i] = e.toString();
+		}
+	}
+
+	public int size() {
+		return tasks.size();
+	}
+
+	/** The i-th task, computed once the batch is back. */
+	public DistTask get(int i) {
+		return tasks.get(i);
+	}
+
+	/** Why the i-th task failed, null if it didn't. */
+	public String getError(int i) {
+		return errors[i];
+	}
+
+}
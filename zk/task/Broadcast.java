@@ -0,0 +1,102 @@
+import java.io.*;
+import java.util.Set;
+
+/**
+ * Reference to a large read-only object shared by many tasks (a model, a lookup table...),
+ * published once by the client (see BroadcastPublisher) under /dist50/broadcast/id. Tasks hold
+ * the reference instead of the object itself: only the id is serialized with each task, and
+ * workers fetch the object once and keep it cached for every task that references it.
+ * <p>
+ * Layout in ZK: the data of /dist50/broadcast/id is a manifest (MAGIC, total length, number of
+ * chunks), written last, and its children c-00000, c-00001... hold the serialized object in
+ * chunks of at most {@link #CHUNK_BYTES}, since a ZNode can't hold more than 1 MB.
+ */
+public final class Broadcast<T extends Serializable> implements Serializable {
+	public static final String ROOT = "/dist50/broadcast";
+	/** "D50B" */
+	public static final int MAGIC = 0x44353042;
+	public static final int CHUNK_BYTES = 512 * 1024;
+
+	/** Turns an id into the broadcast object, set by the worker (its cache). */
+	public interface Resolver {
+		Object resolve(String id) throws IOException;
+	}
+
+	private static volatile Resolver resolver;
+	/** Ids of the broadcasts referenced by the task being serialized on this thread, if collecting. */
+	private static final ThreadLocal<Set<String>> referenced = new ThreadLocal<>();
+
+	private final String id;
+	private transient T value;
+
+	/** Used by the publisher, which already has the object. */
+	public Broadcast(String id, T value) {
+		this.id = id;
+		this.value = value;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/** The object, fetched (or taken from the cache) on first use on the worker. */
+	@SuppressWarnings("unchecked")
+	public T value() {
+		if (value == null) {
+			if (resolver == null) throw new IllegalStateException("Can't resolve broadcast " + id + " here");
+			try {
+				value = (T) resolver.resolve(id);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not fetch broadcast " + id, e);
+			}
+		}
+		return value;
+	}
+
+	public static void setResolver(Resolver resolver) {
+		Broadcast.resolver = resolver;
+	}
+
+	/** Serialize a task, adding the ids of the broadcasts it references to {@code ids}. */
+	static byte[] serializeCollecting(DistTask task, Set<String> ids) throws IOException {
+		referenced.set(ids);
+		try {
+			return TaskEnvelope.serialize(task);
+		} finally {
+			referenced.remove();
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		Set<String> ids = referenced.get();
+		if (ids != null) ids.add(id);
+		out.defaultWriteObject();
+	}
+
+	/** Path of a chunk of a broadcast. */
+	public static String chunkPath(String id, int chunk) {
+		return String.format("%s/%s/c-%05d", ROOT, id, chunk);
+	}
+
+	/** Data of the broadcast ZNode once all its chunks are written. */
+	public static byte[] manifest(long length, int chunks) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(16);
+		try (DataOutputStream out = new DataOutputStream(bos)) {
+			out.writeInt(MAGIC);
+			out.writeLong(length);
+			out.writeInt(chunks);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bos.toByteArray();
+	}
+
+	/** @return {total length, number of chunks}, or null if the broadcast isn't fully published yet. */
+	public static long[] readManifest(byte[] data) throws IOException {
+		if (data == null || data.length < 16) return null;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		if (in.readInt() != MAGIC) return null;
+		return new long[] {in.readLong(), in.readInt()};
+	}
+
+}
@@ -0,0 +1,22 @@
+import java.io.Serializable;
+
+/**
+ * A long task that can save its progress while it runs, so that it resumes where it left off
+ * instead of starting over when its worker dies and it gets reassigned.
+ * <p>
+ * The worker periodically calls {@link #checkpoint()} from another thread while
+ * {@link #compute()} runs, and stores the snapshot in ZK. A worker resuming the task calls
+ * {@link #restore(Serializable)} with the latest snapshot before calling {@link #compute()}.
+ */
+public interface CheckpointableTask extends DistTask {
+
+	/**
+	 * Snapshot of the progress so far. Called from another thread while {@link #compute()} runs,
+	 * so it must be consistent (and ideally small and quick to make).
+	 */
+	Serializable checkpoint();
+
+	/** Resume from a snapshot returned by {@link #checkpoint()}, before {@link #compute()}. */
+	void restore(Serializable checkpoint);
+
+}
@@ -0,0 +1,12 @@
+/**
+ * A task that can tell, before it runs, roughly how much work it is: a number that grows
+ * linearly with its runtime, in whatever unit suits the task (samples, seconds...). It travels in
+ * the {@link TaskEnvelope#COST} header, from which the Master's shortest-job-first policy learns
+ * how long the tasks of each class take per unit of cost.
+ */
+public interface CostedTask extends DistTask {
+
+	/** Work this task represents, in a unit of its own (only compared within its class). */
+	double estimatedCost();
+
+}
@@ -0,0 +1,16 @@
+import java.util.Map;
+
+/**
+ * A task that is a stage of a task graph (see DagClient): it only runs once all the stages it
+ * depends on are done, and gets their results (the parents' task objects after computation) as
+ * inputs before {@link #compute()} is called on the worker.
+ */
+public interface DependentTask extends DistTask {
+
+	/**
+	 * Called by the worker right before {@link #compute()}.
+	 * @param inputs Result of each parent stage, by stage name.
+	 */
+	void setInputs(Map<String, DistTask> inputs);
+
+}
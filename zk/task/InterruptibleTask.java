@@ -1,10 +1,13 @@
+import java.io.Serializable;
+
 /**
  * Custom implementation of a task that simulates a lengthy task that actually respond to
- * interruptions and who doesn't stress the CPU. For testing only.
+ * interruptions and who doesn't stress the CPU. Its progress is simply the time remaining, which
+ * makes it checkpointable. For testing only.
  */
-public class InterruptibleTask implements DistTask {
+public class InterruptibleTask implements CheckpointableTask, CostedTask {
 
-	private long msRemaining;
+	private volatile long msRemaining;
 
 	public InterruptibleTask(int timeSeconds) {
 		this.msRemaining = timeSeconds * 1000L;
@@ -29,6 +32,22 @@ public class InterruptibleTask implements DistTask {
 		System.out.println("DistTask: compute : finished");
 	}
 
+	/** Seconds left to run. */
+	@Override
+	public double estimatedCost() {
+		return msRemaining / 1000D;
+	}
+
+	@Override
+	public Serializable checkpoint() {
+		return msRemaining;
+	}
+
+	@Override
+	public void restore(Serializable checkpoint) {
+		msRemaining = (Long) checkpoint;
+	}
+
 	public boolean finished() {
 		return msRemaining <= 0;
 	}
@@ -3,7 +3,7 @@ Copyright
 All materials provided to the students as part of this course is the property of respective authors. Publishing them to third-party (including websites) is prohibited. Students may save it for their personal use, indefinitely, including personal cloud storage spaces. Further, no assessments published as part of this course may be shared with anyone else. Violators of this copyright infringement may face legal actions in addition to the University disciplinary proceedings.
 ©2022, Joseph D’Silva
 */
-public class MCPi implements DistTask
+public class MCPi implements CostedTask
 {
 	long samples;
 	double pi;
@@ -40,6 +40,10 @@ public class MCPi implements DistTask
 		return pival;
 	}
 
+	// The runtime grows with the number of samples.
+	public double estimatedCost()
+	{ return samples; }
+
 	// Called at the client side to get the computed value of pi.
 	public double getPi() 
 	{ return pi; }
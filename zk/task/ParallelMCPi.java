@@ -0,0 +1,65 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.LongStream;
+
+/**
+ * {@link MCPi} on several cores: the samples are drawn in chunks, in parallel in the pool of the
+ * task's context, and the task stops between chunks if it is cancelled (the estimate is then
+ * made from the chunks done). Used by ParallelClient.
+ */
+public class ParallelMCPi implements ParallelTask, CostedTask {
+	static final long CHUNK = 1_000_000;
+
+	private final long samples;
+	private final int cores;
+	private long drawn;
+	private double pi;
+
+	/** @param cores Cores wanted, 0 for all of the worker's. */
+	public ParallelMCPi(long samples, int cores) {
+		this.samples = samples;
+		this.cores = cores;
+	}
+
+	@Override
+	public int getCores() {
+		return cores;
+	}
+
+	@Override
+	public double estimatedCost() {
+		return samples;
+	}
+
+	@Override
+	public void compute(TaskContext ctx) {
+		System.out.println("DistTask: compute : " + samples + " samples on " + ctx.getCores() + " cores");
+		long chunks = (samples + CHUNK - 1) / CHUNK;
+		long[] inside = ctx.getPool().submit(() -> LongStream.range(0, chunks).parallel()
+			.mapToObj((chunk) -> ctx.isCancelled() ? new long[] {0, 0} : drawChunk(Math.min(CHUNK, samples - chunk * CHUNK)))
+			.reduce(new long[] {0, 0}, (a, b) -> new long[] {a[0] + b[0], a[1] + b[1]})).join();
+		drawn = inside[1];
+		pi = drawn == 0 ? 0 : 4.0 * inside[0] / drawn;
+		System.out.println("DistTask: compute : " + (ctx.isCancelled() ? "cancelled" : "completed") + ", pi ~ " + pi);
+	}
+
+	/** @return Points inside the circle, points drawn. */
+	private static long[] drawChunk(long n) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long in = 0;
+		for (long i = 0; i < n; i++) {
+			double x = random.nextDouble(), y = random.nextDouble();
+			if (x * x + y * y <= 1) in++;
+		}
+		return new long[] {in, n};
+	}
+
+	public double getPi() {
+		return pi;
+	}
+
+	/** Samples actually drawn (fewer than asked if cancelled). */
+	public long getDrawn() {
+		return drawn;
+	}
+
+}
@@ -0,0 +1,22 @@
+/**
+ * A task that uses several cores. Instead of {@link #compute()}, its worker calls
+ * {@link #compute(TaskContext)} with a pool sized to the cores it granted: what the task asked
+ * for ({@link #getCores()}), up to what the worker has. The number of cores asked for travels in
+ * the {@link TaskEnvelope#CORES} header, so that the Master places the task on a worker that has
+ * them.
+ */
+public interface ParallelTask extends DistTask {
+
+	/** Cores wanted, 0 for as many as the worker has. Read on the client, before submitting. */
+	int getCores();
+
+	/** Compute, running the parallel parts in {@link TaskContext#getPool()}. */
+	void compute(TaskContext ctx);
+
+	/** Without a worker: on the common pool. */
+	@Override
+	default void compute() {
+		compute(TaskContext.local());
+	}
+
+}
@@ -0,0 +1,32 @@
+import java.util.Map;
+
+/**
+ * Fan-in stage averaging the estimates of its {@link MCPi} parents. Used by DagClient's demo
+ * graph: independent MCPi stages run in parallel on different workers, and this stage starts as
+ * soon as they're all done, without going back to the client.
+ */
+public class PiAverage implements DependentTask {
+
+	private Map<String, DistTask> inputs;
+	private double pi;
+
+	@Override
+	public void setInputs(Map<String, DistTask> inputs) {
+		this.inputs = inputs;
+	}
+
+	@Override
+	public void compute() {
+		System.out.println("DistTask: compute : averaging " + inputs.size() + " estimates");
+		double sum = 0;
+		for (DistTask input : inputs.values()) sum += ((MCPi) input).getPi();
+		pi = inputs.isEmpty() ? 0 : sum / inputs.size();
+		inputs = null; // The parents' results don't need to travel back.
+		System.out.println("DistTask: compute : average of pi : " + pi);
+	}
+
+	public double getPi() {
+		return pi;
+	}
+
+}
@@ -0,0 +1,51 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * What a {@link ParallelTask} runs with on its worker: a pool of as many threads as the cores the
+ * worker granted it, and a cancellation token, tripped when the task is killed on the worker.
+ * <p>
+ * The pool belongs to the worker, and is the only parallelism the task gets: a task must not
+ * shut it down, and should not start threads of its own, which would compete for the cores of
+ * whatever else runs on the machine.
+ */
+public final class TaskContext {
+
+	private final ForkJoinPool pool;
+	private volatile boolean cancelled = false;
+
+	/** Worker side: the pool is sized to the cores granted. */
+	public TaskContext(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** Outside of a worker (run locally, or as an entry of a batch): the common pool. */
+	public static TaskContext local() {
+		return new TaskContext(ForkJoinPool.commonPool());
+	}
+
+	/** Number of cores granted, the parallelism of {@link #getPool()}. */
+	public int getCores() {
+		return pool.getParallelism();
+	}
+
+	/** Run the parallel parts of the task in there (e.g. {@code getPool().submit(...).join()}). */
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/** Throws CancellationException if the task was cancelled: call it between pieces of work. */
+	public void checkCancelled() {
+		if (cancelled) throw new CancellationException("Task cancelled");
+	}
+
+	/** Worker side: the task was killed. */
+	public void cancel() {
+		cancelled = true;
+	}
+
+}
@@ -0,0 +1,203 @@
+import java.io.*;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Wire format of the data of a task ZNode: a small header of key/value pairs followed by the
+ * serialized {@link DistTask}. The header lets the client tell the platform about the task
+ * without it having to deserialize the task itself. Data without the header (a plain serialized
+ * task, as written by older clients) is still accepted. Results are in the same format, with the
+ * {@link #USAGE} header (older workers stored the plain serialized task), or the {@link #ERROR}
+ * header and no task if the platform gave up on it.
+ * <p>
+ * Shared by the client and the servers, so it lives with the tasks.
+ */
+public final class TaskEnvelope {
+	/** "D50T", can't be confused with a Java serialization stream (0xACED). */
+	public static final int MAGIC = 0x44353054;
+	/** "D50S", data of a result ZNode whose result was streamed directly to the client. */
+	public static final int STREAMED_MAGIC = 0x44353053;
+
+	/** Header: class name of the task, lets the scheduler learn how long each kind of task takes. */
+	public static final String TASK_CLASS = "class";
+	/**
+	 * Header: parents of a task graph stage, as "stage\ttask" lines (see {@link #formatDeps(Map)}).
+	 * Only read on tasks whose name starts with {@link #STAGE_PREFIX}.
+	 */
+	public static final String DEPS = "deps";
+	/** Prefix of the names of task graph stages (instead of "task-"), tasks that have a DEPS header. */
+	public static final String STAGE_PREFIX = "stage-";
+	/** Header: comma separated ids of the {@link Broadcast}s the task references (set by {@link #encodeTask}). */
+	public static final String BROADCASTS = "broadcasts";
+	/** Header: who submitted the task, for per-tenant admission control (see {@link AdmissionState}). */
+	public static final String TENANT = "tenant";
+	/** Header: cores a {@link ParallelTask} asks for, 0 for all of a worker's (set by {@link #encodeTask}). */
+	public static final String CORES = "cores";
+	/** Header: work a {@link CostedTask} represents, in a unit of its class (set by {@link #encodeTask}). */
+	public static final String COST = "cost";
+	/** Header of a result: what the task used on its worker, see {@link TaskUsage#toHeader()}. */
+	public static final String USAGE = "usage";
+	/** Header: "host:port" of the client's result listener, if it wants results streamed. */
+	public static final String REPLY_TO = "reply-to";
+	/**
+	 * Header of a result: why the platform gave up on the task (it failed on too many workers, or
+	 * a parent stage failed). Such a result has no task, see {@link #failure(String)}.
+	 */
+	public static final String ERROR = "error";
+
+	private final Map<String, String> headers;
+	private final byte[] task;
+
+	private TaskEnvelope(Map<String, String> headers, byte[] task) {
+		this.headers = headers;
+		this.task = task;
+	}
+
+	/** Value of a header, null if absent. */
+	public String header(String key) {
+		return headers.get(key);
+	}
+
+	public Map<String, String> getHeaders() {
+		return Collections.unmodifiableMap(headers);
+	}
+
+	/** The serialized task. */
+	public byte[] getTaskBytes() {
+		return task;
+	}
+
+	/** Deserialize the task. Throws if this is a {@link #failure(String)}, there is no task then. */
+	public DistTask getTask() throws IOException, ClassNotFoundException {
+		String error = headers.get(ERROR);
+		if (error != null) throw new IOException("Task failed: " + error);
+		return deserialize(task);
+	}
+
+	/** Encodes a task and its headers into the data of a task ZNode. */
+	public static byte[] encode(Map<String, String> headers, byte[] task) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(task.length + 64);
+			DataOutputStream out = new DataOutputStream(bos);
+			out.writeInt(MAGIC);
+			out.writeShort(headers.size());
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				out.writeUTF(header.getKey());
+				out.writeUTF(header.getValue());
+			}
+			out.writeInt(task.length);
+			out.write(task);
+			out.flush();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Can't happen in memory
+		}
+	}
+
+	/**
+	 * Serializes a task and encodes it with its headers, adding the {@link #BROADCASTS} header if
+	 * it references any broadcast, the {@link #CORES} header if it is a {@link ParallelTask}, and the
+	 * {@link #COST} header if it is a {@link CostedTask}.
+	 */
+	public static byte[] encodeTask(Map<String, String> headers, DistTask task) throws IOException {
+		Set<String> broadcasts = new LinkedHashSet<>();
+		byte[] serialized = Broadcast.serializeCollecting(task, broadcasts);
+		if (!broadcasts.isEmpty() || task instanceof ParallelTask || task instanceof CostedTask) {
+			headers = new LinkedHashMap<>(headers);
+			if (!broadcasts.isEmpty()) headers.put(BROADCASTS, String.join(",", broadcasts));
+			if (task instanceof ParallelTask) headers.put(CORES, Integer.toString(((ParallelTask) task).getCores()));
+			if (task instanceof CostedTask) headers.put(COST, Double.toString(((CostedTask) task).estimatedCost()));
+		}
+		return encode(headers, serialized);
+	}
+
+	/** Decodes the data of a task ZNode. */
+	public static TaskEnvelope decode(byte[] data) throws IOException {
+		if (!hasMagic(data, MAGIC)) return new TaskEnvelope(new LinkedHashMap<>(), data); // Plain task
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		in.readInt();
+		int count = in.readUnsignedShort();
+		Map<String, String> headers = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) headers.put(in.readUTF(), in.readUTF());
+		byte[] task = new byte[in.readInt()];
+		in.readFully(task);
+		return new TaskEnvelope(headers, task);
+	}
+
+	/** Encodes the parents of a stage (stage name to task name) for the {@link #DEPS} header. */
+	public static String formatDeps(Map<String, String> parents) {
+		StringBuilder deps = new StringBuilder();
+		for (Map.Entry<String, String> parent : parents.entrySet()) {
+			if (deps.length() > 0) deps.append('\n');
+			deps.append(parent.getKey()).append('\t').append(parent.getValue());
+		}
+		return deps.toString();
+	}
+
+	/** Decodes a {@link #DEPS} header (null or empty = no parents) into stage name to task name. */
+	public static Map<String, String> parseDeps(String deps) {
+		Map<String, String> parents = new LinkedHashMap<>();
+		if (deps == null || deps.isEmpty()) return parents;
+		for (String line : deps.split("\n")) {
+			int tab = line.indexOf('\t');
+			parents.put(line.substring(0, tab), line.substring(tab + 1));
+		}
+		return parents;
+	}
+
+	/** Serialize a task (or a result, which is the task object after computation). */
+	public static byte[] serialize(DistTask task) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(task);
+		oos.flush();
+		return bos.toByteArray();
+	}
+
+	public static DistTask deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		return (DistTask) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+	}
+
+	/** Data of a result ZNode telling the client the platform gave up on its task, see {@link #ERROR}. */
+	public static byte[] failure(String error) {
+		// Headers are written with writeUTF, 64 KB at most.
+		return encode(Map.of(ERROR, error.length() > 1000 ? error.substring(0, 1000) : error), new byte[0]);
+	}
+
+	/** The {@link #ERROR} of the data of a result ZNode, null if it holds a result. */
+	public static String errorOf(byte[] data) {
+		if (!hasMagic(data, MAGIC)) return null; // Plain or streamed result
+		try {
+			return decode(data).header(ERROR);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/** Data of a result ZNode telling the client its result of the given size was streamed to it. */
+	public static byte[] streamedMarker(long length) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(12);
+		try (DataOutputStream out = new DataOutputStream(bos)) {
+			out.writeInt(STREAMED_MAGIC);
+			out.writeLong(length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bos.toByteArray();
+	}
+
+	/** Whether the data of a result ZNode is a {@link #streamedMarker(long)}. */
+	public static boolean isStreamedMarker(byte[] data) {
+		return data.length == 12 && hasMagic(data, STREAMED_MAGIC);
+	}
+
+	private static boolean hasMagic(byte[] data, int magic) {
+		return data.length >= 4
+			&& ((data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16 | (data[2] & 0xFF) << 8 | (data[3] & 0xFF)) == magic;
+	}
+
+}
@@ -0,0 +1,142 @@
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What tasks used on their workers: CPU time and bytes allocated by the threads that computed
+ * them, wall time of the computation, and time spent queued on the Master before it. For one task,
+ * it travels in the {@link TaskEnvelope#USAGE} header of its result. Workers also add up the usage
+ * of their tasks per task class and tenant (see UsageLedger), for capacity planning and chargeback.
+ * <p>
+ * Shared by the client and the servers, so it lives with the tasks.
+ */
+public final class TaskUsage {
+
+	private long tasks;
+	private long cpuNanos;
+	private long allocatedBytes;
+	private long wallMillis;
+	private long waitMillis;
+
+	/** Nothing used yet, to {@link #add(TaskUsage)} to. */
+	public TaskUsage() {}
+
+	/** Usage of one task. */
+	public TaskUsage(long cpuNanos, long allocatedBytes, long wallMillis, long waitMillis) {
+		this.tasks = 1;
+		this.cpuNanos = cpuNanos;
+		this.allocatedBytes = allocatedBytes;
+		this.wallMillis = wallMillis;
+		this.waitMillis = waitMillis;
+	}
+
+	public void add(TaskUsage other) {
+		tasks += other.tasks;
+		cpuNanos += other.cpuNanos;
+		allocatedBytes += other.allocatedBytes;
+		wallMillis += other.wallMillis;
+		waitMillis += other.waitMillis;
+	}
+
+	/** Number of tasks added up. */
+	public long getTasks() {
+		return tasks;
+	}
+
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public long getWallMillis() {
+		return wallMillis;
+	}
+
+	public long getWaitMillis() {
+		return waitMillis;
+	}
+
+	/** Value of the {@link TaskEnvelope#USAGE} header: "cpu=ns,alloc=bytes,wall=ms,wait=ms". */
+	public String toHeader() {
+		return "cpu=" + cpuNanos + ",alloc=" + allocatedBytes + ",wall=" + wallMillis + ",wait=" + waitMillis;
+	}
+
+	/**
+	 * Decodes a {@link #toHeader()}, null if there is none (result of an older worker). Malformed
+	 * fields are skipped: the result matters more than its metrics.
+	 */
+	public static TaskUsage parseHeader(String header) {
+		if (header == null) return null;
+		TaskUsage usage = new TaskUsage(0, 0, 0, 0);
+		for (String field : header.split(",")) {
+			int eq = field.indexOf('=');
+			if (eq < 0) continue;
+			long value;
+			try {
+				value = Long.parseLong(field.substring(eq + 1));
+			} catch (NumberFormatException e) {
+				continue; // Left at 0, like a field the worker didn't send
+			}
+			switch (field.substring(0, eq)) {
+				case "cpu": usage.cpuNanos = value; break;
+				case "alloc": usage.allocatedBytes = value; break;
+				case "wall": usage.wallMillis = value; break;
+				case "wait": usage.waitMillis = value; break;
+				default: // From a newer worker
+			}
+		}
+		return usage;
+	}
+
+	/**
+	 * Encodes usage by key: count (int), then for each: key (UTF), tasks, CPU, allocated, wall and
+	 * wait (longs).
+	 */
+	public static byte[] encodeTable(Map<String, TaskUsage> table) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * table.size() + 4);
+			DataOutputStream out = new DataOutputStream(bos);
+			out.writeInt(table.size());
+			for (Map.Entry<String, TaskUsage> entry : table.entrySet()) {
+				TaskUsage usage = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(usage.tasks);
+				out.writeLong(usage.cpuNanos);
+				out.writeLong(usage.allocatedBytes);
+				out.writeLong(usage.wallMillis);
+				out.writeLong(usage.waitMillis);
+			}
+			out.flush();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Can't happen in memory
+		}
+	}
+
+	public static Map<String, TaskUsage> decodeTable(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int count = in.readInt();
+		Map<String, TaskUsage> table = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			String key = in.readUTF();
+			TaskUsage usage = new TaskUsage();
+			usage.tasks = in.readLong();
+			usage.cpuNanos = in.readLong();
+			usage.allocatedBytes = in.readLong();
+			usage.wallMillis = in.readLong();
+			usage.waitMillis = in.readLong();
+			table.put(key, usage);
+		}
+		return table;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d task%s, %.3f s CPU, %.1f MB allocated, %.3f s wall, %.3f s queued", tasks, tasks == 1 ? "" : "s",
+			cpuNanos / 1e9, allocatedBytes / 1e6, wallMillis / 1e3, waitMillis / 1e3);
+	}
+
+}
@@ -0,0 +1,118 @@
+import org.apache.zookeeper.*;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long N workers take to become schedulable, i.e. until they are all in
+ * /dist50/workers where the master sees them. Each fake worker has its own session and joins like
+ * a real one, either the old way (sequential: create in /dist50/trash for an ID, then exists on
+ * its assignment and drain nodes, then create its worker ZNode, waiting for each reply) or the
+ * current way (pipelined: ID from the session, the three requests sent back to back).
+ * <p>
+ * Run it with a master up to see how it absorbs the storm, but WITHOUT pending tasks: the fake
+ * workers never compute anything. They leave (sessions closed) at the end.
+ * <p>
+ * Usage: {@code runJoinBench.sh <workers> [pipelined|sequential]}
+ */
+public class JoinBench {
+	/** Max concurrent joins in sequential mode (one thread each, like separate processes). */
+	static final int THREADS = 64;
+
+	public static void main(String[] args) throws Exception {
+		String sig = "JoinBench : ";
+		int n = Integer.parseInt(args[0]);
+		boolean pipelined = args.length < 2 || "pipelined".equalsIgnoreCase(args[1]);
+		String zkServer = System.getenv("ZKSERVER");
+
+		// Connect everybody first, connecting is not part of joining.
+		System.out.println(sig + "Connecting " + n + " sessions...");
+		CountDownLatch connected = new CountDownLatch(n);
+		List<ZooKeeper> sessions = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			sessions.add(new ZooKeeper(zkServer, 30000, (event) -> {
+				if (event.getType() == Watcher.Event.EventType.None
+					&& event.getState() == Watcher.Event.KeeperState.SyncConnected) connected.countDown();
+			}));
+		}
+		connected.await();
+
+		List<String> names = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch joined = new CountDownLatch(n);
+		long[] joinNanos = new long[n];
+		long start = System.nanoTime();
+		if (pipelined) {
+			for (int i = 0; i < n; i++) joinPipelined(sessions.get(i), i, start, joinNanos, names, joined);
+		}
+		else {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(n, THREADS));
+			for (int i = 0; i < n; i++) {
+				int worker = i;
+				pool.execute(() -> joinSequential(sessions.get(worker), worker, start, joinNanos, names, joined));
+			}
+			pool.shutdown();
+		}
+		joined.await();
+		long allJoined = System.nanoTime() - start;
+		awaitListed(sessions.get(0), names);
+		long allListed = System.nanoTime() - start;
+
+		Arrays.sort(joinNanos);
+		System.out.printf(sig + "%d workers joined (%s) in %.1f ms, %.0f joins/s\n",
+			n, pipelined ? "pipelined" : "sequential", allJoined / 1e6, n / (allJoined / 1e9));
+		System.out.printf(sig + "  per worker: median %.2f ms, p99 %.2f ms\n",
+			joinNanos[n / 2] / 1e6, joinNanos[Math.min(n - 1, (int) (n * 0.99))] / 1e6);
+		System.out.printf(sig + "  all of them listed in /dist50/workers after %.1f ms\n", allListed / 1e6);
+
+		System.out.println(sig + "Leaving...");
+		for (ZooKeeper zk : sessions) zk.close();
+	}
+
+	private static void joinPipelined(ZooKeeper zk, int i, long start, long[] joinNanos,
+	                                  List<String> names, CountDownLatch joined) {
+		String name = String.format("worker-%016x", zk.getSessionId());
+		AsyncCallback.StatCallback ignore = (rc, path, ctx, stat) -> {};
+		zk.exists("/dist50/assignments/" + name, true, ignore, null);
+		zk.exists("/dist50/drain/" + name, true, ignore, null);
+		zk.create("/dist50/workers/" + name, "JoinBench".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL,
+			(rc, path, ctx, created) -> {
+				if (KeeperException.Code.get(rc) != KeeperException.Code.OK)
+					System.err.println("JoinBench : " + name + " : " + KeeperException.Code.get(rc));
+				joinNanos[i] = System.nanoTime() - start;
+				names.add(name);
+				joined.countDown();
+			}, null);
+	}
+
+	private static void joinSequential(ZooKeeper zk, int i, long start, long[] joinNanos,
+	                                   List<String> names, CountDownLatch joined) {
+		try {
+			String tmp = zk.create("/dist50/trash/worker-", "JoinBench".getBytes(),
+				ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+			String name = tmp.split("/trash/")[1];
+			zk.exists("/dist50/assignments/" + name, true);
+			zk.exists("/dist50/drain/" + name, true);
+			zk.create("/dist50/workers/" + name, "JoinBench".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+			joinNanos[i] = System.nanoTime() - start;
+			names.add(name);
+		} catch (KeeperException | InterruptedException e) {
+			System.err.println("JoinBench : " + e);
+		} finally {
+			joined.countDown();
+		}
+	}
+
+	/** Wait until every fake worker shows up in the listing of /dist50/workers, like the master. */
+	private static void awaitListed(ZooKeeper zk, List<String> names) throws KeeperException, InterruptedException {
+		Set<String> expected = new HashSet<>(names);
+		while (true) {
+			CountDownLatch changed = new CountDownLatch(1);
+			if (zk.getChildren("/dist50/workers", (event) -> changed.countDown()).containsAll(expected)) return;
+			changed.await(100, TimeUnit.MILLISECONDS);
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lists and deletes large ZNode trees without doing one synchronous round trip per node.
+ * Listing pipelines async getChildren() calls, deleting sends multi() batches of deletes, deepest
+ * nodes first. Both keep at most {@link #maxInFlight} requests outstanding so that we don't
+ * flood the ensemble (or our own outgoing queue).
+ * <p>
+ * All ZK calls are issued from the calling thread, callbacks never block.
+ */
+public class TreePurger {
+
+	private final ZooKeeper zk;
+	/** Max number of outstanding requests. */
+	private final int maxInFlight;
+	/** Max number of deletes per multi(). */
+	private final int batchSize;
+	private final Semaphore inFlight;
+
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicInteger errors = new AtomicInteger();
+
+	public TreePurger(ZooKeeper zk, int maxInFlight, int batchSize) {
+		this.zk = zk;
+		this.maxInFlight = maxInFlight;
+		this.batchSize = batchSize;
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Lists all the nodes of the tree rooted at root, including root. Nodes deleted while we list
+	 * are silently skipped.
+	 */
+	public List<String> list(String root) throws InterruptedException {
+		String sig = Thread.currentThread().getName() + " : ";
+		List<String> nodes = Collections.synchronizedList(new ArrayList<>());
+		BlockingQueue<String> toList = new LinkedBlockingQueue<>();
+		AtomicInteger outstanding = new AtomicInteger(1); // Queued or listing, root to start with
+		toList.add(root);
+
+		long start = System.nanoTime();
+		long lastPrint = start;
+		while (outstanding.get() > 0) {
+			String path = toList.poll(100, TimeUnit.MILLISECONDS);
+			if (path == null) continue;
+
+			inFlight.acquire();
+			zk.getChildren(path, false, (AsyncCallback.ChildrenCallback) (rc, p, ctx, children) -> {
+				try {
+					if (KeeperException.Code.get(rc) == KeeperException.Code.OK) {
+						nodes.add(p);
+						for (String child : children) {
+							outstanding.incrementAndGet(); // Before we are done, so we never hit 0 early
+							toList.add(p + "/" + child);
+						}
+					}
+					else if (KeeperException.Code.get(rc) != KeeperException.Code.NONODE) {
+						errors.incrementAndGet();
+						System.out.println("Error listing '" + p + "' : " + KeeperException.Code.get(rc));
+					}
+				} finally {
+					outstanding.decrementAndGet();
+					inFlight.release();
+				}
+			}, null);
+
+			if (System.nanoTime() - lastPrint > TimeUnit.SECONDS.toNanos(1)) {
+				lastPrint = System.nanoTime();
+				System.out.println(sig + "  listed " + nodes.size() + " nodes...");
+			}
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf(sig + "Listed %d nodes in %.2fs (%.0f nodes/s)\n", nodes.size(), seconds, nodes.size() / seconds);
+		return new ArrayList<>(nodes);
+	}
+
+	/**
+	 * Reads the stat of each of the given nodes, and their data if asked, keeping at most
+	 * {@link #maxInFlight} reads outstanding. Nodes deleted in the meantime are left out.
+	 * @param data Filled with the data of each node, or null to only read the stats.
+	 * @return Stat of each node.
+	 */
+	public Map<String, Stat> read(Collection<String> paths, Map<String, byte[]> data) throws InterruptedException {
+		Map<String, Stat> stats = new ConcurrentHashMap<>();
+		Map<String, byte[]> read = new ConcurrentHashMap<>();
+		for (String path : paths) {
+			inFlight.acquire();
+			if (data == null) {
+				zk.exists(path, false, (rc, p, ctx, stat) -> {
+					if (KeeperException.Code.get(rc) == KeeperException.Code.OK) stats.put(p, stat);
+					else if (KeeperException.Code.get(rc) != KeeperException.Code.NONODE) readError(p, rc);
+					inFlight.release();
+				}, null);
+			}
+			else {
+				zk.getData(path, false, (rc, p, ctx, bytes, stat) -> {
+					if (KeeperException.Code.get(rc) == KeeperException.Code.OK) {
+						stats.put(p, stat);
+						if (bytes != null) read.put(p, bytes);
+					}
+					else if (KeeperException.Code.get(rc) != KeeperException.Code.NONODE) readError(p, rc);
+					inFlight.release();
+				}, null);
+			}
+		}
+		// Wait for the last ones.
+		inFlight.acquire(maxInFlight);
+		inFlight.release(maxInFlight);
+		if (data != null) data.putAll(read);
+		return stats;
+	}
+
+	private void readError(String path, int rc) {
+		errors.incrementAndGet();
+		System.out.println("Error reading '" + path + "' : " + KeeperException.Code.get(rc));
+	}
+
+	/**
+	 * Deletes the given nodes, deepest first. Every descendant of a node to delete must be in the
+	 * list as well (or already gone). Nodes deleted by someone else in the meantime are skipped.
+	 * @return Number of nodes we deleted.
+	 */
+	public long delete(Collection<String> paths) throws InterruptedException {
+		String sig = Thread.currentThread().getName() + " : ";
+
+		// A node can only be deleted once its children are gone, so go level by level from the
+		// bottom, waiting for a level to be done before starting on its parents.
+		TreeMap<Integer, List<String>> levels = new TreeMap<>(Comparator.reverseOrder());
+		for (String path : paths)
+			levels.computeIfAbsent(depth(path), (d) -> new ArrayList<>()).add(path);
+
+		long before = deleted.get();
+		long start = System.nanoTime();
+		long lastPrint = start;
+		for (List<String> level : levels.values()) {
+			for (int i = 0; i < level.size(); i += batchSize) {
+				List<String> batch = level.subList(i, Math.min(level.size(), i + batchSize));
+				List<Op> ops = new ArrayList<>(batch.size());
+				for (String path : batch) ops.add(Op.delete(path, -1));
+
+				inFlight.acquire();
+				zk.multi(ops, (rc, p, ctx, results) -> {
+					if (KeeperException.Code.get(rc) == KeeperException.Code.OK) {
+						deleted.addAndGet(batch.size());
+						inFlight.release();
+					}
+					else {
+						// One delete failed (most likely NONODE) and took the whole batch down with it.
+						deleteOneByOne(batch);
+					}
+				}, null);
+
+				if (System.nanoTime() - lastPrint > TimeUnit.SECONDS.toNanos(1)) {
+					lastPrint = System.nanoTime();
+					long done = deleted.get() - before;
+					System.out.printf(sig + "  deleted %d / %d nodes (%.0f nodes/s)...\n", done, paths.size(),
+						done / ((lastPrint - start) / 1e9));
+				}
+			}
+			// Wait for the whole level.
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+		}
+
+		long done = deleted.get() - before;
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf(sig + "Deleted %d nodes in %.2fs (%.0f nodes/s), %d errors\n", done, seconds, done / seconds, errors.get());
+		return done;
+	}
+
+	/**
+	 * Fallback for a failed batch, issued from the callback thread. The permit of the batch is
+	 * released once every delete came back.
+	 */
+	private void deleteOneByOne(List<String> batch) {
+		AtomicInteger remaining = new AtomicInteger(batch.size());
+		for (String path : batch) {
+			zk.delete(path, -1, (rc, p, ctx) -> {
+				if (KeeperException.Code.get(rc) == KeeperException.Code.OK) deleted.incrementAndGet();
+				else if (KeeperException.Code.get(rc) != KeeperException.Code.NONODE) {
+					errors.incrementAndGet();
+					System.out.println("Error deleting '" + p + "' : " + KeeperException.Code.get(rc));
+				}
+				if (remaining.decrementAndGet() == 0) inFlight.release();
+			}, null);
+		}
+	}
+
+	private static int depth(String path) {
+		int depth = 0;
+		for (int i = 0; i < path.length(); i++)
+			if (path.charAt(i) == '/') depth++;
+		return depth;
+	}
+
+}
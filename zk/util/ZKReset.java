@@ -1,12 +1,48 @@
 import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Resets the ZK configuration to its initial state, or purges part of it.
+ * <ul>
+ *     <li>{@code ZKReset} / {@code ZKReset all}: delete everything under /dist50 and rebuild.</li>
+ *     <li>{@code ZKReset completed}: delete completed tasks (tasks with a result), and their result,
+ *     like the Janitor does: only once the result is older than JANITOR_RETENTION_50 (3600 s), so
+ *     that its client is gone, and no stage still waiting to run depends on it. Safe to run while
+ *     the system is up.</li>
+ *     <li>{@code ZKReset tasks}: delete every task and bucket, pending ones included.</li>
+ * </ul>
+ */
 public class ZKReset {
 
+	/** Max number of outstanding requests while listing/deleting. */
+	private static final int MAX_IN_FLIGHT = 64;
+	/** Max number of deletes per multi(). */
+	private static final int BATCH_SIZE = 200;
+
+	/** Results younger than this (seconds) may still be read by their client, see Janitor. */
+	private static final long RETENTION_SECONDS = Long.parseLong(
+		Objects.requireNonNullElse(System.getenv("JANITOR_RETENTION_50"), "3600"));
+
 	private static ZooKeeper zk;
+	private static String mode = "all";
 
 	public static void main(String[] args) throws Exception {
 		Thread.currentThread().setName("Main");
 		String sig = Thread.currentThread().getName() + " : ";
+		if (args.length > 0) mode = args[0].toLowerCase();
+		if (!List.of("all", "completed", "tasks").contains(mode)) {
+			System.out.println(sig + "Unknown mode '" + mode + "', expected all, completed or tasks.");
+			return;
+		}
 		System.out.println(sig + "Connecting...");
 		zk = new ZooKeeper(System.getenv("ZKSERVER"), 10000, connectionWatcher);
 
@@ -35,12 +71,21 @@ public class ZKReset {
 		String sig = Thread.currentThread().getName() + " : ";
 		System.out.println(event.getType());
 		if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
-			System.out.println(sig + "Connected. Deleting everything and rebuilding...");
+			System.out.println(sig + "Connected. Running '" + mode + "'...");
 			new Thread( () -> {
 				Thread.currentThread().setName("ResetThread");
 				String sig1 = Thread.currentThread().getName() + " : ";
-				deleteEverything();
-				rebuild();
+				switch (mode) {
+					case "completed":
+						purgeCompleted();
+						break;
+					case "tasks":
+						purgeTasks();
+						break;
+					default:
+						deleteEverything();
+						rebuild();
+				}
 				System.out.println(sig1 + "Everything done, unblocking main.");
 				synchronized (zk) {
 					zk.notifyAll();
@@ -58,7 +103,8 @@ public class ZKReset {
 		try {
 			if (zk.exists("/dist50", null) != null) {
 				System.out.println(sig + "Attempt to recursively delete '/dist50'...");
-				ZKUtil.deleteRecursive(zk, "/dist50");
+				TreePurger purger = new TreePurger(zk, MAX_IN_FLIGHT, BATCH_SIZE);
+				purger.delete(purger.list("/dist50"));
 				System.out.println(sig + "Done");
 			}
 			else {
@@ -74,6 +120,75 @@ public class ZKReset {
 		}
 	}
 
+	/**
+	 * Delete every task whose result is older than {@link #RETENTION_SECONDS}, along with all of
+	 * its children, unless a stage without a result yet depends on it (it reads the result when it
+	 * runs).
+	 */
+	private static void purgeCompleted() {
+		String sig = Thread.currentThread().getName() + " : ";
+		try {
+			System.out.println(sig + "Listing '/dist50/tasks'...");
+			TreePurger purger = new TreePurger(zk, MAX_IN_FLIGHT, BATCH_SIZE);
+			List<String> nodes = purger.list("/dist50/tasks");
+
+			List<String> results = new ArrayList<>();
+			for (String node : nodes)
+				if (node.endsWith("/result")) results.add(node);
+			Set<String> finished = new HashSet<>();
+			for (String result : results) finished.add(result.substring(0, result.lastIndexOf('/')));
+
+			// Parents of the stages still to run.
+			List<String> waitingStages = new ArrayList<>();
+			for (String node : nodes) {
+				if (node.substring(node.lastIndexOf('/') + 1).startsWith(TaskEnvelope.STAGE_PREFIX) && !finished.contains(node))
+					waitingStages.add(node);
+			}
+			Map<String, byte[]> stageData = new HashMap<>();
+			purger.read(waitingStages, stageData);
+			Set<String> needed = new HashSet<>();
+			for (Map.Entry<String, byte[]> stage : stageData.entrySet()) {
+				try {
+					for (String parent : TaskEnvelope.parseDeps(TaskEnvelope.decode(stage.getValue()).header(TaskEnvelope.DEPS)).values())
+						needed.add("/dist50/tasks/" + parent);
+				} catch (IOException e) {
+					System.out.println(sig + "Could not read the dependencies of '" + stage.getKey() + "' : " + e);
+				}
+			}
+
+			long cutoff = System.currentTimeMillis() - RETENTION_SECONDS * 1000;
+			Set<String> completed = new HashSet<>();
+			for (Map.Entry<String, Stat> result : purger.read(results, null).entrySet()) {
+				String task = result.getKey().substring(0, result.getKey().lastIndexOf('/'));
+				if (result.getValue().getMtime() <= cutoff && !needed.contains(task)) completed.add(task);
+			}
+			System.out.println(sig + finished.size() + " completed tasks, " + completed.size() + " of them older than "
+				+ RETENTION_SECONDS + " s and needed by no waiting stage, deleting...");
+
+			List<String> selected = new ArrayList<>();
+			for (String node : nodes)
+				if (completed.contains(node) || completed.contains(node.substring(0, node.lastIndexOf('/'))))
+					selected.add(node);
+			purger.delete(selected);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Delete every task (pending, running or completed) and bucket, keeping '/dist50/tasks'. */
+	private static void purgeTasks() {
+		String sig = Thread.currentThread().getName() + " : ";
+		try {
+			System.out.println(sig + "Listing '/dist50/tasks'...");
+			TreePurger purger = new TreePurger(zk, MAX_IN_FLIGHT, BATCH_SIZE);
+			List<String> nodes = purger.list("/dist50/tasks");
+			nodes.remove("/dist50/tasks");
+			purger.delete(nodes);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
 	private static void rebuild() {
 		String sig = Thread.currentThread().getName() + " : ";
 		System.out.println(sig + "Rebuilding...");
@@ -93,6 +208,21 @@ public class ZKReset {
 			System.out.println(sig + "Creating '/dist50/trash'...");
 			zk.create("/dist50/trash", "Used by workers to get a sequential ID without alerting the Master".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
 
+			System.out.println(sig + "Creating '/dist50/shards'...");
+			zk.create("/dist50/shards", "Contains ephemeral shard master ZNodes".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+			System.out.println(sig + "Creating '/dist50/drain'...");
+			zk.create("/dist50/drain", "Contains drain requests (exists -> worker must exit once idle)".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+			System.out.println(sig + "Creating '/dist50/broadcast'...");
+			zk.create("/dist50/broadcast", "Contains broadcast objects shared by tasks".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+			System.out.println(sig + "Creating '/dist50/admission'...");
+			zk.create("/dist50/admission", "Admission state published by the master, read by clients before submitting".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+			System.out.println(sig + "Creating '/dist50/usage'...");
+			zk.create("/dist50/usage", "Usage of the tasks of each worker, per task class and tenant".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
 			System.out.println(sig + "Rebuilding done.");
 		} catch (InterruptedException | KeeperException e) {
 			System.out.println(sig + "Error while rebuilding '/dist50'");